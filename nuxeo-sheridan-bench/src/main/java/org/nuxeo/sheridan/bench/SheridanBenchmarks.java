@@ -0,0 +1,53 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks at 1, 4 and 16 threads with the gc profiler (allocation rate), and writes the results of each
+ * run as JSON in the current directory (<code>jmh-result-1-threads.json</code>, ...), so they can be compared between
+ * releases.
+ * <p>
+ * Usage: <code>java -jar target/benchmarks.jar [regexp of the benchmarks to run]</code>
+ *
+ * @since 7.10
+ */
+public class SheridanBenchmarks {
+
+    public static final int[] THREADS = { 1, 4, 16 };
+
+    public static void main(String[] args) throws RunnerException {
+
+        String include = args.length > 0 ? args[0] : SignedURLBenchmark.class.getSimpleName();
+        for (int threads : THREADS) {
+            Options options = new OptionsBuilder().include(include)
+                                                  .threads(threads)
+                                                  .addProfiler(GCProfiler.class)
+                                                  .resultFormat(ResultFormatType.JSON)
+                                                  .result("jmh-result-" + threads + "-threads.json")
+                                                  .build();
+            new Runner(options).run();
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer queue on a ring buffer (Dmitry Vyukov's algorithm).
+ * <p>
+ * Each slot has a sequence number telling whether it is free for the producer at this position or filled for the
+ * consumer at this position, so producers and consumers only compete on a <code>compareAndSet</code> of their own
+ * position, never on a lock. {@link #offer(Object)} does not allocate and returns false instead of waiting when the
+ * buffer is full: what to do then is up to the caller (see {@link SignedURLAuditor}).
+ *
+ * @since 7.10
+ */
+public class BoundedRingBuffer<E> {
+
+    protected final int mask;
+
+    protected final AtomicReferenceArray<E> elements;
+
+    protected final AtomicLongArray sequences;
+
+    protected final AtomicLong enqueuePosition = new AtomicLong();
+
+    protected final AtomicLong dequeuePosition = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of 2
+     */
+    public BoundedRingBuffer(int capacity) {
+        if (capacity < 2 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be in [2, 2^30]: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Add the element, unless the buffer is full
+     *
+     * @return false if the buffer is full
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long position = enqueuePosition.get();
+        for (;;) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    // Publishes the element to the consumer of this position
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = enqueuePosition.get();
+            } else if (diff < 0) {
+                // The slot still holds the element of the previous lap
+                return false;
+            } else {
+                // Another producer took this position
+                position = enqueuePosition.get();
+            }
+        }
+    }
+
+    /**
+     * Remove and return the oldest element, or null if the buffer is empty
+     */
+    public E poll() {
+        long position = dequeuePosition.get();
+        for (;;) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    E element = elements.get(index);
+                    elements.lazySet(index, null);
+                    // Frees the slot for the producer of the next lap
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+                position = dequeuePosition.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                position = dequeuePosition.get();
+            }
+        }
+    }
+
+    /**
+     * Move at most <code>max</code> elements to <code>target</code>, oldest first
+     *
+     * @return the number of elements moved
+     */
+    public int drainTo(Collection<? super E> target, int max) {
+        int count = 0;
+        E element;
+        while (count < max && (element = poll()) != null) {
+            target.add(element);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Return the number of elements, only an estimate while producers or consumers are running
+     */
+    public int size() {
+        long size = enqueuePosition.get() - dequeuePosition.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+}
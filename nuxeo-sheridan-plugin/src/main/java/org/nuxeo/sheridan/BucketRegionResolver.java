@@ -0,0 +1,147 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Resolves the region of a bucket, so its URLs point directly to the endpoint of this region (no redirect, and the
+ * region is the one expected by SigV4).
+ * <p>
+ * The region is, in this order: the one configured for the bucket (<code>sheridan.s3.bucket.{bucket}.region</code>),
+ * the one returned by S3 (<code>GetBucketLocation</code>, called once per bucket), or the default region if the lookup
+ * is disabled or fails. A failed lookup is retried after {@link #DEFAULT_RETRY_DELAY} seconds, not before, to not slow
+ * down every URL of the bucket: fix the permissions or configure the region of the bucket. The lookup is done outside
+ * of any lock, so a slow S3 does not block the URLs of the other buckets. At most {@link #MAX_BUCKETS} regions are
+ * kept.
+ *
+ * @since 7.10
+ */
+public class BucketRegionResolver {
+
+    private static final Log log = LogFactory.getLog(BucketRegionResolver.class);
+
+    /**
+     * <code>GetBucketLocation</code> is sent to the global endpoint, which answers for buckets of any region
+     */
+    public static final String LOOKUP_REGION = "us-east-1";
+
+    protected final S3SignerConfig config;
+
+    protected final Supplier<AmazonS3> lookupClient;
+
+    public static final int MAX_BUCKETS = 1000;
+
+    /**
+     * Seconds before looking up again the region of a bucket whose lookup failed
+     */
+    public static final long DEFAULT_RETRY_DELAY = 60;
+
+    protected final Cache<String, String> regions = CacheBuilder.newBuilder().maximumSize(MAX_BUCKETS).build();
+
+    /**
+     * The default region, for the buckets whose lookup failed recently
+     */
+    protected final Cache<String, String> failedLookups;
+
+    /**
+     * @param lookupClient returns the client used for the lookups, in {@link #LOOKUP_REGION}. Called only when a
+     *            lookup is needed.
+     */
+    public BucketRegionResolver(S3SignerConfig config, Supplier<AmazonS3> lookupClient) {
+        this(config, lookupClient, DEFAULT_RETRY_DELAY);
+    }
+
+    /**
+     * @param retryDelay seconds before looking up again the region of a bucket after a failure
+     */
+    public BucketRegionResolver(S3SignerConfig config, Supplier<AmazonS3> lookupClient, long retryDelay) {
+        this.config = config;
+        this.lookupClient = lookupClient;
+        failedLookups = CacheBuilder.newBuilder().maximumSize(MAX_BUCKETS).expireAfterWrite(retryDelay,
+                TimeUnit.SECONDS).build();
+    }
+
+    public String getRegion(String bucket) {
+
+        String region = config.getBucketRegion(bucket);
+        if (region != null) {
+            return region;
+        }
+        if (!config.isRegionLookup()) {
+            return config.getRegion();
+        }
+        region = regions.getIfPresent(bucket);
+        if (region == null) {
+            region = failedLookups.getIfPresent(bucket);
+        }
+        // Two threads may look up the same bucket at the same time, with the same result
+        return region == null ? lookup(bucket) : region;
+    }
+
+    protected String lookup(String bucket) {
+
+        SheridanMetrics.REGION_LOOKUPS.inc();
+        try {
+            String region = toRegion(lookupClient.get().getBucketLocation(bucket));
+            if (log.isDebugEnabled()) {
+                log.debug("Bucket " + bucket + " is in " + region);
+            }
+            regions.put(bucket, region);
+            return region;
+        } catch (AmazonClientException e) {
+            log.warn("Cannot get the region of the bucket " + bucket + ", using " + config.getRegion()
+                    + ". Set it in " + S3SignerConfig.CONF_KEY_PREFIX_BUCKET + bucket
+                    + S3SignerConfig.CONF_KEY_SUFFIX_REGION + " to avoid this lookup: " + e.getMessage());
+            failedLookups.put(bucket, config.getRegion());
+            return config.getRegion();
+        }
+    }
+
+    /**
+     * Convert a <code>GetBucketLocation</code> result to a region name: the legacy values are "US" (or empty) for
+     * us-east-1 and "EU" for eu-west-1.
+     */
+    public static String toRegion(String location) {
+        if (StringUtils.isBlank(location) || "US".equals(location)) {
+            return "us-east-1";
+        }
+        if ("EU".equals(location)) {
+            return "eu-west-1";
+        }
+        return location;
+    }
+
+    /**
+     * Forget the regions looked up, they will be looked up again
+     */
+    public void clear() {
+        regions.invalidateAll();
+        failedLookups.invalidateAll();
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A CloudFront custom policy signed once for all the objects under a key prefix (<code>videos/1234/</code> for
+ * example, the segments and playlists of a video). See {@link CloudFrontSignedURLBuilder#signPrefix(String, int)}.
+ * <p>
+ * The policy can be used as query parameters added to the URL of each object ({@link #getUrl(String)}), or as the
+ * three CloudFront cookies ({@link #getCookies()}), which is what HLS/DASH players need: they fetch the segments
+ * without adding parameters to their URLs.
+ *
+ * @since 7.10
+ */
+public class CloudFrontPrefixPolicy {
+
+    public static final String COOKIE_POLICY = "CloudFront-Policy";
+
+    public static final String COOKIE_SIGNATURE = "CloudFront-Signature";
+
+    public static final String COOKIE_KEY_PAIR_ID = "CloudFront-Key-Pair-Id";
+
+    protected final String baseUrl;
+
+    protected final String path;
+
+    protected final String policy;
+
+    protected final String signature;
+
+    protected final String keyPairId;
+
+    protected final long signedAt;
+
+    protected final long expiresAt;
+
+    /**
+     * @param baseUrl the URL of the prefix (the resource of the policy, without the final <code>*</code>)
+     * @param path the path of the prefix, for the cookies
+     * @param policy the policy, in CloudFront base64
+     * @param signature the signature, in CloudFront base64
+     */
+    public CloudFrontPrefixPolicy(String baseUrl, String path, String policy, String signature, String keyPairId,
+            long signedAt, long expiresAt) {
+        this.baseUrl = baseUrl;
+        this.path = path;
+        this.policy = policy;
+        this.signature = signature;
+        this.keyPairId = keyPairId;
+        this.signedAt = signedAt;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Return the URL of the prefix (the policy allows any URL starting with it)
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Return the path to set on the cookies, so they are sent only for the objects of the prefix, and the cookies of
+     * several prefixes do not overwrite each other
+     */
+    public String getCookiePath() {
+        return path;
+    }
+
+    /**
+     * Return the query parameters to add to the URL of an object:
+     * <code>Policy=...&amp;Signature=...&amp;Key-Pair-Id=...</code>
+     */
+    public String getQuery() {
+        return "Policy=" + policy + "&Signature=" + signature + "&Key-Pair-Id=" + keyPairId;
+    }
+
+    /**
+     * Return the signed URL of an object of the prefix
+     *
+     * @param relativePath the path of the object, relative to the prefix (<code>segment-001.ts</code> for example)
+     */
+    public String getUrl(String relativePath) {
+        return baseUrl + SigV4Presigner.uriEncode(relativePath, true) + "?" + getQuery();
+    }
+
+    /**
+     * Return the CloudFront cookies (name to value) allowing access to the objects of the prefix
+     */
+    public Map<String, String> getCookies() {
+        Map<String, String> cookies = new LinkedHashMap<>();
+        cookies.put(COOKIE_POLICY, policy);
+        cookies.put(COOKIE_SIGNATURE, signature);
+        cookies.put(COOKIE_KEY_PAIR_ID, keyPairId);
+        return cookies;
+    }
+
+    public long getSignedAt() {
+        return signedAt;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public long getRemainingMillis(long now) {
+        return expiresAt - now;
+    }
+
+}
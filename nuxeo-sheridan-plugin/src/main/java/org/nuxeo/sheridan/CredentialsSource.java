@@ -0,0 +1,37 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.io.IOException;
+
+import com.amazonaws.auth.AWSCredentials;
+
+/**
+ * Where a {@link RotatingAWSCredentialsProvider} reads the credentials from.
+ *
+ * @since 7.10
+ */
+public interface CredentialsSource {
+
+    /**
+     * Return the current credentials, or null if the source knows they did not change since the previous call.
+     *
+     * @throws IOException if the credentials cannot be read. The provider then keeps the previous ones.
+     */
+    AWSCredentials load() throws IOException;
+
+}
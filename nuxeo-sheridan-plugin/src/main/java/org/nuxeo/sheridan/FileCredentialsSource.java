@@ -0,0 +1,97 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Properties;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.BasicSessionCredentials;
+
+/**
+ * Reads the credentials from a properties file, with the names of the AWS credentials file:
+ *
+ * <pre>
+ * aws_access_key_id=...
+ * aws_secret_access_key=...
+ * # Optional, for session credentials
+ * aws_session_token=...
+ * </pre>
+ *
+ * The file is read again only when its modification time or size changes. To never read a half-written file, write a
+ * new file and rename it over the old one.
+ *
+ * @since 7.10
+ */
+public class FileCredentialsSource implements CredentialsSource {
+
+    public static final String ACCESS_KEY_ID = "aws_access_key_id";
+
+    public static final String SECRET_ACCESS_KEY = "aws_secret_access_key";
+
+    public static final String SESSION_TOKEN = "aws_session_token";
+
+    protected final Path path;
+
+    protected FileTime lastModified;
+
+    protected long lastSize = -1;
+
+    public FileCredentialsSource(Path path) {
+        this.path = path;
+    }
+
+    @Override
+    public synchronized AWSCredentials load() throws IOException {
+
+        FileTime modified = Files.getLastModifiedTime(path);
+        long size = Files.size(path);
+        if (modified.equals(lastModified) && size == lastSize) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        String accessKeyId = StringUtils.trimToNull(properties.getProperty(ACCESS_KEY_ID));
+        String secretAccessKey = StringUtils.trimToNull(properties.getProperty(SECRET_ACCESS_KEY));
+        String sessionToken = StringUtils.trimToNull(properties.getProperty(SESSION_TOKEN));
+        if (accessKeyId == null || secretAccessKey == null) {
+            throw new IOException(ACCESS_KEY_ID + " and/or " + SECRET_ACCESS_KEY + " are missing in " + path);
+        }
+
+        lastModified = modified;
+        lastSize = size;
+        return sessionToken == null ? new BasicAWSCredentials(accessKeyId, secretAccessKey)
+                : new BasicSessionCredentials(accessKeyId, secretAccessKey, sessionToken);
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+
+}
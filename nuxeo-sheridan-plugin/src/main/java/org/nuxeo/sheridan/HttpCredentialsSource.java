@@ -0,0 +1,93 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.BasicSessionCredentials;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reads (short-lived) credentials from a local HTTP endpoint returning them as JSON, in the format of the EC2 instance
+ * metadata and ECS container credentials endpoints:
+ *
+ * <pre>
+ * {"AccessKeyId": "...", "SecretAccessKey": "...", "Token": "...", "Expiration": "..."}
+ * </pre>
+ *
+ * <code>Token</code> is optional. The refresh interval of the provider must be well below the lifetime of the
+ * credentials.
+ *
+ * @since 7.10
+ */
+public class HttpCredentialsSource implements CredentialsSource {
+
+    public static final int CONNECT_TIMEOUT_MS = 2000;
+
+    public static final int READ_TIMEOUT_MS = 5000;
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    protected final URL url;
+
+    public HttpCredentialsSource(URL url) {
+        this.url = url;
+    }
+
+    @Override
+    public AWSCredentials load() throws IOException {
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + connection.getResponseCode() + " from " + url);
+            }
+            JsonNode json;
+            try (InputStream in = connection.getInputStream()) {
+                json = MAPPER.readTree(in);
+            }
+            // readTree returns null for an empty body
+            if (json == null || !json.isObject()) {
+                throw new IOException("The response of " + url + " is not a JSON object");
+            }
+            String accessKeyId = json.path("AccessKeyId").asText(null);
+            String secretAccessKey = json.path("SecretAccessKey").asText(null);
+            String token = json.path("Token").asText(null);
+            if (accessKeyId == null || secretAccessKey == null) {
+                throw new IOException("AccessKeyId and/or SecretAccessKey are missing in the response of " + url);
+            }
+            return token == null ? new BasicAWSCredentials(accessKeyId, secretAccessKey)
+                    : new BasicSessionCredentials(accessKeyId, secretAccessKey, token);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return url.toString();
+    }
+
+}
@@ -0,0 +1,421 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.api.Framework;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * Tells whether an object exists in a bucket without calling S3 for each lookup, so links to missing objects can be
+ * hidden (or answered with a 404) instead of leading users to S3 errors.
+ * <p>
+ * The index is made of:
+ * <ul>
+ * <li>A Bloom filter of all the keys of the bucket, filled by a background sweep listing the bucket one page
+ * (<code>ListObjects</code>, {@value #PAGE_SIZE} keys) at a time. A Bloom filter cannot forget a key, so the sweep
+ * builds a new filter every <code>sheridan.s3.existenceIndex.sweepInterval</code> seconds, replacing the current one
+ * when it completes.</li>
+ * <li>An exact cache of the keys checked with a <code>HEAD</code> request, and of the keys changed since the sweep
+ * (see {@link #keyChanged(String)}).</li>
+ * </ul>
+ * A key in the filter exists, except for a rate of false positives of <code>sheridan.s3.existenceIndex.fpp</code> and
+ * for the objects deleted since the last sweep. A key absent from the filter did not exist when the sweep started:
+ * objects written to the bucket outside Nuxeo (no {@link #keyChanged(String)}) are only in the next filter, up to
+ * <code>sweepInterval</code> later. So absence is trusted only while the filter is younger than
+ * <code>sheridan.s3.existenceIndex.maxStaleness</code> seconds ({@value #DEFAULT_MAX_STALENESS} by default); after
+ * that, a key absent from the filter is checked with a <code>HEAD</code> before its link is hidden. Missing objects
+ * are rare, so these checks are too. The keys the index cannot decide (until the first sweep completes, changed since,
+ * or absent from a stale filter) are checked with a <code>HEAD</code>, and the result is cached for
+ * <code>sheridan.s3.existenceIndex.cacheTTL</code> seconds.
+ * <p>
+ * The index of a bucket is enabled with <code>sheridan.s3.bucket.{bucket}.existenceIndex=true</code>. The AWS user
+ * needs the <code>s3:ListBucket</code> permission on the bucket.
+ *
+ * @since 7.10
+ */
+public class ObjectExistenceIndex {
+
+    private static final Log log = LogFactory.getLog(ObjectExistenceIndex.class);
+
+    public static final String CONF_KEY_SUFFIX_EXISTENCE_INDEX = ".existenceIndex";
+
+    public static final String CONF_KEY_NAME_EXPECTED_OBJECTS = "sheridan.s3.existenceIndex.expectedObjects";
+
+    public static final String CONF_KEY_NAME_FPP = "sheridan.s3.existenceIndex.fpp";
+
+    public static final String CONF_KEY_NAME_CACHE_SIZE = "sheridan.s3.existenceIndex.cacheSize";
+
+    public static final String CONF_KEY_NAME_CACHE_TTL = "sheridan.s3.existenceIndex.cacheTTL";
+
+    public static final String CONF_KEY_NAME_SWEEP_INTERVAL = "sheridan.s3.existenceIndex.sweepInterval";
+
+    /**
+     * Age, in seconds, of the filter after which a key absent from it is checked with a <code>HEAD</code>. 0 to always
+     * check, a negative value to trust the filter until the next sweep.
+     *
+     * @since 7.10
+     */
+    public static final String CONF_KEY_NAME_MAX_STALENESS = "sheridan.s3.existenceIndex.maxStaleness";
+
+    public static final int DEFAULT_EXPECTED_OBJECTS = 1000000;
+
+    public static final double DEFAULT_FPP = 0.001;
+
+    public static final long DEFAULT_CACHE_SIZE = 10000;
+
+    public static final int DEFAULT_CACHE_TTL = 300;
+
+    public static final int DEFAULT_SWEEP_INTERVAL = 3600;
+
+    public static final int DEFAULT_MAX_STALENESS = 60;
+
+    public static final int PAGE_SIZE = 1000;
+
+    /**
+     * Pause between two pages of the sweep, so it does not compete with the other calls to S3
+     */
+    protected static final long PAGE_DELAY_MILLIS = 50;
+
+    protected static final long RETRY_DELAY_MILLIS = 60000;
+
+    protected enum State {
+        EXISTS, MISSING, CHANGED
+    }
+
+    protected final String bucket;
+
+    protected final Supplier<AmazonS3> client;
+
+    protected final int expectedObjects;
+
+    protected final double fpp;
+
+    protected final int sweepInterval;
+
+    protected final int maxStaleness;
+
+    protected final Cache<String, State> known;
+
+    /**
+     * The filter of the last complete sweep, null until the first one completes
+     */
+    protected volatile BloomFilter<CharSequence> filter;
+
+    /**
+     * When the sweep of {@link #filter} started: objects created after are not in it
+     */
+    protected volatile long filterStartedAt;
+
+    /**
+     * The filter of the sweep in progress. Guarded by <code>this</code>, as the puts in both filters.
+     */
+    protected BloomFilter<CharSequence> next;
+
+    protected String marker;
+
+    protected long swept;
+
+    protected long sweepStartedAt;
+
+    protected ScheduledExecutorService scheduler;
+
+    /**
+     * @param client returns the client used to list the bucket and check the keys. Called for each request, so the
+     *            client can be created on first use.
+     * @param expectedObjects the number of objects in the bucket the filter is sized for
+     * @param fpp the rate of false positives of the filter, when the bucket has <code>expectedObjects</code> objects
+     * @param cacheSize the maximum number of keys in the exact cache
+     * @param cacheTTL how long, in seconds, the result of a <code>HEAD</code> is kept
+     * @param sweepInterval the time, in seconds, between the end of a sweep and the start of the next one
+     */
+    public ObjectExistenceIndex(String bucket, Supplier<AmazonS3> client, int expectedObjects, double fpp,
+            long cacheSize, int cacheTTL, int sweepInterval) {
+        this(bucket, client, expectedObjects, fpp, cacheSize, cacheTTL, sweepInterval, DEFAULT_MAX_STALENESS);
+    }
+
+    /**
+     * @param maxStaleness the age, in seconds, of the filter after which a key absent from it is checked with a
+     *            <code>HEAD</code> (see {@link #CONF_KEY_NAME_MAX_STALENESS})
+     * @since 7.10
+     */
+    public ObjectExistenceIndex(String bucket, Supplier<AmazonS3> client, int expectedObjects, double fpp,
+            long cacheSize, int cacheTTL, int sweepInterval, int maxStaleness) {
+        this.bucket = bucket;
+        this.client = client;
+        this.expectedObjects = expectedObjects;
+        this.fpp = fpp;
+        this.sweepInterval = sweepInterval;
+        this.maxStaleness = maxStaleness;
+        known = CacheBuilder.newBuilder().maximumSize(cacheSize).expireAfterWrite(cacheTTL, TimeUnit.SECONDS).build();
+    }
+
+    /**
+     * Return the index of the bucket, sized with the configuration
+     */
+    public static ObjectExistenceIndex fromFramework(String bucket, Supplier<AmazonS3> client) {
+        return new ObjectExistenceIndex(bucket, client,
+                NumberUtils.toInt(S3SignerConfig.getProperty(CONF_KEY_NAME_EXPECTED_OBJECTS),
+                        DEFAULT_EXPECTED_OBJECTS),
+                NumberUtils.toDouble(S3SignerConfig.getProperty(CONF_KEY_NAME_FPP), DEFAULT_FPP),
+                NumberUtils.toLong(S3SignerConfig.getProperty(CONF_KEY_NAME_CACHE_SIZE), DEFAULT_CACHE_SIZE),
+                NumberUtils.toInt(S3SignerConfig.getProperty(CONF_KEY_NAME_CACHE_TTL), DEFAULT_CACHE_TTL),
+                NumberUtils.toInt(S3SignerConfig.getProperty(CONF_KEY_NAME_SWEEP_INTERVAL), DEFAULT_SWEEP_INTERVAL),
+                NumberUtils.toInt(S3SignerConfig.getProperty(CONF_KEY_NAME_MAX_STALENESS), DEFAULT_MAX_STALENESS));
+    }
+
+    /**
+     * Return the buckets whose index is enabled (<code>sheridan.s3.bucket.{bucket}.existenceIndex=true</code>)
+     */
+    public static List<String> getIndexedBuckets() {
+        List<String> buckets = new ArrayList<>();
+        SheridanMetrics.CONFIG_LOOKUPS.inc();
+        Properties properties = Framework.getProperties();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(S3SignerConfig.CONF_KEY_PREFIX_BUCKET)
+                    && name.endsWith(CONF_KEY_SUFFIX_EXISTENCE_INDEX)
+                    && Boolean.parseBoolean(properties.getProperty(name))) {
+                buckets.add(name.substring(S3SignerConfig.CONF_KEY_PREFIX_BUCKET.length(),
+                        name.length() - CONF_KEY_SUFFIX_EXISTENCE_INDEX.length()));
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Return true if the object exists. When S3 cannot tell (no permission, network error), return true, so the link
+     * is not hidden.
+     */
+    public boolean exists(String objectKey) {
+
+        State state = known.getIfPresent(objectKey);
+        if (state == State.EXISTS) {
+            return true;
+        } else if (state == State.MISSING) {
+            return false;
+        }
+        BloomFilter<CharSequence> f = filter;
+        if (state == null && f != null) {
+            if (f.mightContain(objectKey)) {
+                return true;
+            }
+            if (!isStale()) {
+                SheridanMetrics.EXISTENCE_MISSING.inc();
+                return false;
+            }
+            // May have been written since the sweep started, outside Nuxeo: check before hiding the link
+        }
+        return head(objectKey);
+    }
+
+    /**
+     * Return true if the filter is too old to trust the absence of a key
+     */
+    protected boolean isStale() {
+        return maxStaleness >= 0 && currentTimeMillis() - filterStartedAt > TimeUnit.SECONDS.toMillis(maxStaleness);
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Tell the index the object may have been created or replaced (a document now references it for example): it will
+     * be checked with a <code>HEAD</code> on next lookup.
+     */
+    public void keyChanged(String objectKey) {
+        known.put(objectKey, State.CHANGED);
+        // So the key is not reported as missing by the filter if it is evicted from the cache
+        synchronized (this) {
+            if (filter != null) {
+                filter.put(objectKey);
+            }
+            if (next != null) {
+                next.put(objectKey);
+            }
+        }
+    }
+
+    protected boolean head(String objectKey) {
+
+        SheridanMetrics.EXISTENCE_CHECKS.inc();
+        boolean exists;
+        try {
+            client.get().getObjectMetadata(bucket, objectKey);
+            exists = true;
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != 404) {
+                log.warn("Cannot check the object " + objectKey + " of the bucket " + bucket + ": " + e.getMessage());
+                return true;
+            }
+            exists = false;
+        } catch (AmazonClientException e) {
+            log.warn("Cannot check the object " + objectKey + " of the bucket " + bucket + ": " + e.getMessage());
+            return true;
+        }
+        if (!exists) {
+            SheridanMetrics.EXISTENCE_MISSING.inc();
+        }
+        known.put(objectKey, exists ? State.EXISTS : State.MISSING);
+        return exists;
+    }
+
+    /**
+     * Start sweeping the bucket in the background
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sheridan-existence-index-" + bucket);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.execute(this::runSweep);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    protected void runSweep() {
+        long delay;
+        try {
+            delay = sweepPage() ? TimeUnit.SECONDS.toMillis(sweepInterval) : PAGE_DELAY_MILLIS;
+        } catch (RuntimeException e) {
+            // Anything thrown here would silently end the sweeps
+            log.warn("Cannot list the bucket " + bucket + ", retrying in " + RETRY_DELAY_MILLIS / 1000 + "s: "
+                    + e.getMessage());
+            delay = RETRY_DELAY_MILLIS;
+        }
+        ScheduledExecutorService s = scheduler;
+        if (s != null) {
+            try {
+                s.schedule(this::runSweep, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Stopped meanwhile
+            }
+        }
+    }
+
+    /**
+     * Sweep the whole bucket now, in the calling thread. Must not be called while the index is started.
+     */
+    public void sweep() {
+        while (!sweepPage()) {
+            // Next page
+        }
+    }
+
+    /**
+     * Add one page of keys to the filter being built. Return true if it was the last page: the new filter then
+     * replaces the current one.
+     */
+    protected boolean sweepPage() {
+
+        if (marker == null) {
+            sweepStartedAt = currentTimeMillis();
+        }
+        ListObjectsRequest request = new ListObjectsRequest().withBucketName(bucket)
+                                                             .withMarker(marker)
+                                                             .withMaxKeys(PAGE_SIZE);
+        ObjectListing listing = client.get().listObjects(request);
+        List<S3ObjectSummary> summaries = listing.getObjectSummaries();
+        synchronized (this) {
+            if (next == null) {
+                next = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expectedObjects, fpp);
+            }
+            for (S3ObjectSummary summary : summaries) {
+                next.put(summary.getKey());
+            }
+        }
+        swept += summaries.size();
+
+        if (listing.isTruncated()) {
+            // NextMarker is returned only with a delimiter
+            String nextMarker = listing.getNextMarker() != null ? listing.getNextMarker()
+                    : summaries.isEmpty() ? null : summaries.get(summaries.size() - 1).getKey();
+            if (nextMarker != null) {
+                marker = nextMarker;
+                return false;
+            }
+            // Nothing to continue from: give up this sweep (the current filter is kept) rather than loop on the page
+            log.warn("Truncated listing of the bucket " + bucket + " without any key after " + marker
+                    + ", the sweep is abandoned until the next one");
+            synchronized (this) {
+                next = null;
+            }
+            marker = null;
+            swept = 0;
+            return true;
+        }
+
+        synchronized (this) {
+            filterStartedAt = sweepStartedAt;
+            filter = next;
+            next = null;
+        }
+        if (swept > expectedObjects) {
+            log.warn("The bucket " + bucket + " has " + swept + " objects, more than the " + expectedObjects
+                    + " the existence index is sized for (" + CONF_KEY_NAME_EXPECTED_OBJECTS
+                    + "): false positives will be more frequent");
+        } else if (log.isDebugEnabled()) {
+            log.debug("Swept " + swept + " objects of the bucket " + bucket);
+        }
+        marker = null;
+        swept = 0;
+        return true;
+    }
+
+    /**
+     * Return true once a sweep has completed: lookups are then local, except for changed keys
+     */
+    public boolean isComplete() {
+        return filter != null;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+
+/**
+ * Credentials provider reloading the credentials from a {@link CredentialsSource} (a file, a local STS-like endpoint,
+ * ...), periodically once {@link #start(long)} is called, or when {@link #refresh()} is called.
+ * <p>
+ * The credentials are an immutable object swapped atomically: {@link #getCredentials()} never blocks, and a signing
+ * thread always gets a consistent key ID, secret key and session token (it must call {@link #getCredentials()} once
+ * per signature). The AWS clients read the provider for each request, so they do not have to be re-created.
+ * <p>
+ * Listeners are told when the credentials change, so they can drop what was derived from the retired ones (signing
+ * keys, cached URLs).
+ *
+ * @since 7.10
+ */
+public class RotatingAWSCredentialsProvider implements AWSCredentialsProvider {
+
+    private static final Log log = LogFactory.getLog(RotatingAWSCredentialsProvider.class);
+
+    /**
+     * Called when the credentials change
+     *
+     * @since 7.10
+     */
+    public interface Listener {
+        void credentialsChanged(AWSCredentials oldCredentials, AWSCredentials newCredentials);
+    }
+
+    protected final CredentialsSource source;
+
+    protected final AtomicReference<AWSCredentials> credentials;
+
+    protected final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    protected ScheduledExecutorService scheduler;
+
+    /**
+     * Create the provider, loading the credentials from the source
+     *
+     * @throws IOException if the credentials cannot be loaded
+     */
+    public RotatingAWSCredentialsProvider(CredentialsSource source) throws IOException {
+        this.source = source;
+        AWSCredentials initial = source.load();
+        if (initial == null) {
+            throw new IOException("No credentials in " + source);
+        }
+        credentials = new AtomicReference<>(initial);
+    }
+
+    @Override
+    public AWSCredentials getCredentials() {
+        return credentials.get();
+    }
+
+    /**
+     * Reload the credentials from the source. If they cannot be loaded, the current ones are kept.
+     * <p>
+     * Nothing is thrown: an exception would cancel the next refreshes of {@link #start(long)}, and the credentials would
+     * never rotate again.
+     */
+    @Override
+    public void refresh() {
+        try {
+            AWSCredentials loaded = source.load();
+            if (loaded != null) {
+                setCredentials(loaded);
+            }
+        } catch (IOException e) {
+            SheridanMetrics.CREDENTIALS_REFRESH_FAILURES.inc();
+            log.warn("Cannot reload the AWS credentials from " + source + ", keeping the current ones: "
+                    + e.getMessage());
+        } catch (RuntimeException e) {
+            SheridanMetrics.CREDENTIALS_REFRESH_FAILURES.inc();
+            log.error("Cannot reload the AWS credentials from " + source + ", keeping the current ones", e);
+        }
+    }
+
+    /**
+     * Replace the credentials, and tell the listeners if they changed
+     */
+    public void setCredentials(AWSCredentials newCredentials) {
+
+        AWSCredentials oldCredentials = credentials.getAndSet(newCredentials);
+        if (isSame(oldCredentials, newCredentials)) {
+            return;
+        }
+        SheridanMetrics.CREDENTIALS_ROTATIONS.inc();
+        log.info("AWS credentials changed, access key ID: " + newCredentials.getAWSAccessKeyId());
+        for (Listener listener : listeners) {
+            try {
+                listener.credentialsChanged(oldCredentials, newCredentials);
+            } catch (RuntimeException e) {
+                log.error("Error in a credentials listener", e);
+            }
+        }
+    }
+
+    protected static boolean isSame(AWSCredentials c1, AWSCredentials c2) {
+        return c1.getAWSAccessKeyId().equals(c2.getAWSAccessKeyId())
+                && c1.getAWSSecretKey().equals(c2.getAWSSecretKey())
+                && Objects.equals(getSessionToken(c1), getSessionToken(c2));
+    }
+
+    protected static String getSessionToken(AWSCredentials credentials) {
+        return credentials instanceof AWSSessionCredentials ? ((AWSSessionCredentials) credentials).getSessionToken()
+                : null;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Refresh the credentials every <code>intervalSeconds</code>, in a background thread, until {@link #stop()}
+     */
+    public synchronized void start(long intervalSeconds) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sheridan-credentials-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + source + ")";
+    }
+
+}
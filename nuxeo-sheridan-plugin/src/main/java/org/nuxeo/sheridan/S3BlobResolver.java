@@ -0,0 +1,169 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
+
+/**
+ * Finds where the S3 binary manager of Nuxeo stores a blob, so it can be downloaded directly from S3 with a signed URL
+ * instead of being streamed by the server.
+ * <p>
+ * The S3 binary manager stores a blob in the bucket <code>nuxeo.s3storage.bucket</code>, the key being the key of the
+ * blob (its digest) prefixed with <code>nuxeo.s3storage.bucket_prefix</code>. Only the blobs of this blob provider
+ * (<code>sheridan.blob.provider</code>, "default" unless the S3 binary manager is contributed under another name) are
+ * resolved: the blobs of other providers are not in this bucket. The credentials of Sheridan must be allowed to read
+ * this bucket. Blobs encrypted by the binary manager itself (<code>nuxeo.s3storage.crypt.keystore.file</code>, client-side
+ * encryption) cannot be downloaded directly: the resolver is then disabled.
+ *
+ * @since 7.10
+ */
+public class S3BlobResolver {
+
+    private static final Log log = LogFactory.getLog(S3BlobResolver.class);
+
+    public static final String CONF_KEY_NAME_BUCKET = "nuxeo.s3storage.bucket";
+
+    public static final String CONF_KEY_NAME_BUCKET_PREFIX = "nuxeo.s3storage.bucket_prefix";
+
+    public static final String CONF_KEY_NAME_REGION = "nuxeo.s3storage.region";
+
+    public static final String CONF_KEY_NAME_CRYPT_KEYSTORE = "nuxeo.s3storage.crypt.keystore.file";
+
+    public static final String CONF_KEY_NAME_CRYPT_SERVER_SIDE = "nuxeo.s3storage.crypt.serverside";
+
+    public static final String CONF_KEY_NAME_PROVIDER = "sheridan.blob.provider";
+
+    public static final String DEFAULT_PROVIDER = "default";
+
+    protected final String bucket;
+
+    protected final String prefix;
+
+    protected final String providerId;
+
+    protected final int defaultExpire;
+
+    public S3BlobResolver(String bucket, String prefix) {
+        this(bucket, prefix, DEFAULT_PROVIDER, S3TempSignedURLBuilder.DEFAULT_EXPIRE);
+    }
+
+    /**
+     * @param providerId the id of the blob provider of the S3 binary manager
+     * @param defaultExpire the expiration of the URLs, in seconds, when none is requested
+     */
+    public S3BlobResolver(String bucket, String prefix, String providerId, int defaultExpire) {
+        this.bucket = bucket;
+        this.prefix = StringUtils.defaultString(prefix);
+        this.providerId = providerId;
+        this.defaultExpire = defaultExpire;
+    }
+
+    /**
+     * Return a resolver for the configuration of the S3 binary manager, or null if blobs are not stored in S3 (or
+     * cannot be read directly). URLs expire after the default expiration of the configuration.
+     */
+    public static S3BlobResolver fromFramework(S3SignerConfig config) {
+        String bucket = S3SignerConfig.getProperty(CONF_KEY_NAME_BUCKET);
+        if (StringUtils.isBlank(bucket)) {
+            return null;
+        }
+        if (StringUtils.isNotBlank(S3SignerConfig.getProperty(CONF_KEY_NAME_CRYPT_KEYSTORE))
+                && !Boolean.parseBoolean(S3SignerConfig.getProperty(CONF_KEY_NAME_CRYPT_SERVER_SIDE))) {
+            log.warn("Blobs are encrypted by the S3 binary manager, they will not be downloaded directly from S3");
+            return null;
+        }
+        String providerId = StringUtils.defaultIfBlank(S3SignerConfig.getProperty(CONF_KEY_NAME_PROVIDER),
+                DEFAULT_PROVIDER).trim();
+        return new S3BlobResolver(bucket.trim(), S3SignerConfig.getProperty(CONF_KEY_NAME_BUCKET_PREFIX), providerId,
+                config.getDefaultExpire());
+    }
+
+    /**
+     * Return the request for a signed URL to the blob, with its MIME type and filename as response headers, or null if
+     * the blob is not a blob of the S3 binary manager.
+     *
+     * @param inline true to display the blob in the browser, false to download it (attachment)
+     */
+    public SignedURLRequest newRequest(Blob blob, int expireInSeconds, boolean inline) {
+        String key = getKey(blob);
+        if (key == null) {
+            return null;
+        }
+        if (expireInSeconds < 1) {
+            expireInSeconds = defaultExpire;
+        }
+        return new SignedURLRequest(bucket, key, expireInSeconds, StringUtils.trimToNull(blob.getMimeType()),
+                getContentDisposition(blob.getFilename(), inline));
+    }
+
+    /**
+     * Return the key of the blob in the bucket, or null if the blob is not a blob of the S3 binary manager
+     */
+    public String getKey(Blob blob) {
+        if (!(blob instanceof ManagedBlob) || !providerId.equals(((ManagedBlob) blob).getProviderId())) {
+            return null;
+        }
+        String key = ((ManagedBlob) blob).getKey();
+        if (StringUtils.isBlank(key)) {
+            return null;
+        }
+        // The key is prefixed with the provider id, unless it is the default provider of the repository
+        if (key.startsWith(providerId + ":")) {
+            key = key.substring(providerId.length() + 1);
+        }
+        return prefix + key;
+    }
+
+    /**
+     * Return the Content-Disposition of a file: the filename is given both in ASCII and in UTF-8 (RFC 5987), for the
+     * browsers not supporting the latter.
+     */
+    public static String getContentDisposition(String filename, boolean inline) {
+        String type = inline ? "inline" : "attachment";
+        if (StringUtils.isBlank(filename)) {
+            return type;
+        }
+        String ascii = filename.replaceAll("[^\\x20-\\x7E]", "_").replace('"', '_').replace('\\', '_');
+        try {
+            String encoded = URLEncoder.encode(filename, "UTF-8").replace("+", "%20");
+            return type + "; filename=\"" + ascii + "\"; filename*=UTF-8''" + encoded;
+        } catch (UnsupportedEncodingException e) {
+            // Cannot happen, UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public String getProviderId() {
+        return providerId;
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XNodeList;
+import org.nuxeo.common.xmap.annotation.XObject;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+
+/**
+ * A named S3 profile, contributed to the <code>profiles</code> extension point of
+ * <code>org.nuxeo.sheridan.component</code>, to sign URLs with other credentials, in another bucket or region, or with
+ * AWS clients tuned differently than the configuration of nuxeo.conf (which is the
+ * {@link S3SignerConfig#DEFAULT_PROFILE} one):
+ *
+ * <pre>
+ * {@code
+ * <extension target="org.nuxeo.sheridan.component" point="profiles">
+ *   <profile name="archives">
+ *     <accessKey>${archives.s3.key}</accessKey>
+ *     <secretKey>${archives.s3.secret}</secretKey>
+ *     <bucket>my-archives</bucket>
+ *     <region>eu-west-1</region>
+ *     <expireInSeconds>3600</expireInSeconds>
+ *     <allowedGroups>
+ *       <group>archivists</group>
+ *     </allowedGroups>
+ *     <client>
+ *       <maxConnections>200</maxConnections>
+ *       <socketTimeout>10000</socketTimeout>
+ *       <keepAlive>true</keepAlive>
+ *     </client>
+ *   </profile>
+ * </extension>
+ * }
+ * </pre>
+ *
+ * Instead of the keys, the credentials can be read from <code>credentialsFile</code> or <code>credentialsUrl</code>
+ * (see {@link RotatingAWSCredentialsProvider}). The other elements are optional and have the same meaning as their
+ * <code>sheridan.s3.*</code> counterpart in nuxeo.conf. Contributing a profile with the same name replaces it,
+ * <code>enabled="false"</code> removes it.
+ * <p>
+ * A profile selected by a client (the <code>profile</code> parameter of the operations and servlets) can only be used
+ * by the members of its <code>allowedGroups</code> and by administrators (see {@link #isAllowed(Principal)}): without
+ * groups, only administrators can select it. Server-side code (templates, listeners...) is not restricted.
+ *
+ * @since 7.10
+ */
+@XObject("profile")
+public class S3ProfileDescriptor {
+
+    @XNode("@name")
+    protected String name;
+
+    @XNode("@enabled")
+    protected boolean enabled = true;
+
+    @XNode("accessKey")
+    protected String accessKey;
+
+    @XNode("secretKey")
+    protected String secretKey;
+
+    @XNode("credentialsFile")
+    protected String credentialsFile;
+
+    @XNode("credentialsUrl")
+    protected String credentialsUrl;
+
+    @XNode("credentialsRefreshInterval")
+    protected int credentialsRefreshInterval = S3SignerConfig.DEFAULT_CREDENTIALS_REFRESH_INTERVAL;
+
+    @XNode("bucket")
+    protected String bucket;
+
+    @XNode("region")
+    protected String region;
+
+    @XNode("regionLookup")
+    protected boolean regionLookup = true;
+
+    @XNode("endpoint")
+    protected String endpoint;
+
+    @XNode("pathStyle")
+    protected boolean pathStyle;
+
+    @XNode("signer")
+    protected String signer;
+
+    @XNode("expireInSeconds")
+    protected int expireInSeconds;
+
+    @XNode("expirationWindow")
+    protected int expirationWindow;
+
+    @XNode("client/maxConnections")
+    protected int maxConnections;
+
+    @XNode("client/connectionTimeout")
+    protected int connectionTimeout;
+
+    @XNode("client/socketTimeout")
+    protected int socketTimeout;
+
+    @XNode("client/keepAlive")
+    protected boolean keepAlive;
+
+    @XNode("client/connectionTTL")
+    protected long connectionTTL;
+
+    @XNode("client/maxIdle")
+    protected long maxIdle;
+
+    @XNodeList(value = "allowedGroups/group", type = ArrayList.class, componentType = String.class)
+    protected List<String> allowedGroups = new ArrayList<>();
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Return the groups whose members can select the profile
+     *
+     * @since 7.10
+     */
+    public List<String> getAllowedGroups() {
+        return allowedGroups;
+    }
+
+    /**
+     * Return true if the user can select the profile: an administrator, or a member of one of the allowed groups.
+     *
+     * @since 7.10
+     */
+    public boolean isAllowed(Principal principal) {
+        if (!(principal instanceof NuxeoPrincipal)) {
+            return false;
+        }
+        NuxeoPrincipal user = (NuxeoPrincipal) principal;
+        if (user.isAdministrator()) {
+            return true;
+        }
+        List<String> groups = user.getAllGroups();
+        if (groups != null) {
+            for (String group : allowedGroups) {
+                if (groups.contains(group)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the configuration of the profile. The credentials file or URL, if any, is read now.
+     */
+    public S3SignerConfig toConfig() {
+
+        if (StringUtils.isBlank(name)) {
+            throw new NuxeoException("A Sheridan profile has no name");
+        }
+        S3SignerConfig config = new S3SignerConfig(accessKey, secretKey, bucket);
+        config = config.withProfile(name)
+                       .withRegion(region)
+                       .withRegionLookup(regionLookup)
+                       .withEndpoint(endpoint)
+                       .withPathStyle(pathStyle)
+                       .withSignerType(S3SignerConfig.SignerType.fromString(signer))
+                       .withDefaultExpire(expireInSeconds)
+                       .withExpirationWindow(expirationWindow)
+                       .withClientConfiguration(S3SignerConfig.newClientConfiguration(maxConnections,
+                               connectionTimeout, socketTimeout, keepAlive, connectionTTL, maxIdle))
+                       .withCredentialsRefreshInterval(credentialsRefreshInterval);
+        return config.withCredentialsFrom(credentialsFile, credentialsUrl);
+    }
+
+}
@@ -0,0 +1,454 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import com.amazonaws.HttpMethod;
+
+/**
+ * Downloads an object from S3 into a file, as parallel byte ranges of <code>partSize</code> bytes, using presigned
+ * URLs of the {@link S3TempSignedURLBuilder} (signed again for each attempt, so a long download does not outlive
+ * them).
+ * <ul>
+ * <li>The first range gives the size and the ETag of the object. The file is then preallocated, and each range is
+ * written at its position with {@link FileChannel#write(ByteBuffer, long)}, by <code>concurrency</code> threads. If
+ * the first response is the whole object (the <code>Range</code> header being ignored), there is nothing more to
+ * download.</li>
+ * <li>The other ranges are requested with <code>If-Match: {ETag}</code>, so a download fails instead of mixing two
+ * versions of an object replaced meanwhile.</li>
+ * <li>A range failing (network error, 5xx, truncated body) is retried <code>retries</code> times, with a backoff.</li>
+ * <li>The file is checked against the ETag: MD5 of the content for a simple upload, MD5 of the MD5 of the parts for a
+ * multipart upload (the size of its parts is read with a <code>HEAD ?partNumber=1</code>). The ETag of an object
+ * encrypted with SSE-KMS or SSE-C is not an MD5, such an object is not checked.</li>
+ * </ul>
+ *
+ * @since 7.10
+ */
+public class S3RangedDownloader {
+
+    private static final Log log = LogFactory.getLog(S3RangedDownloader.class);
+
+    public static final long DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+    public static final long MIN_PART_SIZE = 64 * 1024;
+
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    public static final int DEFAULT_RETRIES = 3;
+
+    public static final int CONNECT_TIMEOUT_MS = 10000;
+
+    public static final int READ_TIMEOUT_MS = 60000;
+
+    /**
+     * Lifetime of the URL of a range, signed for each attempt
+     */
+    protected static final int URL_EXPIRATION = 15 * 60;
+
+    protected static final long RETRY_DELAY_MS = 200;
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    protected static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    protected static final Pattern SIMPLE_ETAG = Pattern.compile("[0-9a-f]{32}");
+
+    protected static final Pattern MULTIPART_ETAG = Pattern.compile("[0-9a-f]{32}-(\\d+)");
+
+    protected final S3TempSignedURLBuilder builder;
+
+    protected final long partSize;
+
+    protected final int concurrency;
+
+    protected final int retries;
+
+    /**
+     * @param partSize the size of the ranges, at least {@value #MIN_PART_SIZE}; 0 for the default
+     * @param concurrency the number of ranges downloaded in parallel; 0 for the default
+     * @param retries the number of times a range is retried; negative for the default
+     */
+    public S3RangedDownloader(S3TempSignedURLBuilder builder, long partSize, int concurrency, int retries) {
+        this.builder = builder;
+        this.partSize = partSize <= 0 ? DEFAULT_PART_SIZE : Math.max(partSize, MIN_PART_SIZE);
+        this.concurrency = concurrency <= 0 ? DEFAULT_CONCURRENCY : concurrency;
+        this.retries = retries < 0 ? DEFAULT_RETRIES : retries;
+    }
+
+    /**
+     * The object downloaded
+     */
+    public static class Result {
+
+        protected final long size;
+
+        protected final String etag;
+
+        protected final String contentType;
+
+        protected final boolean verified;
+
+        protected Result(long size, String etag, String contentType, boolean verified) {
+            this.size = size;
+            this.etag = etag;
+            this.contentType = contentType;
+            this.verified = verified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * Return the content type of the object, or null if S3 returned none
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Return true if the content was checked against the ETag
+         */
+        public boolean isVerified() {
+            return verified;
+        }
+    }
+
+    /**
+     * The headers of the response to a range
+     */
+    protected static class RangeResponse {
+
+        protected long total;
+
+        protected String etag;
+
+        protected String contentType;
+
+        protected boolean encrypted;
+
+        /**
+         * True if the response has the whole object, not only the range
+         */
+        protected boolean complete;
+    }
+
+    /**
+     * Download the object (from the default bucket if <code>bucket</code> is blank) into the file, replacing it.
+     *
+     * @throws IOException if the object cannot be downloaded, or does not match its ETag
+     */
+    public Result download(String bucket, String objectKey, Path file) throws IOException {
+
+        String b = builder.newRequest(bucket, objectKey, 0, null, null).getBucket();
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            RangeResponse first = fetchWithRetries(b, objectKey, 0, partSize - 1, null, channel);
+            raf.setLength(first.total);
+
+            List<long[]> ranges = new ArrayList<>();
+            for (long start = first.complete ? first.total : partSize; start < first.total; start += partSize) {
+                ranges.add(new long[] { start, Math.min(start + partSize, first.total) - 1 });
+            }
+            if (!ranges.isEmpty()) {
+                fetchAll(b, objectKey, ranges, first.etag, channel);
+            }
+            channel.force(false);
+
+            boolean verified = false;
+            if (first.encrypted) {
+                log.debug("The ETag of " + objectKey + " is not an MD5 (encrypted object), the download is not "
+                        + "checked");
+            } else {
+                verified = verify(b, objectKey, first.etag, first.total, channel);
+            }
+            return new Result(first.total, first.etag, first.contentType, verified);
+        }
+    }
+
+    protected void fetchAll(String bucket, String objectKey, List<long[]> ranges, String etag, FileChannel channel)
+            throws IOException {
+
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, ranges.size()), runnable -> {
+            Thread thread = new Thread(runnable, "sheridan-download-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<RangeResponse>> futures = new ArrayList<>(ranges.size());
+            for (long[] range : ranges) {
+                futures.add(executor.submit(() -> fetchWithRetries(bucket, objectKey, range[0], range[1], etag,
+                        channel)));
+            }
+            for (Future<RangeResponse> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download of " + objectKey + " interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new NuxeoException("Cannot download " + objectKey, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    protected RangeResponse fetchWithRetries(String bucket, String objectKey, long start, long end, String etag,
+            FileChannel channel) throws IOException {
+
+        for (int attempt = 0;; attempt++) {
+            try {
+                return fetch(bucket, objectKey, start, end, etag, channel);
+            } catch (RetryableException e) {
+                if (attempt >= retries) {
+                    throw new IOException("Cannot download the bytes " + start + "-" + end + " of " + objectKey
+                            + " after " + (attempt + 1) + " attempts: " + e.getMessage(), e);
+                }
+                log.debug("Retrying the bytes " + start + "-" + end + " of " + objectKey + ": " + e.getMessage());
+                try {
+                    Thread.sleep(RETRY_DELAY_MS << attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download of " + objectKey + " interrupted");
+                }
+            }
+        }
+    }
+
+    /**
+     * Download the bytes <code>start</code> to <code>end</code> (inclusive) and write them at their position in the
+     * file.
+     */
+    protected RangeResponse fetch(String bucket, String objectKey, long start, long end, String etag,
+            FileChannel channel) throws IOException {
+
+        HttpURLConnection connection = open(HttpMethod.GET, bucket, objectKey, Collections.<String, String> emptyMap());
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+        if (etag != null) {
+            connection.setRequestProperty("If-Match", etag);
+        }
+        try {
+            int status;
+            try {
+                status = connection.getResponseCode();
+            } catch (IOException e) {
+                throw new RetryableException(e.getMessage(), e);
+            }
+            RangeResponse response = new RangeResponse();
+            response.etag = connection.getHeaderField("ETag");
+            response.contentType = connection.getContentType();
+            response.encrypted = connection.getHeaderField("x-amz-server-side-encryption-customer-algorithm") != null
+                    || "aws:kms".equals(connection.getHeaderField("x-amz-server-side-encryption"));
+            long expected;
+            if (status == HttpURLConnection.HTTP_PARTIAL) {
+                Matcher matcher = CONTENT_RANGE.matcher(StringUtils.defaultString(connection.getHeaderField(
+                        "Content-Range")));
+                if (!matcher.matches() || Long.parseLong(matcher.group(1)) != start) {
+                    throw new IOException("Unexpected Content-Range for " + objectKey + ": "
+                            + connection.getHeaderField("Content-Range"));
+                }
+                response.total = Long.parseLong(matcher.group(3));
+                expected = Long.parseLong(matcher.group(2)) - start + 1;
+            } else if (status == HttpURLConnection.HTTP_OK && start == 0) {
+                // Range ignored, the whole object is returned
+                response.total = connection.getContentLengthLong();
+                response.complete = true;
+                expected = response.total;
+            } else if (status == 416 && start == 0) {
+                // Empty object
+                response.complete = true;
+                return response;
+            } else if (status >= 500 || status == 429) {
+                throw new RetryableException("HTTP " + status, null);
+            } else if (status == HttpURLConnection.HTTP_PRECON_FAILED) {
+                throw new IOException("The object " + objectKey + " changed during its download");
+            } else {
+                throw new IOException("HTTP " + status + " for the bytes " + start + "-" + end + " of " + objectKey);
+            }
+
+            long written;
+            try (InputStream in = connection.getInputStream()) {
+                written = write(in, channel, start);
+            } catch (IOException e) {
+                throw new RetryableException(e.getMessage(), e);
+            }
+            if (written != expected) {
+                throw new RetryableException("Got " + written + " bytes instead of " + expected, null);
+            }
+            return response;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    protected HttpURLConnection open(HttpMethod method, String bucket, String objectKey,
+            Map<String, String> parameters) throws IOException {
+
+        SignedURL url = builder.sign(new SignedURLRequest(method, bucket, objectKey, URL_EXPIRATION, null, null,
+                parameters));
+        HttpURLConnection connection = (HttpURLConnection) new URL(url.getUrl()).openConnection();
+        connection.setRequestMethod(method.name());
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        return connection;
+    }
+
+    /**
+     * Write the stream at <code>position</code> in the file, and return the number of bytes written
+     */
+    protected static long write(InputStream in, FileChannel channel, long position) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long written = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+            while (bytes.hasRemaining()) {
+                written += channel.write(bytes, position + written);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Check the file against the ETag of the object. Return false if the ETag is not an MD5 that can be checked.
+     *
+     * @throws IOException if the content does not match
+     */
+    protected boolean verify(String bucket, String objectKey, String etag, long size, FileChannel channel)
+            throws IOException {
+
+        String value = StringUtils.strip(StringUtils.defaultString(etag), "\"").toLowerCase();
+        String computed;
+        if (SIMPLE_ETAG.matcher(value).matches()) {
+            computed = SigV4Presigner.toHex(md5(channel, 0, size));
+        } else {
+            Matcher matcher = MULTIPART_ETAG.matcher(value);
+            if (!matcher.matches()) {
+                log.debug("Unknown ETag format for " + objectKey + ": " + etag + ", the download is not checked");
+                return false;
+            }
+            int parts = Integer.parseInt(matcher.group(1));
+            long uploadPartSize = getUploadPartSize(bucket, objectKey);
+            if (uploadPartSize <= 0 || size <= (parts - 1) * uploadPartSize || size > parts * uploadPartSize) {
+                log.debug("The parts of " + objectKey + " do not have the same size, the download is not checked");
+                return false;
+            }
+            MessageDigest digests = newMD5();
+            for (int part = 0; part < parts; part++) {
+                long start = part * uploadPartSize;
+                digests.update(md5(channel, start, Math.min(uploadPartSize, size - start)));
+            }
+            computed = SigV4Presigner.toHex(digests.digest()) + "-" + parts;
+        }
+        if (!computed.equals(value)) {
+            throw new IOException("The content of " + objectKey + " does not match its ETag " + etag + ": "
+                    + computed);
+        }
+        return true;
+    }
+
+    /**
+     * Return the size of the first part of a multipart upload, or -1 if S3 does not tell
+     */
+    protected long getUploadPartSize(String bucket, String objectKey) throws IOException {
+        HttpURLConnection connection = open(HttpMethod.HEAD, bucket, objectKey,
+                Collections.singletonMap("partNumber", "1"));
+        try {
+            int status = connection.getResponseCode();
+            return status == HttpURLConnection.HTTP_PARTIAL || status == HttpURLConnection.HTTP_OK
+                    ? connection.getContentLengthLong() : -1;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    protected static byte[] md5(FileChannel channel, long start, long length) throws IOException {
+        MessageDigest md5 = newMD5();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE * 16);
+        long position = start;
+        long end = start + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            buffer.flip();
+            md5.update(buffer);
+            position += read;
+        }
+        return md5.digest();
+    }
+
+    protected static MessageDigest newMD5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Cannot happen, MD5 is always available
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A failure worth retrying: network error, 5xx or throttling, truncated body
+     */
+    protected static class RetryableException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        protected RetryableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+}
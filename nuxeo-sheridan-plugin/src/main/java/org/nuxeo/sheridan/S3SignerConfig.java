@@ -0,0 +1,636 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.api.Framework;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+
+/**
+ * Immutable snapshot of the configuration used to sign URLs: AWS key ID, secret key, default bucket, region and signer.
+ * <p>
+ * Optional settings are set with the <code>with...</code> methods, which return a modified copy.
+ * <p>
+ * The tuning of the AWS clients (<code>sheridan.s3.client.maxConnections</code>, <code>.connectionTimeout</code>,
+ * <code>.socketTimeout</code> in milliseconds, <code>.keepAlive</code>, <code>.connectionTTL</code> and
+ * <code>.maxIdle</code> in milliseconds) and the default expiration (<code>sheridan.s3.expireInSeconds</code>) are
+ * part of the snapshot.
+ * <p>
+ * The configuration read from nuxeo.conf is the {@link #DEFAULT_PROFILE} one. Other configurations are contributed as
+ * named profiles, see {@link S3ProfileDescriptor}.
+ * <p>
+ * Instead of a fixed key ID and secret key, the credentials can be read from a file
+ * (<code>sheridan.s3.credentials.file</code>) or a local endpoint (<code>sheridan.s3.credentials.url</code>), and
+ * reloaded every <code>sheridan.s3.credentials.refreshInterval</code> seconds (see
+ * {@link RotatingAWSCredentialsProvider}).
+ * <p>
+ * The snapshot is read once (typically when the {@link S3TempSignedURLService} component activates) so the signing
+ * code never has to look up the configuration again.
+ *
+ * @since 7.10
+ */
+public class S3SignerConfig implements Cloneable {
+
+    private static final Log log = LogFactory.getLog(S3SignerConfig.class);
+
+    public static final String CONF_KEY_NAME_REGION = "sheridan.s3.region";
+
+    public static final String CONF_KEY_NAME_SIGNER = "sheridan.s3.signer";
+
+    public static final String CONF_KEY_NAME_EXPIRATION_WINDOW = "sheridan.s3.expirationWindow";
+
+    public static final String CONF_KEY_NAME_ENDPOINT = "sheridan.s3.endpoint";
+
+    public static final String CONF_KEY_NAME_PATH_STYLE = "sheridan.s3.pathStyle";
+
+    public static final String CONF_KEY_NAME_REGION_LOOKUP = "sheridan.s3.regionLookup";
+
+    public static final String CONF_KEY_NAME_DEFAULT_EXPIRE = "sheridan.s3.expireInSeconds";
+
+    public static final String CONF_KEY_NAME_MAX_CONNECTIONS = "sheridan.s3.client.maxConnections";
+
+    public static final String CONF_KEY_NAME_CONNECTION_TIMEOUT = "sheridan.s3.client.connectionTimeout";
+
+    public static final String CONF_KEY_NAME_SOCKET_TIMEOUT = "sheridan.s3.client.socketTimeout";
+
+    public static final String CONF_KEY_NAME_KEEP_ALIVE = "sheridan.s3.client.keepAlive";
+
+    public static final String CONF_KEY_NAME_CONNECTION_TTL = "sheridan.s3.client.connectionTTL";
+
+    public static final String CONF_KEY_NAME_MAX_IDLE = "sheridan.s3.client.maxIdle";
+
+    /**
+     * The name of the configuration read from nuxeo.conf
+     */
+    public static final String DEFAULT_PROFILE = "default";
+
+    /**
+     * Prefix of the per-bucket settings: <code>sheridan.s3.bucket.{bucket}.region</code> and
+     * <code>sheridan.s3.bucket.{bucket}.pathStyle</code>
+     */
+    public static final String CONF_KEY_PREFIX_BUCKET = "sheridan.s3.bucket.";
+
+    public static final String CONF_KEY_SUFFIX_REGION = ".region";
+
+    public static final String CONF_KEY_SUFFIX_PATH_STYLE = ".pathStyle";
+
+    /**
+     * File to read (and reload when it changes) the credentials from, see {@link FileCredentialsSource}
+     */
+    public static final String CONF_KEY_NAME_CREDENTIALS_FILE = "sheridan.s3.credentials.file";
+
+    /**
+     * Local endpoint to read short-lived credentials from, see {@link HttpCredentialsSource}
+     */
+    public static final String CONF_KEY_NAME_CREDENTIALS_URL = "sheridan.s3.credentials.url";
+
+    public static final String CONF_KEY_NAME_CREDENTIALS_REFRESH_INTERVAL = "sheridan.s3.credentials.refreshInterval";
+
+    public static final int DEFAULT_CREDENTIALS_REFRESH_INTERVAL = 60;
+
+    public static final String DEFAULT_REGION = "us-east-1";
+
+    /**
+     * How URLs are signed
+     *
+     * @since 7.10
+     */
+    public enum SignerType {
+        /** With {@link SigV4Presigner}, the default */
+        JDK,
+        /** With the AWS client (<code>AmazonS3Client.generatePresignedUrl</code>) */
+        SDK,
+        /**
+         * With the AWS client, also signing with {@link SigV4Presigner} and logging an error if the URLs differ. For
+         * testing only.
+         */
+        VERIFY;
+
+        public static SignerType fromString(String value) {
+            return StringUtils.isBlank(value) ? JDK : valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    protected final String accessKeyId;
+
+    protected final String secretAccessKey;
+
+    protected final String bucket;
+
+    protected AWSCredentialsProvider credentialsProvider;
+
+    protected int credentialsRefreshInterval = DEFAULT_CREDENTIALS_REFRESH_INTERVAL;
+
+    protected String region = DEFAULT_REGION;
+
+    protected SignerType signerType = SignerType.JDK;
+
+    protected String profile = DEFAULT_PROFILE;
+
+    protected int defaultExpire = S3TempSignedURLBuilder.DEFAULT_EXPIRE;
+
+    protected ClientConfiguration clientConfiguration = new ClientConfiguration();
+
+    protected int expirationWindow = 0;
+
+    protected String endpoint;
+
+    protected boolean pathStyle = false;
+
+    protected boolean regionLookup = true;
+
+    protected Map<String, String> bucketRegions = Collections.emptyMap();
+
+    protected Map<String, Boolean> bucketPathStyles = Collections.emptyMap();
+
+    public S3SignerConfig(String accessKeyId, String secretAccessKey, String bucket) {
+        this.accessKeyId = accessKeyId;
+        this.secretAccessKey = secretAccessKey;
+        this.bucket = StringUtils.isBlank(bucket) ? null : bucket;
+
+        if (StringUtils.isNotBlank(accessKeyId) && StringUtils.isNotBlank(secretAccessKey)) {
+            credentialsProvider = new SimpleAWSCredentialProvider(accessKeyId, secretAccessKey);
+        } else {
+            credentialsProvider = null;
+        }
+    }
+
+    /**
+     * Reads the configuration (<code>sheridan.s3.key</code>, <code>sheridan.s3.secret</code> and
+     * <code>sheridan.s3.bucket</code>), the optional settings and the per-bucket settings.
+     *
+     * @since 7.10
+     */
+    public static S3SignerConfig fromFramework() {
+        S3SignerConfig config = new S3SignerConfig(getProperty(S3TempSignedURLBuilder.CONF_KEY_NAME_ACCESS_KEY),
+                getProperty(S3TempSignedURLBuilder.CONF_KEY_NAME_SECRET_KEY),
+                getProperty(S3TempSignedURLBuilder.CONF_KEY_NAME_BUCKET));
+        config = config.withRegion(getProperty(CONF_KEY_NAME_REGION))
+                       .withSignerType(SignerType.fromString(getProperty(CONF_KEY_NAME_SIGNER)))
+                       .withExpirationWindow(NumberUtils.toInt(getProperty(CONF_KEY_NAME_EXPIRATION_WINDOW), 0))
+                       .withEndpoint(getProperty(CONF_KEY_NAME_ENDPOINT))
+                       .withPathStyle(Boolean.parseBoolean(getProperty(CONF_KEY_NAME_PATH_STYLE)))
+                       .withRegionLookup(!"false".equals(getProperty(CONF_KEY_NAME_REGION_LOOKUP)))
+                       .withDefaultExpire(NumberUtils.toInt(getProperty(CONF_KEY_NAME_DEFAULT_EXPIRE), 0))
+                       .withClientConfiguration(newClientConfiguration(
+                               NumberUtils.toInt(getProperty(CONF_KEY_NAME_MAX_CONNECTIONS), 0),
+                               NumberUtils.toInt(getProperty(CONF_KEY_NAME_CONNECTION_TIMEOUT), 0),
+                               NumberUtils.toInt(getProperty(CONF_KEY_NAME_SOCKET_TIMEOUT), 0),
+                               Boolean.parseBoolean(getProperty(CONF_KEY_NAME_KEEP_ALIVE)),
+                               NumberUtils.toLong(getProperty(CONF_KEY_NAME_CONNECTION_TTL), 0),
+                               NumberUtils.toLong(getProperty(CONF_KEY_NAME_MAX_IDLE), 0)));
+
+        config = config.withCredentialsRefreshInterval(NumberUtils.toInt(
+                getProperty(CONF_KEY_NAME_CREDENTIALS_REFRESH_INTERVAL), DEFAULT_CREDENTIALS_REFRESH_INTERVAL));
+        config = config.withCredentialsFrom(getProperty(CONF_KEY_NAME_CREDENTIALS_FILE),
+                getProperty(CONF_KEY_NAME_CREDENTIALS_URL));
+
+        SheridanMetrics.CONFIG_LOOKUPS.inc();
+        Properties properties = Framework.getProperties();
+        for (String name : properties.stringPropertyNames()) {
+            if (!name.startsWith(CONF_KEY_PREFIX_BUCKET)) {
+                continue;
+            }
+            String value = properties.getProperty(name);
+            if (name.endsWith(CONF_KEY_SUFFIX_REGION)) {
+                config = config.withBucketRegion(
+                        name.substring(CONF_KEY_PREFIX_BUCKET.length(), name.length() - CONF_KEY_SUFFIX_REGION.length()),
+                        value);
+            } else if (name.endsWith(CONF_KEY_SUFFIX_PATH_STYLE)) {
+                config = config.withBucketPathStyle(
+                        name.substring(CONF_KEY_PREFIX_BUCKET.length(),
+                                name.length() - CONF_KEY_SUFFIX_PATH_STYLE.length()), Boolean.parseBoolean(value));
+            }
+        }
+        // The region of the bucket of the S3 binary manager is known
+        String blobBucket = getProperty(S3BlobResolver.CONF_KEY_NAME_BUCKET);
+        String blobRegion = getProperty(S3BlobResolver.CONF_KEY_NAME_REGION);
+        if (StringUtils.isNotBlank(blobBucket) && StringUtils.isNotBlank(blobRegion)
+                && config.getBucketRegion(blobBucket.trim()) == null) {
+            config = config.withBucketRegion(blobBucket.trim(), blobRegion);
+        }
+        return config;
+    }
+
+    /**
+     * Return the settings of the AWS clients. A value less than 1 keeps the default of the AWS client.
+     *
+     * @param keepAlive true to send TCP keep-alive probes on idle connections
+     * @param connectionTTL how long a pooled connection can be reused, in milliseconds
+     * @param maxIdle how long a pooled connection can stay idle, in milliseconds
+     * @since 7.10
+     */
+    public static ClientConfiguration newClientConfiguration(int maxConnections, int connectionTimeout,
+            int socketTimeout, boolean keepAlive, long connectionTTL, long maxIdle) {
+        ClientConfiguration clientConfiguration = new ClientConfiguration();
+        if (maxConnections > 0) {
+            clientConfiguration.setMaxConnections(maxConnections);
+        }
+        if (connectionTimeout > 0) {
+            clientConfiguration.setConnectionTimeout(connectionTimeout);
+        }
+        if (socketTimeout > 0) {
+            clientConfiguration.setSocketTimeout(socketTimeout);
+        }
+        clientConfiguration.setUseTcpKeepAlive(keepAlive);
+        if (connectionTTL > 0) {
+            clientConfiguration.setConnectionTTL(connectionTTL);
+        }
+        if (maxIdle > 0) {
+            clientConfiguration.setConnectionMaxIdleMillis(maxIdle);
+        }
+        return clientConfiguration;
+    }
+
+    /**
+     * Read a configuration property. All the Sheridan code reads the configuration with this method, so the lookups
+     * are counted (see {@link SheridanMetrics#CONFIG_LOOKUPS}).
+     *
+     * @since 7.10
+     */
+    public static String getProperty(String key) {
+        SheridanMetrics.CONFIG_LOOKUPS.inc();
+        return Framework.getProperty(key);
+    }
+
+    /**
+     * Return a copy using this region. A blank region means {@link #DEFAULT_REGION}.
+     *
+     * @since 7.10
+     */
+    public S3SignerConfig withRegion(String region) {
+        S3SignerConfig copy = copy();
+        copy.region = StringUtils.isBlank(region) ? DEFAULT_REGION : region.trim();
+        return copy;
+    }
+
+    /**
+     * Return a copy named after this profile
+     *
+     * @since 7.10
+     */
+    public S3SignerConfig withProfile(String profile) {
+        S3SignerConfig copy = copy();
+        copy.profile = StringUtils.isBlank(profile) ? DEFAULT_PROFILE : profile.trim();
+        return copy;
+    }
+
+    /**
+     * Return a copy where URLs expire after <code>seconds</code> when no expiration is requested. Less than 1 means
+     * {@link S3TempSignedURLBuilder#DEFAULT_EXPIRE}.
+     *
+     * @since 7.10
+     */
+    public S3SignerConfig withDefaultExpire(int seconds) {
+        S3SignerConfig copy = copy();
+        copy.defaultExpire = seconds < 1 ? S3TempSignedURLBuilder.DEFAULT_EXPIRE : seconds;
+        return copy;
+    }
+
+    /**
+     * Return a copy creating the AWS clients with these settings (see
+     * {@link #newClientConfiguration(int, int, int, boolean, long, long)}). The signer is set by the builder.
+     *
+     * @since 7.10
+     */
+    public S3SignerConfig withClientConfiguration(ClientConfiguration clientConfiguration) {
+        S3SignerConfig copy = copy();
+        copy.clientConfiguration = copy(clientConfiguration);
+        return copy;
+    }
+
+    /**
+     * Return a copy using this signer
+     *
+     * @since 7.10
+     */
+    public S3SignerConfig withSignerType(SignerType signerType) {
+        S3SignerConfig copy = copy();
+        copy.signerType = signerType;
+        return copy;
+    }
+
+    /**
+     * Return a copy quantizing the expiration to windows of <code>seconds</code> (0, the default, means no
+     * quantization). See {@link S3TempSignedURLBuilder}.
+     *
+     * @since 7.10
+     */
+    public S3SignerConfig withExpirationWindow(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("The expiration window cannot be negative: " + seconds);
+        }
+        S3SignerConfig copy = copy();
+        copy.expirationWindow = seconds;
+        return copy;
+    }
+
+    /**
+     * Return a copy using this endpoint instead of the AWS one of the region, typically to use a local S3-compatible
+     * server (<code>http://localhost:9000</code> for example). A blank endpoint means the AWS one. The region is still
+     * used for signing.
+     *
+     * @since 7.10
+     */
+    public S3SignerConfig withEndpoint(String endpoint) {
+        S3SignerConfig copy = copy();
+        if (StringUtils.isBlank(endpoint)) {
+            copy.endpoint = null;
+        } else {
+            copy.endpoint = endpoint.contains("://") ? endpoint.trim() : "https://" + endpoint.trim();
+        }
+        return copy;
+    }
+
+    /**
+     * Return a copy using path-style URLs (<code>https://endpoint/bucket/key</code>) instead of virtual-hosted ones
+     * (<code>https://bucket.endpoint/key</code>)
+     *
+     * @since 7.10
+     */
+    public S3SignerConfig withPathStyle(boolean pathStyle) {
+        S3SignerConfig copy = copy();
+        copy.pathStyle = pathStyle;
+        return copy;
+    }
+
+    /**
+     * Return a copy looking up (<code>true</code>, the default) or not the region of the buckets having no configured
+     * region. Without lookup, these buckets are in the default region.
+     *
+     * @since 7.10
+     */
+    public S3SignerConfig withRegionLookup(boolean regionLookup) {
+        S3SignerConfig copy = copy();
+        copy.regionLookup = regionLookup;
+        return copy;
+    }
+
+    /**
+     * Return a copy where <code>bucket</code> is in <code>region</code>, so its region is not looked up
+     *
+     * @since 7.10
+     */
+    public S3SignerConfig withBucketRegion(String bucket, String region) {
+        S3SignerConfig copy = copy();
+        Map<String, String> regions = new HashMap<>(bucketRegions);
+        if (StringUtils.isBlank(region)) {
+            regions.remove(bucket);
+        } else {
+            regions.put(bucket, region.trim());
+        }
+        copy.bucketRegions = Collections.unmodifiableMap(regions);
+        return copy;
+    }
+
+    /**
+     * Return a copy using path-style URLs, or not, for <code>bucket</code>, whatever {@link #isPathStyle()}
+     *
+     * @since 7.10
+     */
+    public S3SignerConfig withBucketPathStyle(String bucket, boolean pathStyle) {
+        S3SignerConfig copy = copy();
+        Map<String, Boolean> pathStyles = new HashMap<>(bucketPathStyles);
+        pathStyles.put(bucket, Boolean.valueOf(pathStyle));
+        copy.bucketPathStyles = Collections.unmodifiableMap(pathStyles);
+        return copy;
+    }
+
+    /**
+     * Return a copy using this credentials provider instead of the key ID and secret key of the configuration.
+     *
+     * @since 7.10
+     */
+    public S3SignerConfig withCredentialsProvider(AWSCredentialsProvider credentialsProvider) {
+        S3SignerConfig copy = copy();
+        copy.credentialsProvider = credentialsProvider;
+        return copy;
+    }
+
+    /**
+     * Return a copy reading the credentials from <code>credentialsFile</code>, or else from
+     * <code>credentialsUrl</code>, with a {@link RotatingAWSCredentialsProvider}. If both are blank, the copy keeps the
+     * current credentials.
+     *
+     * @since 7.10
+     */
+    public S3SignerConfig withCredentialsFrom(String credentialsFile, String credentialsUrl) {
+        CredentialsSource source = null;
+        if (StringUtils.isNotBlank(credentialsFile)) {
+            source = new FileCredentialsSource(Paths.get(credentialsFile.trim()));
+        } else if (StringUtils.isNotBlank(credentialsUrl)) {
+            try {
+                source = new HttpCredentialsSource(new URL(credentialsUrl.trim()));
+            } catch (MalformedURLException e) {
+                throw new NuxeoException("Invalid credentials URL: " + credentialsUrl, e);
+            }
+        }
+        if (source != null) {
+            try {
+                return withCredentialsProvider(new RotatingAWSCredentialsProvider(source));
+            } catch (IOException e) {
+                // No credentials: the service will try again on first use
+                log.error("Cannot load the AWS credentials from " + source + ": " + e.getMessage());
+                return withCredentialsProvider(null);
+            }
+        }
+        return copy();
+    }
+
+    /**
+     * Return a copy refreshing the credentials every <code>seconds</code> (when the provider is a
+     * {@link RotatingAWSCredentialsProvider})
+     *
+     * @since 7.10
+     */
+    public S3SignerConfig withCredentialsRefreshInterval(int seconds) {
+        if (seconds < 1) {
+            throw new IllegalArgumentException("The credentials refresh interval must be positive: " + seconds);
+        }
+        S3SignerConfig copy = copy();
+        copy.credentialsRefreshInterval = seconds;
+        return copy;
+    }
+
+    protected static ClientConfiguration copy(ClientConfiguration clientConfiguration) {
+        ClientConfiguration copy = new ClientConfiguration(clientConfiguration);
+        // Not copied by the copy constructor of the AWS SDK 1.10
+        copy.setUseTcpKeepAlive(clientConfiguration.useTcpKeepAlive());
+        return copy;
+    }
+
+    protected S3SignerConfig copy() {
+        try {
+            return (S3SignerConfig) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean hasCredentials() {
+        return credentialsProvider != null;
+    }
+
+    /**
+     * Return the key ID of the configuration. The one actually used is the one of the credentials provider, which can
+     * differ (see {@link #withCredentialsProvider(AWSCredentialsProvider)}).
+     */
+    public String getAccessKeyId() {
+        return accessKeyId;
+    }
+
+    public String getSecretAccessKey() {
+        return secretAccessKey;
+    }
+
+    /**
+     * Return the default bucket, or null if none was configured
+     */
+    public String getBucket() {
+        return bucket;
+    }
+
+    /**
+     * Return the default bucket and the buckets having their own settings
+     *
+     * @since 7.10
+     */
+    public Set<String> getConfiguredBuckets() {
+        Set<String> buckets = new LinkedHashSet<>();
+        if (bucket != null) {
+            buckets.add(bucket);
+        }
+        buckets.addAll(bucketRegions.keySet());
+        buckets.addAll(bucketPathStyles.keySet());
+        return buckets;
+    }
+
+    public AWSCredentialsProvider getCredentialsProvider() {
+        return credentialsProvider;
+    }
+
+    /**
+     * Return the refresh interval of the credentials, in seconds
+     */
+    public int getCredentialsRefreshInterval() {
+        return credentialsRefreshInterval;
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    public SignerType getSignerType() {
+        return signerType;
+    }
+
+    /**
+     * Return the name of the profile, {@link #DEFAULT_PROFILE} for the configuration of nuxeo.conf
+     *
+     * @since 7.10
+     */
+    public String getProfile() {
+        return profile;
+    }
+
+    /**
+     * Return the expiration of the URLs, in seconds, when none is requested
+     *
+     * @since 7.10
+     */
+    public int getDefaultExpire() {
+        return defaultExpire;
+    }
+
+    /**
+     * Return the expiration, in seconds, of a URL whose expiration is requested by a client (a query parameter for
+     * example): the client can shorten the default expiration, not extend it.
+     *
+     * @since 7.10
+     */
+    public int clampExpire(int expireInSeconds) {
+        return expireInSeconds < 1 ? defaultExpire : Math.min(expireInSeconds, defaultExpire);
+    }
+
+    /**
+     * Return a copy of the settings of the AWS clients
+     *
+     * @since 7.10
+     */
+    public ClientConfiguration getClientConfiguration() {
+        return copy(clientConfiguration);
+    }
+
+    /**
+     * Return the expiration window in seconds, 0 if the expiration is not quantized
+     */
+    public int getExpirationWindow() {
+        return expirationWindow;
+    }
+
+    /**
+     * Return the endpoint URL, or null to use the AWS endpoint of the region
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public boolean isPathStyle() {
+        return pathStyle;
+    }
+
+    /**
+     * Return true if the URLs of this bucket are path-style
+     *
+     * @since 7.10
+     */
+    public boolean isPathStyle(String bucket) {
+        Boolean bucketPathStyle = bucketPathStyles.get(bucket);
+        return bucketPathStyle == null ? pathStyle : bucketPathStyle.booleanValue();
+    }
+
+    public boolean isRegionLookup() {
+        return regionLookup;
+    }
+
+    /**
+     * Return the configured region of this bucket, or null if it must be looked up
+     *
+     * @since 7.10
+     */
+    public String getBucketRegion(String bucket) {
+        return bucketRegions.get(bucket);
+    }
+
+}
@@ -17,20 +17,53 @@
 package org.nuxeo.sheridan;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.sheridan.S3SignerConfig.SignerType;
 
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.HttpMethod;
-import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.RegionUtils;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.services.s3.internal.BucketNameUtils;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 
 /**
  * This class builds a Temporary Signed Url to access a file in a S3 bucket.
@@ -43,11 +76,33 @@ import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
  * <p>
  * Once these keys have been defined in the configuration, the class allows to build a temporary signed URL to an object
  * stored in AWS S3, in a specified bucket.
+ * <p>
+ * URLs are signed with {@link SigV4Presigner} unless <code>sheridan.s3.signer</code> is set to <code>sdk</code> (sign with
+ * the AWS client, as in previous versions) or <code>verify</code> (sign with both and log an error if they disagree).
+ * <p>
+ * Besides GET URLs, the builder signs PUT URLs and the part URLs of multipart uploads, so browsers can upload directly
+ * to S3. <code>sheridan.s3.endpoint</code> (and <code>sheridan.s3.pathStyle</code>) allow to use an S3-compatible
+ * server instead of AWS, typically for testing.
+ * <p>
+ * The URLs of a bucket point to the endpoint of its region (see {@link BucketRegionResolver}), so clients are not
+ * redirected. The builder creates one AWS client per region used. Path-style URLs can be set per bucket
+ * (<code>sheridan.s3.bucket.{bucket}.pathStyle</code>).
+ * <p>
+ * When <code>sheridan.s3.expirationWindow</code> is set (in seconds), the signing time is rounded down to the start of
+ * the current window and the expiration is extended by the window, so every caller during the same window (on any
+ * node) gets the same, byte-identical URL, which browsers, proxies and CDNs can cache. The URL is still valid for at
+ * least the requested duration. The AWS client builds identical URLs only with SigV2 (its default for us-east-1
+ * buckets), its SigV4 signer always uses the current time.
+ * <p>
+ * A builder is thread-safe. Creating one is expensive (it creates an AWS client), so callers should use the one shared
+ * by the {@link S3TempSignedURLService} instead of creating their own.
  * 
  * @since 7.10
  */
 public class S3TempSignedURLBuilder {
 
+    private static final Log log = LogFactory.getLog(S3TempSignedURLBuilder.class);
+
     public static final String CONF_KEY_NAME_ACCESS_KEY = "sheridan.s3.key";
 
     public static final String CONF_KEY_NAME_SECRET_KEY = "sheridan.s3.secret";
@@ -56,32 +111,82 @@ public class S3TempSignedURLBuilder {
 
     public static final int DEFAULT_EXPIRE = 60 * 20; // 20mn
 
-    private static AWSCredentialsProvider awsCredentialsProvider = null;
+    /**
+     * The SigV4 signer of the AWS client, used unless the signer is {@link SignerType#SDK}
+     */
+    public static final String SDK_SIGV4_SIGNER = "AWSS3V4SignerType";
 
-    protected AmazonS3 s3;
+    /**
+     * Maximum number of parts of a multipart upload
+     */
+    public static final int MAX_UPLOAD_PARTS = 10000;
 
-    protected static String awsAccessKeyId = null;
+    protected static final Pattern IPV4_ADDRESS = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
 
-    protected static String awsSecretAccessKey = null;
+    protected static final DateTimeFormatter AMZ_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
 
-    protected static String awsBucket = null;
+    /**
+     * Batches larger than this are split and signed in parallel
+     */
+    public static final int BATCH_SPLIT_THRESHOLD = 64;
 
+    protected final S3SignerConfig config;
+
+    /**
+     * The AWS client of the default region
+     */
+    protected final AmazonS3 s3;
+
+    /**
+     * The endpoints by region (and path style), created on first use
+     */
+    protected final ConcurrentMap<String, Endpoint> endpoints;
+
+    protected final BucketRegionResolver regionResolver;
+
+    /**
+     * Return a builder sharing the configuration and the AWS client of the {@link S3TempSignedURLService}.
+     *
+     * @deprecated since 7.10, use <code>Framework.getService(S3TempSignedURLService.class)</code>
+     */
+    @Deprecated
     public S3TempSignedURLBuilder() {
+        this(Framework.getService(S3TempSignedURLService.class).getBuilder());
+    }
 
-        if (StringUtils.isBlank(awsBucket)) {
-            awsBucket = Framework.getProperty(CONF_KEY_NAME_BUCKET);
-            // Having no bucket name in the config is ok if a bucket is passed as argument to buld().
-        }
+    /**
+     * Create a builder with its own AWS client. The builder is thread-safe and should be reused: creating the client
+     * is expensive.
+     *
+     * @since 7.10
+     */
+    public S3TempSignedURLBuilder(S3SignerConfig config) {
 
-        buildCredentiaProvider();
-        if (awsCredentialsProvider == null) {
+        // Having no bucket name in the config is ok if a bucket is passed as argument to buld().
+        if (!config.hasCredentials()) {
             throw new NuxeoException("AWS Access Key ID (" + CONF_KEY_NAME_ACCESS_KEY + ") and/or Secret Access Key ("
                     + CONF_KEY_NAME_SECRET_KEY
                     + ") are missing or invalid. Are they correctly set-up in the configuration?");
 
         }
 
-        s3 = new AmazonS3Client(awsCredentialsProvider);
+        this.config = config;
+        endpoints = new ConcurrentHashMap<>();
+        s3 = getEndpoint(config.getRegion(), config.isPathStyle()).client;
+        regionResolver = new BucketRegionResolver(config,
+                () -> getEndpoint(BucketRegionResolver.LOOKUP_REGION, false).client);
+    }
+
+    /**
+     * Create a builder sharing the configuration and the AWS clients of <code>other</code>.
+     *
+     * @since 7.10
+     */
+    protected S3TempSignedURLBuilder(S3TempSignedURLBuilder other) {
+        config = other.config;
+        s3 = other.s3;
+        endpoints = other.endpoints;
+        regionResolver = other.regionResolver;
     }
 
     /**
@@ -92,8 +197,8 @@ public class S3TempSignedURLBuilder {
      * <p>
      * <ul>
      * <li>If <code>bucket</code> is empty (null, "", " ", ....), the bucket defined in the configuration is used.</li>
-     * <li>If <code>expireInSeconds</code> is less than 1, the default
-     * <code>S3TempSignedURLBuilder.DEFAULT_EXPIRE</code> is used</li> <li><code>contentType</code> and
+     * <li>If <code>expireInSeconds</code> is less than 1, the default of the configuration
+     * (<code>S3TempSignedURLBuilder.DEFAULT_EXPIRE</code> unless set) is used</li> <li><code>contentType</code> and
      * <code>contentDisposition</code> can be null or "", but it is recommended to set them to make sure the is no
      * ambiguity when the URL is used (a key without a file extension for example)</li> </ul>
      * <p>
@@ -110,42 +215,278 @@ public class S3TempSignedURLBuilder {
     public String build(String bucket, String objectKey, int expireInSeconds, String contentType,
             String contentDisposition) throws IOException {
 
-        if (StringUtils.isBlank(bucket)) {
-            bucket = awsBucket;
+        return sign(newRequest(bucket, objectKey, expireInSeconds, contentType, contentDisposition)).getUrl();
+
+    }
+
+    /**
+     * Return a request where the default values are resolved (see
+     * {@link #build(String, String, int, String, String)}), so two requests for the same object and parameters are
+     * always equal.
+     *
+     * @since 7.10
+     */
+    public SignedURLRequest newRequest(String bucket, String objectKey, int expireInSeconds, String contentType,
+            String contentDisposition) {
+
+        bucket = resolveBucket(bucket);
+
+        if (expireInSeconds < 1) {
+            expireInSeconds = config.getDefaultExpire();
         }
-        if (StringUtils.isBlank(bucket)) {
-            throw new NuxeoException("No bucket provided, and configuration key " + CONF_KEY_NAME_BUCKET
-                    + " is missing.");
+
+        return new SignedURLRequest(bucket, objectKey, expireInSeconds, StringUtils.trimToNull(contentType),
+                StringUtils.trimToNull(contentDisposition));
+    }
+
+    /**
+     * Sign the request. Default values must already be resolved (see
+     * {@link #newRequest(String, String, int, String, String)}).
+     *
+     * @since 7.10
+     */
+    public SignedURL sign(SignedURLRequest request) throws IOException {
+        return sign(request, System.currentTimeMillis());
+    }
+
+    /**
+     * Sign all the requests in one call, all of them sharing the same signing time (so, the same expiration time for
+     * the same <code>expireInSeconds</code>). Large batches are split and signed in parallel in the common fork-join
+     * pool.
+     * <p>
+     * Default values must already be resolved (see {@link #newRequest(String, String, int, String, String)}). The
+     * returned map is in the same order as <code>requests</code>, duplicates being signed only once.
+     *
+     * @since 7.10
+     */
+    public Map<SignedURLRequest, SignedURL> signAll(Collection<SignedURLRequest> requests) throws IOException {
+
+        List<SignedURLRequest> distinct = new ArrayList<>(new LinkedHashSet<>(requests));
+        long now = System.currentTimeMillis();
+        ForkJoinPool pool = getSigningPool();
+        if (distinct.size() <= BATCH_SPLIT_THRESHOLD || pool.getParallelism() < 2) {
+            return signSequentially(distinct, now);
         }
+        try {
+            return pool.invoke(new SignTask(distinct, now));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
 
-        Date expiration = new Date();
-        if (expireInSeconds < 1) {
-            expireInSeconds = DEFAULT_EXPIRE;
+    /**
+     * Return the URLs of all the requests, see {@link #signAll(Collection)}.
+     *
+     * @since 7.10
+     */
+    public Map<SignedURLRequest, String> buildAll(Collection<SignedURLRequest> requests) throws IOException {
+
+        Map<SignedURLRequest, String> urls = new LinkedHashMap<>();
+        for (Map.Entry<SignedURLRequest, SignedURL> entry : signAll(requests).entrySet()) {
+            urls.put(entry.getKey(), entry.getValue().getUrl());
+        }
+        return urls;
+    }
+
+    /**
+     * Return the pool signing the large batches in parallel, the common fork-join pool
+     */
+    protected ForkJoinPool getSigningPool() {
+        return ForkJoinPool.commonPool();
+    }
+
+    protected Map<SignedURLRequest, SignedURL> signSequentially(List<SignedURLRequest> requests, long now)
+            throws IOException {
+
+        Map<SignedURLRequest, SignedURL> urls = new LinkedHashMap<>();
+        for (SignedURLRequest request : requests) {
+            urls.put(request, sign(request, now));
+        }
+        return urls;
+    }
+
+    protected SignedURL sign(SignedURLRequest request, long now) throws IOException {
+        long start = System.nanoTime();
+        SignedURL url = signUnrecorded(request, now);
+        SheridanMetrics.recordSigning(request.getBucket(), System.nanoTime() - start);
+        return url;
+    }
+
+    /**
+     * Same as {@link #sign(SignedURLRequest, long)}, without recording the signing in the {@link SheridanMetrics} (for
+     * the {@link SheridanWarmUp}, whose dummy signatures are not served).
+     *
+     * @since 7.10
+     */
+    protected SignedURL signUnrecorded(SignedURLRequest request, long now) throws IOException {
+
+        long signedAt = now;
+        long expiresInSeconds = request.getExpireInSeconds();
+        int window = config.getExpirationWindow();
+        if (window > 0) {
+            // Everybody signing during the same window gets the same URL, still valid for at least expireInSeconds
+            // (within the 7 days limit of SigV4)
+            signedAt = now - Math.floorMod(now, window * 1000L);
+            expiresInSeconds = Math.min(expiresInSeconds + window, SigV4Presigner.MAX_EXPIRES_IN_SECONDS);
+        }
+
+        SignedURL url;
+        switch (config.getSignerType()) {
+        case SDK:
+            url = sdkSign(request, signedAt, signedAt + expiresInSeconds * 1000);
+            break;
+        case VERIFY:
+            url = verifySign(request, signedAt, signedAt + expiresInSeconds * 1000);
+            break;
+        default:
+            // X-Amz-Date has a 1s precision, the URL expires expiresInSeconds after it
+            url = jdkSign(request, signedAt - signedAt % 1000, expiresInSeconds);
+        }
+        return url;
+    }
+
+    protected SignedURL jdkSign(SignedURLRequest request, long signedAt, long expiresInSeconds) {
+
+        String bucket = request.getBucket();
+        Endpoint endpoint = getEndpoint(bucket);
+        String encodedKey = SigV4Presigner.uriEncode(request.getObjectKey(), true);
+        String host;
+        String path;
+        if (endpoint.virtualHosting && BucketNameUtils.isDNSBucketName(bucket)) {
+            host = bucket + "." + endpoint.host;
+            path = "/" + encodedKey;
+        } else {
+            host = endpoint.host;
+            path = "/" + bucket + "/" + encodedKey;
+        }
+
+        // The AWS client stores the parameters in a HashMap: use one too to get the same order in the URL
+        Map<String, String> parameters = new HashMap<>();
+        if (request.getContentType() != null) {
+            parameters.put("response-content-type", request.getContentType());
+        }
+        if (request.getContentDisposition() != null) {
+            parameters.put("response-content-disposition", request.getContentDisposition());
         }
-        expiration.setTime(expiration.getTime() + (expireInSeconds * 1000));
+        parameters.putAll(request.getParameters());
+
+        String url = endpoint.presigner.presign(request.getMethod(), endpoint.scheme, host, path, parameters,
+                config.getCredentialsProvider().getCredentials(), signedAt, expiresInSeconds);
+        return new SignedURL(url, signedAt, signedAt + expiresInSeconds * 1000);
+    }
+
+    protected SignedURL sdkSign(SignedURLRequest request, long now, long expiresAt) throws IOException {
+
+        Date expiration = new Date(expiresAt);
 
-        GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucket, objectKey, HttpMethod.GET);
+        GeneratePresignedUrlRequest presignRequest = new GeneratePresignedUrlRequest(request.getBucket(),
+                request.getObjectKey(), HttpMethod.valueOf(request.getMethod()));
 
         // Do we need these?
-        if (StringUtils.isNotBlank(contentType)) {
-            request.addRequestParameter("response-content-type", contentType);
+        if (request.getContentType() != null) {
+            presignRequest.addRequestParameter("response-content-type", request.getContentType());
+        }
+        if (request.getContentDisposition() != null) {
+            presignRequest.addRequestParameter("response-content-disposition", request.getContentDisposition());
         }
-        if (StringUtils.isNotBlank(contentDisposition)) {
-            request.addRequestParameter("response-content-disposition", contentDisposition);
+        for (Map.Entry<String, String> entry : request.getParameters().entrySet()) {
+            presignRequest.addRequestParameter(entry.getKey(), entry.getValue());
         }
 
-        request.setExpiration(expiration);
-        URL url = s3.generatePresignedUrl(request);
+        presignRequest.setExpiration(expiration);
+        URL url = getEndpoint(request.getBucket()).client.generatePresignedUrl(presignRequest);
 
         try {
             URI uri = url.toURI();
-            return uri.toString();
+            return new SignedURL(uri.toString(), now, expiration.getTime());
         } catch (URISyntaxException e) {
             throw new IOException(e);
         }
 
     }
 
+    /**
+     * Sign with the AWS client, then with {@link SigV4Presigner} using the same signing time and expiration, and log
+     * an error if the URLs are not the same. The URL built by the AWS client is returned.
+     * <p>
+     * Rare mismatches are expected: the AWS client reads the clock twice and, when the second changes in-between,
+     * signs with a date which is not the X-Amz-Date of its URL.
+     * <p>
+     * The URLs are live: only their differences are logged, without the credential, signature or token (see
+     * {@link #describeMismatch(String, String)}).
+     */
+    protected SignedURL verifySign(SignedURLRequest request, long now, long expiresAt) throws IOException {
+
+        SignedURL sdkUrl = sdkSign(request, now, expiresAt);
+        String amzDate = getQueryParameter(sdkUrl.getUrl(), "X-Amz-Date");
+        String expires = getQueryParameter(sdkUrl.getUrl(), "X-Amz-Expires");
+        if (amzDate == null || expires == null) {
+            log.error("The AWS client did not build a SigV4 URL for " + request + ", cannot compare: "
+                    + stripQuery(sdkUrl.getUrl()));
+            return sdkUrl;
+        }
+
+        long signedAt = LocalDateTime.parse(amzDate, AMZ_DATE_FORMAT).toEpochSecond(ZoneOffset.UTC) * 1000;
+        SignedURL jdkUrl = jdkSign(request, signedAt, Long.parseLong(expires));
+        if (!jdkUrl.getUrl().equals(sdkUrl.getUrl())) {
+            SheridanMetrics.SIGNER_MISMATCHES.inc();
+            log.error("Signers disagree for " + request + ": " + describeMismatch(sdkUrl.getUrl(), jdkUrl.getUrl()));
+        }
+        return sdkUrl;
+    }
+
+    /**
+     * Describe how two signed URLs differ, without the values of their query parameters (credential, signature,
+     * token...): the URLs without query string if they differ, else the names of the parameters whose values differ.
+     */
+    protected static String describeMismatch(String url1, String url2) {
+        String base1 = stripQuery(url1);
+        String base2 = stripQuery(url2);
+        if (!base1.equals(base2)) {
+            return "different URLs " + base1 + " and " + base2;
+        }
+        Map<String, String> parameters1 = getQueryParameters(url1);
+        Map<String, String> parameters2 = getQueryParameters(url2);
+        Set<String> names = new TreeSet<>(parameters1.keySet());
+        names.addAll(parameters2.keySet());
+        names.removeIf(name -> Objects.equals(parameters1.get(name), parameters2.get(name)));
+        return "different query parameters " + names + " in " + base1;
+    }
+
+    protected static String stripQuery(String url) {
+        int query = url.indexOf('?');
+        return query < 0 ? url : url.substring(0, query);
+    }
+
+    protected static Map<String, String> getQueryParameters(String url) {
+        Map<String, String> parameters = new HashMap<>();
+        int query = url.indexOf('?');
+        if (query >= 0) {
+            for (String parameter : url.substring(query + 1).split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals < 0) {
+                    parameters.put(parameter, "");
+                } else {
+                    parameters.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    protected static String getQueryParameter(String url, String name) {
+        int start = url.indexOf("&" + name + "=");
+        if (start < 0) {
+            start = url.indexOf("?" + name + "=");
+            if (start < 0) {
+                return null;
+            }
+        }
+        start += name.length() + 2;
+        int end = url.indexOf('&', start);
+        return end < 0 ? url.substring(start) : url.substring(start, end);
+    }
+
     /**
      * Return an url as string. This url is a temporary signed url giving access to the object for
      * <code>expireInSeconds</expireInSeconds> seconds. After this time, the object cannot be accessed anymore with this URL.
@@ -154,8 +495,8 @@ public class S3TempSignedURLBuilder {
      * <p>
      * <ul>
      * <li>The bucket used is the one defined in the configuration.</li>
-     * <li>If <code>expireInSeconds</code> is less than 1, the default
-     * <code>S3TempSignedURLBuilder.DEFAULT_EXPIRE</code> is used</li> <li><code>contentType</code> and
+     * <li>If <code>expireInSeconds</code> is less than 1, the default of the configuration
+     * (<code>S3TempSignedURLBuilder.DEFAULT_EXPIRE</code> unless set) is used</li> <li><code>contentType</code> and
      * <code>contentDisposition</code> can be null or "", but it is recommended to set them to make sure the is no
      * ambiguity when the URL is used (a key without a file extension for example)</li> </ul>
      * <p>
@@ -171,21 +512,300 @@ public class S3TempSignedURLBuilder {
     public String build(String objectKey, int expireInSeconds, String contentType, String contentDisposition)
             throws IOException {
 
-        return build(awsBucket, objectKey, expireInSeconds, contentType, contentDisposition);
+        return build(config.getBucket(), objectKey, expireInSeconds, contentType, contentDisposition);
+
+    }
+
+    /**
+     * Return a temporary signed URL allowing to upload (PUT) the object directly to S3. The default values of
+     * {@link #build(String, String, int, String, String)} apply to <code>bucket</code> and
+     * <code>expireInSeconds</code>.
+     *
+     * @since 7.10
+     */
+    public String buildPut(String bucket, String objectKey, int expireInSeconds) throws IOException {
+
+        return signPut(bucket, objectKey, expireInSeconds).getUrl();
+    }
+
+    /**
+     * Same as {@link #buildPut(String, String, int)}, returning the signed URL with its expiration.
+     *
+     * @since 7.10
+     */
+    public SignedURL signPut(String bucket, String objectKey, int expireInSeconds) throws IOException {
+
+        return sign(newUploadRequest(bucket, objectKey, expireInSeconds, Collections.<String, String> emptyMap()));
+    }
+
+    /**
+     * Start a multipart upload and return its upload ID. The parts are then uploaded directly to S3, in parallel if
+     * needed, using the URLs returned by {@link #buildUploadPartUrls(String, String, String, int, int)}, and the upload
+     * is finished with {@link #completeMultipartUpload(String, String, String, List)}.
+     * <p>
+     * This, as completing or aborting, is a call to S3 (unlike the other methods, which only compute signatures).
+     *
+     * @param contentType the content type of the object, can be null
+     * @since 7.10
+     */
+    public String initiateMultipartUpload(String bucket, String objectKey, String contentType) {
+
+        bucket = resolveBucket(bucket);
+        InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(bucket, objectKey);
+        if (StringUtils.isNotBlank(contentType)) {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentType(contentType);
+            request.setObjectMetadata(metadata);
+        }
+        return getEndpoint(bucket).client.initiateMultipartUpload(request).getUploadId();
+    }
+
+    /**
+     * Return the temporary signed URLs to upload (PUT) the parts 1 to <code>partCount</code> of a multipart upload,
+     * signed in one batch. Each part, except the last one, must be at least 5 MB.
+     *
+     * @since 7.10
+     */
+    public List<String> buildUploadPartUrls(String bucket, String objectKey, String uploadId, int partCount,
+            int expireInSeconds) throws IOException {
+
+        List<String> urls = new ArrayList<>(partCount);
+        for (SignedURL url : signUploadParts(bucket, objectKey, uploadId, partCount, expireInSeconds)) {
+            urls.add(url.getUrl());
+        }
+        return urls;
+    }
+
+    /**
+     * Same as {@link #buildUploadPartUrls(String, String, String, int, int)}, returning the signed URLs with their
+     * expiration.
+     *
+     * @since 7.10
+     */
+    public List<SignedURL> signUploadParts(String bucket, String objectKey, String uploadId, int partCount,
+            int expireInSeconds) throws IOException {
+
+        if (partCount < 1 || partCount > MAX_UPLOAD_PARTS) {
+            throw new NuxeoException("The number of parts must be between 1 and " + MAX_UPLOAD_PARTS + ": "
+                    + partCount);
+        }
+        List<SignedURLRequest> requests = new ArrayList<>(partCount);
+        for (int part = 1; part <= partCount; part++) {
+            Map<String, String> parameters = new LinkedHashMap<>();
+            parameters.put("uploadId", uploadId);
+            parameters.put("partNumber", Integer.toString(part));
+            requests.add(newUploadRequest(bucket, objectKey, expireInSeconds, parameters));
+        }
+        return new ArrayList<>(signAll(requests).values());
+    }
+
+    /**
+     * Complete a multipart upload.
+     *
+     * @param partETags the ETag returned by S3 for each part, in the order of the parts
+     * @since 7.10
+     */
+    public void completeMultipartUpload(String bucket, String objectKey, String uploadId, List<String> partETags) {
+
+        List<PartETag> parts = new ArrayList<>(partETags.size());
+        for (int i = 0; i < partETags.size(); i++) {
+            parts.add(new PartETag(i + 1, partETags.get(i)));
+        }
+        bucket = resolveBucket(bucket);
+        getEndpoint(bucket).client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, objectKey,
+                uploadId, parts));
+    }
+
+    /**
+     * Abort a multipart upload, so S3 frees the parts already uploaded.
+     *
+     * @since 7.10
+     */
+    public void abortMultipartUpload(String bucket, String objectKey, String uploadId) {
+
+        bucket = resolveBucket(bucket);
+        getEndpoint(bucket).client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, objectKey, uploadId));
+    }
+
+    /**
+     * Return the region of the bucket, see {@link BucketRegionResolver}. With a custom endpoint
+     * (<code>sheridan.s3.endpoint</code>), all the buckets are in the configured region.
+     *
+     * @since 7.10
+     */
+    public String getBucketRegion(String bucket) {
+        return config.getEndpoint() == null ? regionResolver.getRegion(bucket) : config.getRegion();
+    }
+
+    /**
+     * Return the AWS client of the region of the bucket (or of the default bucket if <code>bucket</code> is blank), to
+     * call S3 directly. It is shared and must not be shut down.
+     *
+     * @since 7.10
+     */
+    public AmazonS3 getClient(String bucket) {
+        return getEndpoint(resolveBucket(bucket)).client;
+    }
+
+    protected Endpoint getEndpoint(String bucket) {
+        return getEndpoint(getBucketRegion(bucket), config.isPathStyle(bucket));
+    }
+
+    protected Endpoint getEndpoint(String region, boolean pathStyle) {
+        // Cheaper than computeIfAbsent when the endpoint exists, which is almost always the case
+        String key = pathStyle ? region + "/path" : region;
+        Endpoint endpoint = endpoints.get(key);
+        return endpoint != null ? endpoint : endpoints.computeIfAbsent(key, k -> createEndpoint(region, pathStyle));
+    }
+
+    protected Endpoint createEndpoint(String regionName, boolean pathStyle) {
+
+        Region region = RegionUtils.getRegion(regionName);
+        if (region == null) {
+            throw new NuxeoException("Unknown AWS region: " + regionName);
+        }
+
+        ClientConfiguration clientConfiguration = config.getClientConfiguration();
+        if (config.getSignerType() != SignerType.SDK) {
+            // So the AWS client and SigV4Presigner can be compared
+            clientConfiguration.setSignerOverride(SDK_SIGV4_SIGNER);
+        }
+        AmazonS3Client client = new AmazonS3Client(config.getCredentialsProvider(), clientConfiguration);
+        SheridanMetrics.CLIENTS_CREATED.inc();
+        client.setRegion(region);
+
+        String scheme;
+        String host;
+        boolean ipAddress = false;
+        if (config.getEndpoint() == null) {
+            scheme = "https";
+            host = region.getServiceEndpoint(SigV4Presigner.SERVICE);
+        } else {
+            client.setEndpoint(config.getEndpoint());
+            client.setSignerRegionOverride(regionName);
+            URI uri = URI.create(config.getEndpoint());
+            scheme = uri.getScheme();
+            // Like the AWS client, sign the port only if it is not the default one
+            host = uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+            ipAddress = IPV4_ADDRESS.matcher(uri.getHost()).matches();
+        }
+        if (pathStyle) {
+            client.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+        }
+        // Same rule as the AWS client
+        return new Endpoint(client, new SigV4Presigner(regionName), scheme, host, !pathStyle && !ipAddress);
+    }
+
+    protected SignedURLRequest newUploadRequest(String bucket, String objectKey, int expireInSeconds,
+            Map<String, String> parameters) {
+
+        return new SignedURLRequest(HttpMethod.PUT, resolveBucket(bucket), objectKey,
+                expireInSeconds < 1 ? config.getDefaultExpire() : expireInSeconds, null, null, parameters);
+    }
+
+    protected String resolveBucket(String bucket) {
+
+        if (StringUtils.isBlank(bucket)) {
+            bucket = config.getBucket();
+        }
+        if (StringUtils.isBlank(bucket)) {
+            throw new NuxeoException("No bucket provided, and configuration key " + CONF_KEY_NAME_BUCKET
+                    + " is missing.");
+        }
+        return bucket;
+    }
+
+    /**
+     * The AWS client and the {@link SigV4Presigner} of a region, and the host of its URLs
+     *
+     * @since 7.10
+     */
+    protected static class Endpoint {
+
+        protected final AmazonS3 client;
+
+        protected final SigV4Presigner presigner;
+
+        protected final String scheme;
 
+        protected final String host;
+
+        protected final boolean virtualHosting;
+
+        protected Endpoint(AmazonS3 client, SigV4Presigner presigner, String scheme, String host,
+                boolean virtualHosting) {
+            this.client = client;
+            this.presigner = presigner;
+            this.scheme = scheme;
+            this.host = host;
+            this.virtualHosting = virtualHosting;
+        }
     }
 
-    protected void buildCredentiaProvider() {
+    /**
+     * Splits a batch in halves until they are small enough to be signed sequentially.
+     */
+    protected class SignTask extends RecursiveTask<Map<SignedURLRequest, SignedURL>> {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final List<SignedURLRequest> requests;
 
-        if (awsCredentialsProvider != null) {
-            return;
+        protected final long now;
+
+        protected SignTask(List<SignedURLRequest> requests, long now) {
+            this.requests = requests;
+            this.now = now;
+        }
+
+        @Override
+        protected Map<SignedURLRequest, SignedURL> compute() {
+
+            if (requests.size() <= BATCH_SPLIT_THRESHOLD) {
+                try {
+                    return signSequentially(requests, now);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            int middle = requests.size() / 2;
+            SignTask first = new SignTask(requests.subList(0, middle), now);
+            SignTask second = new SignTask(requests.subList(middle, requests.size()), now);
+            first.fork();
+            Map<SignedURLRequest, SignedURL> secondUrls = second.compute();
+            Map<SignedURLRequest, SignedURL> urls = first.join();
+            urls.putAll(secondUrls);
+            return urls;
         }
+    }
 
-        awsAccessKeyId = Framework.getProperty(CONF_KEY_NAME_ACCESS_KEY);
-        awsSecretAccessKey = Framework.getProperty(CONF_KEY_NAME_SECRET_KEY);
+    public S3SignerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Forget the signing keys derived from the credentials, typically when the credentials change.
+     *
+     * @since 7.10
+     */
+    public void clearSigningKeys() {
+        for (Endpoint endpoint : endpoints.values()) {
+            endpoint.presigner.clearSigningKeys();
+        }
+    }
 
-        if (StringUtils.isNotBlank(awsAccessKeyId) && StringUtils.isNotBlank(awsSecretAccessKey)) {
-            awsCredentialsProvider = new SimpleAWSCredentialProvider(awsAccessKeyId, awsSecretAccessKey);
+    /**
+     * Release the resources (HTTP connections) held by the AWS clients. Must be called only by the owner of the
+     * builder, never on the builder shared by {@link S3TempSignedURLService}.
+     *
+     * @since 7.10
+     */
+    public void shutdown() {
+        for (Endpoint endpoint : endpoints.values()) {
+            if (endpoint.client instanceof AmazonWebServiceClient) {
+                ((AmazonWebServiceClient) endpoint.client).shutdown();
+            }
         }
     }
 
@@ -0,0 +1,237 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * Service building temporary signed URLs to objects stored in S3.
+ * <p>
+ * The service owns one configuration snapshot and one long-lived, thread-safe {@link S3TempSignedURLBuilder} (and so,
+ * one AWS client) shared by all callers. Get it with <code>Framework.getService(S3TempSignedURLService.class)</code>.
+ * <p>
+ * Named profiles (see {@link S3ProfileDescriptor}) have their own builder, created once on first use. The methods
+ * taking a <code>profile</code> use the default configuration when it is blank or
+ * {@link S3SignerConfig#DEFAULT_PROFILE}, and throw a {@link org.nuxeo.ecm.core.api.NuxeoException} when the profile
+ * is unknown.
+ *
+ * @since 7.10
+ */
+public interface S3TempSignedURLService {
+
+    /**
+     * Return the shared builder. It is thread-safe and must not be shut down by callers.
+     *
+     * @since 7.10
+     */
+    S3TempSignedURLBuilder getBuilder();
+
+    /**
+     * Return the shared builder of the profile, with its own AWS clients and signing keys. Like
+     * {@link #getBuilder()}, it must not be shut down by callers.
+     *
+     * @since 7.10
+     */
+    S3TempSignedURLBuilder getBuilder(String profile);
+
+    /**
+     * Return the names of the contributed profiles, the default one excluded
+     *
+     * @since 7.10
+     */
+    Set<String> getProfileNames();
+
+    /**
+     * Check that the user can select the profile in a request (operation or query parameter): the default profile is
+     * open to everyone, a named one to its allowed groups and to administrators (see
+     * {@link S3ProfileDescriptor#isAllowed(java.security.Principal)}). Call it before signing with a profile chosen by
+     * a client.
+     *
+     * @throws DocumentSecurityException if the user cannot use the profile
+     * @throws NuxeoException if the profile is unknown
+     * @since 7.10
+     */
+    void checkCanUseProfile(String profile, Principal principal);
+
+    /**
+     * Return true once the signing is warmed up (see {@link SheridanWarmUp}), so the first URLs are signed as fast as
+     * the next ones. URLs can be signed before, only slower.
+     *
+     * @since 7.10
+     */
+    boolean isReady();
+
+    /**
+     * Return the CloudFront builder, or null if CloudFront is not configured (see {@link CloudFrontSignedURLBuilder}).
+     * When it is, the GET URLs of the bucket of the distribution are CloudFront URLs.
+     *
+     * @since 7.10
+     */
+    CloudFrontSignedURLBuilder getCloudFrontBuilder();
+
+    /**
+     * Return the configuration snapshot used by the shared builder
+     *
+     * @since 7.10
+     */
+    S3SignerConfig getConfig();
+
+    /**
+     * Return the bucket set in the configuration, or null if there is none
+     *
+     * @since 7.10
+     */
+    String getDefaultBucket();
+
+    /**
+     * See {@link S3TempSignedURLBuilder#build(String, String, int, String, String)}
+     *
+     * @since 7.10
+     */
+    String build(String bucket, String objectKey, int expireInSeconds, String contentType, String contentDisposition)
+            throws IOException;
+
+    /**
+     * Same as {@link #build(String, String, int, String, String)}, returning the URL with its signing and expiration
+     * times (to know how long it remains valid).
+     *
+     * @since 7.10
+     */
+    SignedURL sign(String bucket, String objectKey, int expireInSeconds, String contentType, String contentDisposition)
+            throws IOException;
+
+    /**
+     * Same as {@link #sign(String, String, int, String, String)} for an object whose key is stored in a document: the
+     * audit trail (see {@link SignedURLAuditor}) records the document along with the user.
+     *
+     * @since 7.10
+     */
+    SignedURL sign(SignedURLRequest request, String docId) throws IOException;
+
+    /**
+     * Same as {@link #sign(SignedURLRequest, String)} with the builder of the profile. The request is typically built
+     * by <code>getBuilder(profile).newRequest(...)</code>, so the defaults of the profile apply.
+     *
+     * @since 7.10
+     */
+    SignedURL sign(String profile, SignedURLRequest request, String docId) throws IOException;
+
+    /**
+     * Return the URLs of all the requests, in the same order, signed in one batch (see
+     * {@link S3TempSignedURLBuilder#signAll(java.util.Collection)}). Requests are typically built with
+     * {@link S3TempSignedURLBuilder#newRequest(String, String, int, String, String)}.
+     *
+     * @since 7.10
+     */
+    Map<SignedURLRequest, String> buildAll(Collection<SignedURLRequest> requests) throws IOException;
+
+    /**
+     * Return the URLs of the requests, in the same order, signed in one batch. Each URL is recorded in the audit trail
+     * (see {@link SignedURLAuditor}) with the document at the same index in <code>docIds</code> and with
+     * <code>user</code>, or the current user if it is null (to sign on behalf of a user from another thread).
+     *
+     * @since 7.10
+     */
+    List<SignedURL> signForDocuments(List<String> docIds, List<SignedURLRequest> requests, String user)
+            throws IOException;
+
+    /**
+     * Same as {@link #signForDocuments(List, List, String)} with the builder of the profile
+     *
+     * @since 7.10
+     */
+    List<SignedURL> signForDocuments(String profile, List<String> docIds, List<SignedURLRequest> requests,
+            String user) throws IOException;
+
+    /**
+     * Return a signed URL to download the blob directly from S3, where the S3 binary manager of Nuxeo stored it (see
+     * {@link S3BlobResolver}), with its MIME type and filename, or null if the blob is not stored in S3.
+     *
+     * @param inline true to display the blob in the browser, false to download it
+     * @since 7.10
+     */
+    SignedURL signBlob(Blob blob, int expireInSeconds, boolean inline) throws IOException;
+
+    /**
+     * Return the audit trail of the signed URLs, or null if it is disabled (see {@link SignedURLAuditor})
+     *
+     * @since 7.10
+     */
+    SignedURLAuditor getAuditor();
+
+    /**
+     * Record in the audit trail, if enabled, a credential given to the current user that is not a URL signed by this
+     * service: a CloudFront policy or cookies for a prefix (<code>objectKey</code> is then the prefix), upload URLs...
+     *
+     * @param docId the document holding the object key or prefix, or null if it is not known
+     * @param method the HTTP method of the URL, or {@link SignedURLAuditEvent#METHOD_POLICY} or
+     *            {@link SignedURLAuditEvent#METHOD_COOKIES} for CloudFront
+     * @param expiresAt when the credential expires, in milliseconds since the epoch
+     * @since 7.10
+     */
+    void audit(String docId, String method, String bucket, String objectKey, long expiresAt);
+
+    /**
+     * Return the existence index of the bucket (or of the default bucket if <code>bucket</code> is blank), or null if
+     * it is not enabled for this bucket (see {@link ObjectExistenceIndex}).
+     *
+     * @since 7.10
+     */
+    ObjectExistenceIndex getExistenceIndex(String bucket);
+
+    /**
+     * Return false if the object is known to be missing from the bucket (or from the default bucket if
+     * <code>bucket</code> is blank). Without an existence index for the bucket, always return true: S3 is not called.
+     *
+     * @since 7.10
+     */
+    boolean objectExists(String bucket, String objectKey);
+
+    /**
+     * Return the URLs of the objects whose key is stored in the <code>xpath</code> field of each document
+     * (<code>myschema:S3key</code> for example), signed in one batch.
+     * <p>
+     * The map is indexed by document id, in the same order as <code>docs</code>. A document whose key is empty gets an
+     * empty URL. Default values apply to the other parameters (see
+     * {@link S3TempSignedURLBuilder#build(String, String, int, String, String)}). The audit trail records the document
+     * of each URL.
+     *
+     * @since 7.10
+     */
+    Map<String, String> buildForDocuments(List<DocumentModel> docs, String xpath, String bucket, int expireInSeconds,
+            String contentType, String contentDisposition) throws IOException;
+
+    /**
+     * Same as {@link #buildForDocuments(List, String, String, int, String, String)} with the builder of the profile,
+     * whose bucket and expiration are the defaults.
+     *
+     * @since 7.10
+     */
+    Map<String, String> buildForDocuments(String profile, List<DocumentModel> docs, String xpath, String bucket,
+            int expireInSeconds, String contentType, String contentDisposition) throws IOException;
+
+}
@@ -0,0 +1,627 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.ComponentInstance;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+
+/**
+ * Default implementation of {@link S3TempSignedURLService}.
+ * <p>
+ * The configuration is read and the builder (with its AWS client) is created when the component activates. If the
+ * credentials are not available at this time (unit tests setting them as system properties for example), this is done
+ * once, on first use.
+ * <p>
+ * The profiles contributed to the {@value #PROFILES_EP} extension point (see {@link S3ProfileDescriptor}) each get
+ * their own builder, with its AWS clients, signing keys and URL cache, created on first use and then reused.
+ * Contributing a profile again replaces its builder.
+ * <p>
+ * When CloudFront is configured, the GET URLs of the bucket of the distribution are signed by the
+ * {@link CloudFrontSignedURLBuilder}, the other ones by the {@link S3TempSignedURLBuilder}.
+ * <p>
+ * Blobs stored by the S3 binary manager of Nuxeo can be downloaded directly from S3, see {@link S3BlobResolver}.
+ * <p>
+ * Once the application is started, the signing is warmed up in the background (see {@link SheridanWarmUp}): the
+ * service is ready ({@link #isReady()}) when it is done.
+ * <p>
+ * The existence indexes of the buckets (see {@link ObjectExistenceIndex}) start sweeping their bucket once the
+ * application is started.
+ * <p>
+ * The URLs given to users are recorded in the audit trail (see {@link SignedURLAuditor}) when it is enabled, cached
+ * ones included. The URLs of the warm-up are not.
+ * <p>
+ * Signed URLs are cached (see {@link SignedURLCache}), unless <code>sheridan.s3.cache.maxSize</code> is set to 0.
+ * <p>
+ * When the credentials are rotated (see {@link RotatingAWSCredentialsProvider}), the cached URLs and signing keys are
+ * dropped, and URLs being signed with the retired credentials while they change are not cached.
+ *
+ * @since 7.10
+ */
+public class S3TempSignedURLServiceImpl extends DefaultComponent implements S3TempSignedURLService,
+        RotatingAWSCredentialsProvider.Listener {
+
+    private static final Log log = LogFactory.getLog(S3TempSignedURLServiceImpl.class);
+
+    public static final String PROFILES_EP = "profiles";
+
+    /**
+     * The builder of a named profile and its URL cache
+     */
+    protected static class Profile {
+
+        protected final S3TempSignedURLBuilder builder;
+
+        protected final SignedURLCache cache;
+
+        protected Profile(S3TempSignedURLBuilder builder, SignedURLCache cache) {
+            this.builder = builder;
+            this.cache = cache;
+        }
+    }
+
+    protected volatile S3TempSignedURLBuilder builder;
+
+    protected SignedURLCache cache;
+
+    protected long cacheMaxSize;
+
+    protected double cacheMinRemainingRatio;
+
+    protected final Map<String, S3ProfileDescriptor> profileDescriptors = new ConcurrentHashMap<>();
+
+    protected final Map<String, Profile> profiles = new ConcurrentHashMap<>();
+
+    protected CloudFrontSignedURLBuilder cloudFront;
+
+    protected S3BlobResolver blobResolver;
+
+    protected final Map<String, ObjectExistenceIndex> existenceIndexes = new ConcurrentHashMap<>();
+
+    protected SheridanWarmUp warmUp;
+
+    protected SignedURLAuditor auditor;
+
+    /**
+     * Incremented when the credentials change, so URLs signed with the retired ones are not cached
+     */
+    protected final AtomicLong credentialsGeneration = new AtomicLong();
+
+    /**
+     * Held to clear the caches when the credentials change, and to check the generation while adding URLs, so a URL
+     * signed with the retired credentials cannot be added after the caches are cleared
+     */
+    protected final Object credentialsLock = new Object();
+
+    @Override
+    public void activate(ComponentContext context) {
+        cacheMaxSize = NumberUtils.toLong(S3SignerConfig.getProperty(SignedURLCache.CONF_KEY_NAME_MAX_SIZE),
+                SignedURLCache.DEFAULT_MAX_SIZE);
+        cacheMinRemainingRatio = NumberUtils.toDouble(
+                S3SignerConfig.getProperty(SignedURLCache.CONF_KEY_NAME_MIN_REMAINING_RATIO),
+                SignedURLCache.DEFAULT_MIN_REMAINING_RATIO);
+        S3SignerConfig config = S3SignerConfig.fromFramework();
+        cache = newCache(config.getExpirationWindow());
+
+        cloudFront = CloudFrontSignedURLBuilder.fromFramework();
+        blobResolver = S3BlobResolver.fromFramework(config);
+        auditor = SignedURLAuditor.fromFramework();
+        if (auditor != null) {
+            auditor.start();
+        }
+
+        for (String bucket : ObjectExistenceIndex.getIndexedBuckets()) {
+            // The client is read on each call, the builder may be created later
+            existenceIndexes.put(bucket,
+                    ObjectExistenceIndex.fromFramework(bucket, () -> getBuilder().getClient(bucket)));
+        }
+
+        if (config.hasCredentials()) {
+            builder = createBuilder(config);
+        } else {
+            log.info("AWS credentials are not set in the configuration, the S3 client will be created on first use");
+        }
+    }
+
+    @Override
+    public void registerContribution(Object contribution, String extensionPoint, ComponentInstance contributor) {
+        if (PROFILES_EP.equals(extensionPoint)) {
+            S3ProfileDescriptor descriptor = (S3ProfileDescriptor) contribution;
+            String name = StringUtils.trimToEmpty(descriptor.getName());
+            if (name.isEmpty() || S3SignerConfig.DEFAULT_PROFILE.equals(name)) {
+                throw new NuxeoException("Invalid Sheridan profile name: \"" + name + "\", \""
+                        + S3SignerConfig.DEFAULT_PROFILE + "\" is the configuration of nuxeo.conf");
+            }
+            if (descriptor.isEnabled()) {
+                profileDescriptors.put(name, descriptor);
+            } else {
+                profileDescriptors.remove(name);
+            }
+            // Built again, from the new contribution, on next use
+            removeProfile(name);
+        }
+    }
+
+    @Override
+    public void unregisterContribution(Object contribution, String extensionPoint, ComponentInstance contributor) {
+        if (PROFILES_EP.equals(extensionPoint)) {
+            S3ProfileDescriptor descriptor = (S3ProfileDescriptor) contribution;
+            String name = StringUtils.trimToEmpty(descriptor.getName());
+            if (profileDescriptors.remove(name, descriptor)) {
+                removeProfile(name);
+            }
+        }
+    }
+
+    @Override
+    public void applicationStarted(ComponentContext context) {
+        for (ObjectExistenceIndex index : existenceIndexes.values()) {
+            index.start();
+        }
+
+        // Once the profiles are contributed
+        if (SheridanWarmUp.isEnabled()) {
+            List<String> buckets = new ArrayList<>(existenceIndexes.keySet());
+            if (blobResolver != null) {
+                buckets.add(blobResolver.getBucket());
+            }
+            warmUp = new SheridanWarmUp(this, buckets);
+            warmUp.start();
+        }
+    }
+
+    @Override
+    public void deactivate(ComponentContext context) {
+        if (warmUp != null) {
+            warmUp.stop();
+            warmUp = null;
+        }
+        for (ObjectExistenceIndex index : existenceIndexes.values()) {
+            index.stop();
+        }
+        existenceIndexes.clear();
+        for (String name : new ArrayList<>(profiles.keySet())) {
+            removeProfile(name);
+        }
+        if (builder != null) {
+            shutdown(builder);
+            builder = null;
+        }
+        if (cache != null) {
+            cache.clear();
+            cache = null;
+        }
+        cloudFront = null;
+        blobResolver = null;
+        if (auditor != null) {
+            auditor.stop();
+            auditor = null;
+        }
+    }
+
+    protected S3TempSignedURLBuilder createBuilder(S3SignerConfig config) {
+        S3TempSignedURLBuilder result = new S3TempSignedURLBuilder(config);
+        if (config.getCredentialsProvider() instanceof RotatingAWSCredentialsProvider) {
+            RotatingAWSCredentialsProvider provider = (RotatingAWSCredentialsProvider) config.getCredentialsProvider();
+            provider.addListener(this);
+            provider.start(config.getCredentialsRefreshInterval());
+        }
+        return result;
+    }
+
+    protected void shutdown(S3TempSignedURLBuilder b) {
+        AWSCredentialsProvider credentialsProvider = b.getConfig().getCredentialsProvider();
+        if (credentialsProvider instanceof RotatingAWSCredentialsProvider) {
+            RotatingAWSCredentialsProvider provider = (RotatingAWSCredentialsProvider) credentialsProvider;
+            provider.removeListener(this);
+            provider.stop();
+        }
+        b.shutdown();
+    }
+
+    protected SignedURLCache newCache(int expirationWindow) {
+        return cacheMaxSize > 0 ? new SignedURLCache(cacheMaxSize, cacheMinRemainingRatio, expirationWindow) : null;
+    }
+
+    protected Profile getProfile(String name) {
+        Profile profile = profiles.get(name);
+        if (profile != null) {
+            return profile;
+        }
+        S3ProfileDescriptor descriptor = profileDescriptors.get(name);
+        if (descriptor == null) {
+            throw new NuxeoException("Unknown Sheridan profile: " + name);
+        }
+        // Once: the AWS clients and the credentials provider are expensive
+        return profiles.computeIfAbsent(name, k -> {
+            S3SignerConfig config = descriptor.toConfig();
+            return new Profile(createBuilder(config), newCache(config.getExpirationWindow()));
+        });
+    }
+
+    protected void removeProfile(String name) {
+        Profile profile = profiles.remove(name);
+        if (profile != null) {
+            shutdown(profile.builder);
+            if (profile.cache != null) {
+                profile.cache.clear();
+            }
+        }
+    }
+
+    protected static boolean isDefault(String profile) {
+        return StringUtils.isBlank(profile) || S3SignerConfig.DEFAULT_PROFILE.equals(profile.trim());
+    }
+
+    /**
+     * Return the URL cache of the builder, of the default configuration or of a profile, or null if there is none
+     */
+    protected SignedURLCache getCache(S3TempSignedURLBuilder b) {
+        String name = b.getConfig().getProfile();
+        if (isDefault(name)) {
+            return cache;
+        }
+        Profile profile = profiles.get(name);
+        return profile == null ? null : profile.cache;
+    }
+
+    /**
+     * Return the CloudFront builder if it signs URLs for the builder: CloudFront is configured for the default
+     * configuration only
+     */
+    protected CloudFrontSignedURLBuilder getCloudFront(S3TempSignedURLBuilder b) {
+        return isDefault(b.getConfig().getProfile()) ? cloudFront : null;
+    }
+
+    @Override
+    public void credentialsChanged(AWSCredentials oldCredentials, AWSCredentials newCredentials) {
+        S3TempSignedURLBuilder b = builder;
+        if (b != null) {
+            b.clearSigningKeys();
+        }
+        // The listener is shared by the profiles rotating their credentials
+        for (Profile profile : profiles.values()) {
+            profile.builder.clearSigningKeys();
+        }
+        synchronized (credentialsLock) {
+            credentialsGeneration.incrementAndGet();
+            SignedURLCache c = cache;
+            if (c != null) {
+                c.clear();
+            }
+            for (Profile profile : profiles.values()) {
+                if (profile.cache != null) {
+                    profile.cache.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the URLs to the cache unless the credentials changed since <code>generation</code>, read before signing
+     * them
+     */
+    protected void cache(SignedURLCache c, long generation, Map<SignedURLRequest, SignedURL> urls) {
+        synchronized (credentialsLock) {
+            if (generation == credentialsGeneration.get()) {
+                for (Map.Entry<SignedURLRequest, SignedURL> entry : urls.entrySet()) {
+                    c.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    @Override
+    public S3TempSignedURLBuilder getBuilder() {
+        S3TempSignedURLBuilder result = builder;
+        if (result == null) {
+            synchronized (this) {
+                result = builder;
+                if (result == null) {
+                    result = createBuilder(S3SignerConfig.fromFramework());
+                    builder = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public S3TempSignedURLBuilder getBuilder(String profile) {
+        return isDefault(profile) ? getBuilder() : getProfile(profile.trim()).builder;
+    }
+
+    @Override
+    public Set<String> getProfileNames() {
+        return new TreeSet<>(profileDescriptors.keySet());
+    }
+
+    @Override
+    public void checkCanUseProfile(String profile, Principal principal) {
+        if (isDefault(profile)) {
+            return;
+        }
+        String name = profile.trim();
+        S3ProfileDescriptor descriptor = profileDescriptors.get(name);
+        if (descriptor == null) {
+            throw new NuxeoException("Unknown Sheridan profile: " + name);
+        }
+        if (!descriptor.isAllowed(principal)) {
+            throw new DocumentSecurityException("The Sheridan profile " + name + " is not allowed for "
+                    + (principal == null ? "anonymous" : principal.getName()));
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        SheridanWarmUp w = warmUp;
+        return w == null || w.isReady();
+    }
+
+    @Override
+    public CloudFrontSignedURLBuilder getCloudFrontBuilder() {
+        return cloudFront;
+    }
+
+    @Override
+    public S3SignerConfig getConfig() {
+        return getBuilder().getConfig();
+    }
+
+    @Override
+    public String getDefaultBucket() {
+        return getConfig().getBucket();
+    }
+
+    @Override
+    public String build(String bucket, String objectKey, int expireInSeconds, String contentType,
+            String contentDisposition) throws IOException {
+        return sign(bucket, objectKey, expireInSeconds, contentType, contentDisposition).getUrl();
+    }
+
+    @Override
+    public SignedURL sign(String bucket, String objectKey, int expireInSeconds, String contentType,
+            String contentDisposition) throws IOException {
+        S3TempSignedURLBuilder b = getBuilder();
+        SignedURLRequest request = b.newRequest(bucket, objectKey, expireInSeconds, contentType, contentDisposition);
+        return audit(null, null, request, sign(b, request));
+    }
+
+    @Override
+    public SignedURL sign(SignedURLRequest request, String docId) throws IOException {
+        return sign(null, request, docId);
+    }
+
+    @Override
+    public SignedURL sign(String profile, SignedURLRequest request, String docId) throws IOException {
+        return audit(null, docId, request, sign(getBuilder(profile), request));
+    }
+
+    @Override
+    public SignedURL signBlob(Blob blob, int expireInSeconds, boolean inline) throws IOException {
+        SignedURLRequest request = blobResolver == null ? null : blobResolver.newRequest(blob, expireInSeconds, inline);
+        return request == null ? null : audit(null, null, request, sign(getBuilder(), request));
+    }
+
+    @Override
+    public SignedURLAuditor getAuditor() {
+        return auditor;
+    }
+
+    @Override
+    public void audit(String docId, String method, String bucket, String objectKey, long expiresAt) {
+        SignedURLAuditor a = auditor;
+        if (a != null) {
+            a.record(new SignedURLAuditEvent(System.currentTimeMillis(), SignedURLAuditor.currentUser(), docId,
+                    method, bucket, objectKey, expiresAt));
+        }
+    }
+
+    @Override
+    public ObjectExistenceIndex getExistenceIndex(String bucket) {
+        if (existenceIndexes.isEmpty()) {
+            return null;
+        }
+        if (StringUtils.isBlank(bucket)) {
+            bucket = getDefaultBucket();
+        }
+        return bucket == null ? null : existenceIndexes.get(bucket);
+    }
+
+    @Override
+    public boolean objectExists(String bucket, String objectKey) {
+        ObjectExistenceIndex index = getExistenceIndex(bucket);
+        return index == null || index.exists(objectKey);
+    }
+
+    @Override
+    public Map<SignedURLRequest, String> buildAll(Collection<SignedURLRequest> requests) throws IOException {
+
+        Map<SignedURLRequest, SignedURL> signed = signAll(getBuilder(), requests);
+        Map<SignedURLRequest, String> urls = new LinkedHashMap<>();
+        for (SignedURLRequest request : requests) {
+            urls.put(request, audit(null, null, request, signed.get(request)).getUrl());
+        }
+        return urls;
+    }
+
+    @Override
+    public List<SignedURL> signForDocuments(List<String> docIds, List<SignedURLRequest> requests, String user)
+            throws IOException {
+        return signForDocuments(null, docIds, requests, user);
+    }
+
+    @Override
+    public List<SignedURL> signForDocuments(String profile, List<String> docIds, List<SignedURLRequest> requests,
+            String user) throws IOException {
+
+        if (docIds.size() != requests.size()) {
+            throw new IllegalArgumentException("Expected one document per request, got " + docIds.size()
+                    + " documents for " + requests.size() + " requests");
+        }
+        if (user == null && auditor != null) {
+            user = SignedURLAuditor.currentUser();
+        }
+        Map<SignedURLRequest, SignedURL> signed = signAll(getBuilder(profile), requests);
+        List<SignedURL> urls = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            SignedURLRequest request = requests.get(i);
+            urls.add(audit(user, docIds.get(i), request, signed.get(request)));
+        }
+        return urls;
+    }
+
+    @Override
+    public Map<String, String> buildForDocuments(List<DocumentModel> docs, String xpath, String bucket,
+            int expireInSeconds, String contentType, String contentDisposition) throws IOException {
+        return buildForDocuments(null, docs, xpath, bucket, expireInSeconds, contentType, contentDisposition);
+    }
+
+    @Override
+    public Map<String, String> buildForDocuments(String profile, List<DocumentModel> docs, String xpath,
+            String bucket, int expireInSeconds, String contentType, String contentDisposition) throws IOException {
+
+        S3TempSignedURLBuilder b = getBuilder(profile);
+        Map<String, SignedURLRequest> requests = new LinkedHashMap<>();
+        for (DocumentModel doc : docs) {
+            String objectKey = (String) doc.getPropertyValue(xpath);
+            if (StringUtils.isNotBlank(objectKey)) {
+                requests.put(doc.getId(),
+                        b.newRequest(bucket, objectKey, expireInSeconds, contentType, contentDisposition));
+            }
+        }
+
+        Map<SignedURLRequest, SignedURL> signed = signAll(b, requests.values());
+        String user = auditor == null ? null : SignedURLAuditor.currentUser();
+        Map<String, String> urls = new LinkedHashMap<>();
+        for (DocumentModel doc : docs) {
+            SignedURLRequest request = requests.get(doc.getId());
+            if (request == null) {
+                urls.put(doc.getId(), "");
+            } else {
+                urls.put(doc.getId(), audit(user, doc.getId(), request, signed.get(request)).getUrl());
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Record the URL in the audit trail, if enabled, for <code>user</code> or the current user if it is null
+     */
+    protected SignedURL audit(String user, String docId, SignedURLRequest request, SignedURL url) {
+        SignedURLAuditor a = auditor;
+        if (a != null) {
+            a.record(user == null ? SignedURLAuditor.currentUser() : user, docId, request, url);
+        }
+        return url;
+    }
+
+    protected Map<SignedURLRequest, SignedURL> signAll(S3TempSignedURLBuilder b,
+            Collection<SignedURLRequest> requests) throws IOException {
+
+        SignedURLCache c = getCache(b);
+        if (c == null) {
+            return signAllUncached(b, requests);
+        }
+
+        Map<SignedURLRequest, SignedURL> urls = new HashMap<>();
+        List<SignedURLRequest> missing = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (SignedURLRequest request : requests) {
+            SignedURL url = c.get(request, now);
+            if (url == null) {
+                missing.add(request);
+            } else {
+                urls.put(request, url);
+            }
+        }
+        if (!missing.isEmpty()) {
+            long generation = credentialsGeneration.get();
+            Map<SignedURLRequest, SignedURL> signed = signAllUncached(b, missing);
+            cache(c, generation, signed);
+            urls.putAll(signed);
+        }
+        return urls;
+    }
+
+    protected SignedURL sign(S3TempSignedURLBuilder b, SignedURLRequest request) throws IOException {
+        SignedURLCache c = getCache(b);
+        if (c == null) {
+            return signUncached(b, request);
+        }
+        SignedURL url = c.get(request, System.currentTimeMillis());
+        if (url == null) {
+            long generation = credentialsGeneration.get();
+            url = signUncached(b, request);
+            cache(c, generation, Collections.singletonMap(request, url));
+        }
+        return url;
+    }
+
+    protected SignedURL signUncached(S3TempSignedURLBuilder b, SignedURLRequest request) throws IOException {
+        CloudFrontSignedURLBuilder cf = getCloudFront(b);
+        return cf != null && cf.accepts(request) ? cf.sign(request) : b.sign(request);
+    }
+
+    protected Map<SignedURLRequest, SignedURL> signAllUncached(S3TempSignedURLBuilder b,
+            Collection<SignedURLRequest> requests) throws IOException {
+
+        CloudFrontSignedURLBuilder cf = getCloudFront(b);
+        if (cf == null) {
+            return b.signAll(requests);
+        }
+        List<SignedURLRequest> s3Requests = new ArrayList<>();
+        List<SignedURLRequest> cloudFrontRequests = new ArrayList<>();
+        for (SignedURLRequest request : requests) {
+            (cf.accepts(request) ? cloudFrontRequests : s3Requests).add(request);
+        }
+        Map<SignedURLRequest, SignedURL> urls = new HashMap<>();
+        if (!s3Requests.isEmpty()) {
+            urls.putAll(b.signAll(s3Requests));
+        }
+        if (!cloudFrontRequests.isEmpty()) {
+            urls.putAll(cf.signAll(cloudFrontRequests));
+        }
+        return urls;
+    }
+
+}
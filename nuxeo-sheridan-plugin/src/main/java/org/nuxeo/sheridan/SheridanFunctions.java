@@ -0,0 +1,152 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.faces.context.FacesContext;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * EL functions building S3 Temp Signed Urls, declared in <code>META-INF/sheridan.taglib.xml</code>. They do the same
+ * as the <code>getS3TempSignedUrl</code> methods of {@link SheridanHelperBean}, without the lookup and the
+ * interceptors of a Seam component on each call, which matters in listings:
+ *
+ * <pre>
+ * {@code
+ * <div xmlns:h="http://java.sun.com/jsf/html" xmlns:nxs="http://nuxeo.org/sheridan">
+ *     <h:outputLink value="#{nxs:s3Url(field)}" target="_blank">#{widget.label}</h:outputLink>
+ * </div>
+ * }
+ * </pre>
+ *
+ * The URLs are memoized for the duration of the JSF request: a key used twice on a page (a thumbnail and a link for
+ * example) is signed once, and gets the same URL. As with the bean, an empty key gets an empty URL. URLs signed with
+ * the credentials of a profile use {@link #s3ProfileUrl(String, String, String)}.
+ *
+ * @since 7.10
+ */
+public final class SheridanFunctions {
+
+    protected static final String REQUEST_MEMO_KEY = SheridanFunctions.class.getName() + ".urls";
+
+    private SheridanFunctions() {
+        // Utility class
+    }
+
+    /**
+     * Return the URL of the object in the default bucket, see
+     * {@link SheridanHelperBean#getS3TempSignedUrl(String)}
+     */
+    public static String s3Url(String objectKey) throws IOException {
+        return s3SignedUrl(null, objectKey, 0, null, null);
+    }
+
+    /**
+     * Return the URL of the object in the bucket, see {@link SheridanHelperBean#getS3TempSignedUrl(String, String)}
+     */
+    public static String s3BucketUrl(String bucket, String objectKey) throws IOException {
+        return s3SignedUrl(bucket, objectKey, 0, null, null);
+    }
+
+    /**
+     * The full call, see {@link SheridanHelperBean#getS3TempSignedUrl(String, String, int, String, String)}
+     */
+    public static String s3SignedUrl(String bucket, String objectKey, int expireInSeconds, String contentType,
+            String contentDisposition) throws IOException {
+        return sign(Framework.getService(S3TempSignedURLService.class), getRequestMemo(), null, bucket, objectKey,
+                expireInSeconds, contentType, contentDisposition);
+    }
+
+    /**
+     * Return the URL of the object signed with the credentials of the profile, in its bucket if <code>bucket</code> is
+     * empty, see {@link SheridanHelperBean#getProfileS3TempSignedUrl(String, String, String)}. For example:
+     * <code>#{nxs:s3ProfileUrl('archives', null, field)}</code>
+     *
+     * @since 7.10
+     */
+    public static String s3ProfileUrl(String profile, String bucket, String objectKey) throws IOException {
+        return sign(Framework.getService(S3TempSignedURLService.class), getRequestMemo(), profile, bucket, objectKey,
+                0, null, null);
+    }
+
+    /**
+     * Return the URL from the memo if it has it, else sign it and add it to the memo. Outside of JSF (a listing
+     * rendered by a REST endpoint for example), a caller can pass its own memo.
+     *
+     * @param memo the URLs already signed, can be null: the URL is then signed on each call
+     * @param profile the profile signing the URL (see {@link S3ProfileDescriptor}), null for the default configuration
+     * @return an empty string if the key is blank
+     * @since 7.10
+     */
+    public static String sign(S3TempSignedURLService service, Map<List<Object>, String> memo, String profile,
+            String bucket, String objectKey, int expireInSeconds, String contentType, String contentDisposition)
+            throws IOException {
+
+        if (StringUtils.isBlank(objectKey)) {
+            return "";
+        }
+        if (memo == null) {
+            return sign(service, profile, bucket, objectKey, expireInSeconds, contentType, contentDisposition);
+        }
+        List<Object> key = Arrays.<Object> asList(profile, bucket, objectKey, expireInSeconds, contentType,
+                contentDisposition);
+        String url = memo.get(key);
+        if (url == null) {
+            url = sign(service, profile, bucket, objectKey, expireInSeconds, contentType, contentDisposition);
+            memo.put(key, url);
+        }
+        return url;
+    }
+
+    protected static String sign(S3TempSignedURLService service, String profile, String bucket, String objectKey,
+            int expireInSeconds, String contentType, String contentDisposition) throws IOException {
+
+        if (profile == null) {
+            return service.build(bucket, objectKey, expireInSeconds, contentType, contentDisposition);
+        }
+        SignedURLRequest request = service.getBuilder(profile).newRequest(bucket, objectKey, expireInSeconds,
+                contentType, contentDisposition);
+        return service.sign(profile, request, null).getUrl();
+    }
+
+    /**
+     * Return the memo of the current JSF request, or null outside of a JSF request
+     */
+    @SuppressWarnings("unchecked")
+    protected static Map<List<Object>, String> getRequestMemo() {
+        FacesContext context = FacesContext.getCurrentInstance();
+        if (context == null) {
+            return null;
+        }
+        // A request is rendered by one thread
+        Map<String, Object> requestMap = context.getExternalContext().getRequestMap();
+        Map<List<Object>, String> memo = (Map<List<Object>, String>) requestMap.get(REQUEST_MEMO_KEY);
+        if (memo == null) {
+            memo = new HashMap<>();
+            requestMap.put(REQUEST_MEMO_KEY, memo);
+        }
+        return memo;
+    }
+
+}
@@ -18,11 +18,19 @@ package org.nuxeo.sheridan;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.net.URLEncoder;
+import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 import org.jboss.seam.ScopeType;
 import org.jboss.seam.annotations.Name;
 import org.jboss.seam.annotations.Scope;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.platform.ui.web.util.BaseURL;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.sheridan.web.S3RedirectServlet;
 
 /**
  * Bean helper for the Sheridan application, containing misc. functions to be called from a .xml file, typically a
@@ -68,8 +76,7 @@ public class SheridanHelperBean implements Serializable {
         String url = "";
 
         if (StringUtils.isNotBlank(objectKey)) {
-            S3TempSignedURLBuilder builder = new S3TempSignedURLBuilder();
-            url = builder.build(objectKey, 0, null, null);
+            url = getService().build(null, objectKey, 0, null, null);
         }
 
         return url;
@@ -94,8 +101,7 @@ public class SheridanHelperBean implements Serializable {
         String url = "";
 
         if (StringUtils.isNotBlank(objectKey)) {
-            S3TempSignedURLBuilder builder = new S3TempSignedURLBuilder();
-            url = builder.build(bucket, objectKey, 0, null, null);
+            url = getService().build(bucket, objectKey, 0, null, null);
         }
 
         return url;
@@ -123,11 +129,217 @@ public class SheridanHelperBean implements Serializable {
         String url = "";
 
         if (StringUtils.isNotBlank(objectKey)) {
-            S3TempSignedURLBuilder builder = new S3TempSignedURLBuilder();
-            url = builder.build(objectKey, objectKey, expireInSeconds, contentDisposition, null);
+            url = getService().build(bucket, objectKey, expireInSeconds, contentType, contentDisposition);
         }
 
         return url;
     }
 
+    /**
+     * Same as {@link #getS3TempSignedUrl(String, String)}, signed with the credentials of the profile (see
+     * {@link S3ProfileDescriptor}). If the bucket is empty, the code uses the bucket of the profile.
+     * <p>
+     * For example: <code>#{sheridanHelper.getProfileS3TempSignedUrl('archives', null, field)}</code>
+     *
+     * @since 7.10
+     */
+    public String getProfileS3TempSignedUrl(String profile, String bucket, String objectKey) throws IOException {
+
+        return getProfileS3TempSignedUrl(profile, bucket, objectKey, 0, null, null);
+    }
+
+    /**
+     * The full call with a profile. See {@link #getProfileS3TempSignedUrl(String, String, String)} and
+     * {@link #getS3TempSignedUrl(String, String, int, String, String)}; the default expiration is the one of the
+     * profile.
+     *
+     * @since 7.10
+     */
+    public String getProfileS3TempSignedUrl(String profile, String bucket, String objectKey, int expireInSeconds,
+            String contentType, String contentDisposition) throws IOException {
+
+        String url = "";
+
+        if (StringUtils.isNotBlank(objectKey)) {
+            S3TempSignedURLService service = getService();
+            SignedURLRequest request = service.getBuilder(profile).newRequest(bucket, objectKey, expireInSeconds,
+                    contentType, contentDisposition);
+            url = service.sign(profile, request, null).getUrl();
+        }
+
+        return url;
+    }
+
+    /**
+     * Return the S3 Temp Signed Urls of all the documents, the key of each object being stored in the
+     * <code>xpath</code> field, using the key id, secret key and bucket set in the configuration. All the URLs are
+     * signed in one call, which is much faster than one call per document on a listing page.
+     * <p>
+     * The map is indexed by document id. As for the other methods, a document with an empty key gets an empty URL. To
+     * sign only once per page, store the result in a variable, for example:
+     *
+     * <pre>
+     * {@code
+     * <c:set var="s3Urls" value="#{sheridanHelper.getS3TempSignedUrls(documents, 'myschema:S3key')}" cache="true" />
+     * ...
+     * <h:outputLink value="#{s3Urls[doc.id]}" target="_blank">#{doc.title}</h:outputLink>
+     * }
+     * </pre>
+     *
+     * @param docs
+     * @param xpath
+     * @return the signed URLs, by document id
+     * @throws IOException
+     * @since 7.10
+     */
+    public Map<String, String> getS3TempSignedUrls(DocumentModelList docs, String xpath) throws IOException {
+
+        return getService().buildForDocuments(docs, xpath, null, 0, null, null);
+    }
+
+    /**
+     * The full batch call. See {@link #getS3TempSignedUrls(DocumentModelList, String)} and
+     * {@link #getS3TempSignedUrl(String, String, int, String, String)}.
+     *
+     * @since 7.10
+     */
+    public Map<String, String> getS3TempSignedUrls(DocumentModelList docs, String xpath, String bucket,
+            int expireInSeconds, String contentType, String contentDisposition) throws IOException {
+
+        return getService().buildForDocuments(docs, xpath, bucket, expireInSeconds, contentType, contentDisposition);
+    }
+
+    /**
+     * Same as {@link #getProfileS3TempSignedUrl(String, String, String)} for all the documents, signed in one call. See
+     * {@link #getS3TempSignedUrls(DocumentModelList, String)}.
+     *
+     * @since 7.10
+     */
+    public Map<String, String> getProfileS3TempSignedUrls(String profile, DocumentModelList docs, String xpath)
+            throws IOException {
+
+        return getService().buildForDocuments(profile, docs, xpath, null, 0, null, null);
+    }
+
+    /**
+     * Return a link to the S3 object whose key is stored in the <code>xpath</code> field of the document. Nothing is
+     * signed when the page is rendered: the link points to {@link S3RedirectServlet}, which checks the user can read
+     * the document, signs the URL and redirects to it only when the link is followed. This is the cheapest way to
+     * display many links.
+     * <p>
+     * For example: <code>&lt;h:outputLink value="#{sheridanHelper.getS3RedirectUrl(doc, 'myschema:S3key')}"&gt;</code>
+     *
+     * @param doc
+     * @param xpath
+     * @return the link (relative to the server), or an empty string if the field is empty
+     * @since 7.10
+     */
+    public String getS3RedirectUrl(DocumentModel doc, String xpath) {
+
+        String url = "";
+
+        if (StringUtils.isNotBlank((String) doc.getPropertyValue(xpath))) {
+            url = BaseURL.getContextPath() + "/" + S3RedirectServlet.SERVLET_PATH + "/" + S3RedirectServlet.S3_PATH
+                    + "/" + doc.getId() + "/" + xpath;
+        }
+
+        return url;
+    }
+
+    /**
+     * Same as {@link #getS3RedirectUrl(DocumentModel, String)}, the URL being signed with the credentials of the
+     * profile (see {@link S3ProfileDescriptor}) when the link is followed.
+     *
+     * @since 7.10
+     */
+    public String getProfileS3RedirectUrl(String profile, DocumentModel doc, String xpath) throws IOException {
+
+        String url = getS3RedirectUrl(doc, xpath);
+
+        if (!url.isEmpty() && StringUtils.isNotBlank(profile)) {
+            url += "?profile=" + URLEncoder.encode(profile, "UTF-8");
+        }
+
+        return url;
+    }
+
+    /**
+     * Return false if the object whose key is stored in the <code>xpath</code> field of the document is known to be
+     * missing from the default bucket, so the page can hide its link. This is a local lookup in the existence index of
+     * the bucket (see {@link ObjectExistenceIndex}), and always true if the bucket has none.
+     * <p>
+     * For example: <code>&lt;c:if test="#{sheridanHelper.s3ObjectExists(doc, 'myschema:S3key')}"&gt;</code>
+     *
+     * @since 7.10
+     */
+    public boolean s3ObjectExists(DocumentModel doc, String xpath) {
+
+        String objectKey = (String) doc.getPropertyValue(xpath);
+        return StringUtils.isNotBlank(objectKey) && getService().objectExists(null, objectKey);
+    }
+
+    /**
+     * Return a link giving access, through CloudFront, to all the objects under the key prefix stored in the
+     * <code>xpath</code> field of the document (the segments of a video for example), and opening the object
+     * <code>file</code> of this prefix (the playlist). As with {@link #getS3RedirectUrl(DocumentModel, String)}, the
+     * policy is signed only when the link is followed, by {@link S3RedirectServlet}, which sets the CloudFront cookies.
+     *
+     * @param file the path of the object to open, relative to the prefix (<code>index.m3u8</code> for example)
+     * @return the link (relative to the server), or an empty string if the field is empty
+     * @since 7.10
+     */
+    public String getCloudFrontPrefixUrl(DocumentModel doc, String xpath, String file) throws IOException {
+
+        String url = "";
+
+        if (StringUtils.isNotBlank((String) doc.getPropertyValue(xpath))) {
+            url = BaseURL.getContextPath() + "/" + S3RedirectServlet.SERVLET_PATH + "/"
+                    + S3RedirectServlet.CLOUDFRONT_PATH + "/" + doc.getId() + "/" + xpath;
+            if (StringUtils.isNotBlank(file)) {
+                url += "?file=" + URLEncoder.encode(file, "UTF-8");
+            }
+        }
+
+        return url;
+    }
+
+    /**
+     * Return a link to download the blob stored in the <code>xpath</code> field of the document
+     * (<code>file:content</code> for example) directly from S3, when it is stored by the S3 binary manager of Nuxeo.
+     * As with {@link #getS3RedirectUrl(DocumentModel, String)}, the URL is signed only when the link is followed, by
+     * {@link S3RedirectServlet}, which falls back to the usual Nuxeo download if the blob is not stored in S3.
+     *
+     * @return the link (relative to the server), or an empty string if there is no blob
+     * @since 7.10
+     */
+    public String getBlobRedirectUrl(DocumentModel doc, String xpath) {
+
+        String url = "";
+
+        if (doc.getPropertyValue(xpath) instanceof Blob) {
+            url = BaseURL.getContextPath() + "/" + S3RedirectServlet.SERVLET_PATH + "/" + S3RedirectServlet.BLOB_PATH
+                    + "/" + doc.getId() + "/" + xpath;
+        }
+
+        return url;
+    }
+
+    /**
+     * Return a temporary signed URL to download the blob stored in the <code>xpath</code> field of the document
+     * directly from S3, with its filename and MIME type.
+     *
+     * @return the URL, or an empty string if there is no blob or it is not stored by the S3 binary manager
+     * @since 7.10
+     */
+    public String getBlobTempSignedUrl(DocumentModel doc, String xpath) throws IOException {
+
+        Serializable value = doc.getPropertyValue(xpath);
+        SignedURL url = value instanceof Blob ? getService().signBlob((Blob) value, 0, false) : null;
+        return url == null ? "" : url.getUrl();
+    }
+
+    protected S3TempSignedURLService getService() {
+        return Framework.getService(S3TempSignedURLService.class);
+    }
+
 }
@@ -0,0 +1,177 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
+/**
+ * The metrics of the URL signing, registered in the Nuxeo metrics registry (so they are available in JMX, Graphite,
+ * ... depending on the metrics configuration).
+ * <p>
+ * Recording does not allocate: the signing timers keep the last timings in a lock-free, fixed-size reservoir (see
+ * {@link SlidingWindowAtomicReservoir}), so their percentiles reflect the recent signings, not the whole life of the
+ * server. Timings are recorded with {@link #recordSigning(String, long)} instead of a <code>Timer.Context</code>, and
+ * the counter of each bucket is created once (for a bounded number of buckets).
+ *
+ * @since 7.10
+ */
+public final class SheridanMetrics {
+
+    public static final String PREFIX = "nuxeo.sheridan";
+
+    protected static final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    /**
+     * Signing latency (histogram) and rate
+     */
+    public static final Timer SIGNING = timer(MetricRegistry.name(PREFIX, "sign"));
+
+    /**
+     * CloudFront signing latency (histogram) and rate: RSA signatures, much slower than the S3 ones
+     */
+    public static final Timer CLOUDFRONT_SIGNING = timer(MetricRegistry.name(PREFIX, "cloudfront", "sign"));
+
+    /**
+     * CloudFront prefix policies signed (see {@link CloudFrontSignedURLBuilder#signPrefix(String, int)})
+     */
+    public static final Counter CLOUDFRONT_PREFIX_POLICIES = registry.counter(MetricRegistry.name(PREFIX,
+            "cloudfront", "sign", "prefix"));
+
+    /**
+     * URLs for which the AWS client and SigV4Presigner disagreed (<code>sheridan.s3.signer=verify</code>)
+     */
+    public static final Counter SIGNER_MISMATCHES = registry.counter(MetricRegistry.name(PREFIX, "sign", "mismatch"));
+
+    public static final Counter CLIENTS_CREATED = registry.counter(MetricRegistry.name(PREFIX, "client", "created"));
+
+    /**
+     * Configuration properties read with <code>Framework.getProperty</code>
+     */
+    public static final Counter CONFIG_LOOKUPS = registry.counter(MetricRegistry.name(PREFIX, "config", "lookups"));
+
+    public static final Counter CACHE_HITS = registry.counter(MetricRegistry.name(PREFIX, "cache", "hits"));
+
+    public static final Counter CACHE_MISSES = registry.counter(MetricRegistry.name(PREFIX, "cache", "misses"));
+
+    public static final Counter CACHE_EVICTIONS = registry.counter(MetricRegistry.name(PREFIX, "cache", "evictions"));
+
+    /**
+     * Bucket regions looked up with <code>GetBucketLocation</code> (once per bucket)
+     */
+    public static final Counter REGION_LOOKUPS = registry.counter(MetricRegistry.name(PREFIX, "region", "lookups"));
+
+    public static final Counter CREDENTIALS_ROTATIONS = registry.counter(MetricRegistry.name(PREFIX, "credentials",
+            "rotations"));
+
+    public static final Counter CREDENTIALS_REFRESH_FAILURES = registry.counter(MetricRegistry.name(PREFIX,
+            "credentials", "refresh", "failures"));
+
+    /**
+     * Objects checked with a <code>HEAD</code> request by an {@link ObjectExistenceIndex}
+     */
+    public static final Counter EXISTENCE_CHECKS = registry.counter(MetricRegistry.name(PREFIX, "existence",
+            "checks"));
+
+    /**
+     * Lookups of missing objects (dead links) in an {@link ObjectExistenceIndex}
+     */
+    public static final Counter EXISTENCE_MISSING = registry.counter(MetricRegistry.name(PREFIX, "existence",
+            "missing"));
+
+    /**
+     * Events of the audit trail written by the {@link SignedURLAuditor}
+     */
+    public static final Counter AUDIT_WRITTEN = registry.counter(MetricRegistry.name(PREFIX, "audit", "written"));
+
+    /**
+     * Events of the audit trail lost, the buffer being full or the target failing
+     */
+    public static final Counter AUDIT_DROPPED = registry.counter(MetricRegistry.name(PREFIX, "audit", "dropped"));
+
+    /**
+     * Buckets having their own counter, the next ones are counted in {@link #OTHER_BUCKETS}
+     */
+    public static final int MAX_BUCKET_COUNTERS = 100;
+
+    public static final String OTHER_BUCKETS = "_other";
+
+    protected static final ConcurrentMap<String, Counter> bucketCounters = new ConcurrentHashMap<>();
+
+    private SheridanMetrics() {
+        // Utility class
+    }
+
+    /**
+     * Record the signing of one URL for this bucket, which took <code>nanos</code>
+     */
+    public static void recordSigning(String bucket, long nanos) {
+        SIGNING.update(nanos, TimeUnit.NANOSECONDS);
+        getBucketCounter(bucket).inc();
+    }
+
+    /**
+     * Record the signing of one CloudFront URL or policy, which took <code>nanos</code>
+     */
+    public static void recordCloudFrontSigning(long nanos) {
+        CLOUDFRONT_SIGNING.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Return the counter of URLs signed for this bucket, or of the {@link #OTHER_BUCKETS} once
+     * {@link #MAX_BUCKET_COUNTERS} buckets have their counter
+     */
+    public static Counter getBucketCounter(String bucket) {
+        Counter counter = bucketCounters.get(bucket);
+        if (counter == null) {
+            if (bucketCounters.size() >= MAX_BUCKET_COUNTERS && !OTHER_BUCKETS.equals(bucket)) {
+                return getBucketCounter(OTHER_BUCKETS);
+            }
+            counter = registry.counter(MetricRegistry.name(PREFIX, "sign", "bucket", bucket));
+            Counter existing = bucketCounters.putIfAbsent(bucket, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Return the timer, registered with a {@link SlidingWindowAtomicReservoir} unless it already exists
+     */
+    protected static Timer timer(String name) {
+        Timer timer = registry.getTimers().get(name);
+        if (timer == null) {
+            try {
+                timer = registry.register(name, new Timer(new SlidingWindowAtomicReservoir()));
+            } catch (IllegalArgumentException e) {
+                // Registered meanwhile
+                timer = registry.timer(name);
+            }
+        }
+        return timer;
+    }
+
+}
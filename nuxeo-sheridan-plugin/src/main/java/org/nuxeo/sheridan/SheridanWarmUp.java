@@ -0,0 +1,322 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import com.amazonaws.auth.AWSCredentials;
+
+/**
+ * Warms up the signing in the background when the service starts, so the first page rendered after a restart does
+ * not wait for the AWS SDK classes to load, the clients to be created, the credentials to be read and the JIT to
+ * compile the signer:
+ * <ol>
+ * <li>Check the configuration and read the credentials</li>
+ * <li>Create the client of each known bucket (default bucket, buckets with their own settings, CloudFront and binary
+ * manager buckets), looking up its region if needed</li>
+ * <li>Sign {@value #SIGNATURES} URLs of dummy keys, through the same code as the real ones, but not counted in the
+ * {@link SheridanMetrics}: they are not served</li>
+ * </ol>
+ * The builder of each profile (see {@link S3ProfileDescriptor}) is created and its buckets warmed up the same way,
+ * with one batch of signatures as the JIT is already warm. When profiles are contributed, the default configuration
+ * is skipped if it has no credentials.
+ * The warm-up never blocks Nuxeo startup, it runs in its own thread. Until it is done, {@link #isReady()} returns false
+ * (see {@link S3TempSignedURLService#isReady()}). If the warm-up fails (the configuration being wrong, or the
+ * credentials endpoint not available yet), it is retried after {@value #DEFAULT_RETRY_DELAY} seconds, then after twice
+ * as long each time, up to {@value #MAX_RETRY_DELAY} seconds, until it succeeds or the service stops.
+ * It is disabled with <code>sheridan.warmUp=false</code>, the service is then ready immediately.
+ *
+ * @since 7.10
+ */
+public class SheridanWarmUp {
+
+    private static final Log log = LogFactory.getLog(SheridanWarmUp.class);
+
+    public static final String CONF_KEY_NAME_WARM_UP = "sheridan.warmUp";
+
+    /**
+     * Enough for the JIT to compile the signing methods
+     */
+    public static final int SIGNATURES = 10000;
+
+    protected static final int BATCH_SIZE = 500;
+
+    protected static final String DUMMY_KEY_PREFIX = "sheridan-warm-up/";
+
+    /**
+     * Seconds before the first retry of a failed warm-up
+     */
+    public static final long DEFAULT_RETRY_DELAY = 30;
+
+    /**
+     * Maximum seconds between two retries
+     */
+    public static final long MAX_RETRY_DELAY = 600;
+
+    public enum State {
+        PENDING, RUNNING, READY, FAILED
+    }
+
+    protected final S3TempSignedURLService service;
+
+    protected final Collection<String> extraBuckets;
+
+    protected volatile State state = State.PENDING;
+
+    protected volatile String error;
+
+    protected volatile long durationMillis;
+
+    protected volatile int failures;
+
+    protected final long retryDelayMillis;
+
+    protected ScheduledExecutorService executor;
+
+    /**
+     * @param extraBuckets buckets to warm up besides the ones of the configuration
+     */
+    public SheridanWarmUp(S3TempSignedURLService service, Collection<String> extraBuckets) {
+        this(service, extraBuckets, TimeUnit.SECONDS.toMillis(DEFAULT_RETRY_DELAY));
+    }
+
+    /**
+     * @param retryDelayMillis milliseconds before the first retry of a failed warm-up, doubled after each failure
+     * @since 7.10
+     */
+    public SheridanWarmUp(S3TempSignedURLService service, Collection<String> extraBuckets, long retryDelayMillis) {
+        this.service = service;
+        this.extraBuckets = extraBuckets;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    public static boolean isEnabled() {
+        return !"false".equals(S3SignerConfig.getProperty(CONF_KEY_NAME_WARM_UP));
+    }
+
+    /**
+     * Start the warm-up in the background
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        state = State.RUNNING;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sheridan-warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::run);
+    }
+
+    /**
+     * Interrupt the warm-up if it is still running, cancel its retry if it failed
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    protected void run() {
+        long start = System.currentTimeMillis();
+        try {
+            warmUp();
+            durationMillis = System.currentTimeMillis() - start;
+            error = null;
+            state = State.READY;
+            log.info("Signing warmed up in " + durationMillis + "ms");
+            done();
+        } catch (InterruptedException e) {
+            // Stopped: the service is going away
+            state = State.FAILED;
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            error = e.getMessage();
+            state = State.FAILED;
+            long delay = getRetryDelayMillis(++failures);
+            log.error("Cannot warm up the signing, check the configuration, retrying in " + delay + "ms: "
+                    + e.getMessage(), e);
+            retry(delay);
+        }
+    }
+
+    /**
+     * Return the delay before the next attempt after <code>failures</code> consecutive failures
+     */
+    protected long getRetryDelayMillis(int failures) {
+        long max = Math.max(retryDelayMillis, TimeUnit.SECONDS.toMillis(MAX_RETRY_DELAY));
+        // No overflow: the delay is capped long before
+        return failures > 20 ? max : Math.min(retryDelayMillis << (failures - 1), max);
+    }
+
+    protected synchronized void retry(long delayMillis) {
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.schedule(() -> {
+                state = State.RUNNING;
+                run();
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped meanwhile
+        }
+    }
+
+    protected synchronized void done() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    protected void warmUp() throws InterruptedException {
+
+        Set<String> profiles = service.getProfileNames();
+        S3TempSignedURLBuilder builder;
+        try {
+            // Throws if there are no credentials
+            builder = service.getBuilder();
+        } catch (NuxeoException e) {
+            if (profiles.isEmpty()) {
+                throw e;
+            }
+            log.info("No default AWS credentials, only the profiles are warmed up");
+            builder = null;
+        }
+
+        int signatures = SIGNATURES;
+        if (builder != null) {
+            CloudFrontSignedURLBuilder cloudFront = service.getCloudFrontBuilder();
+            if (warmUp(builder, cloudFront, extraBuckets, signatures)) {
+                signatures = BATCH_SIZE;
+            }
+        }
+        for (String profile : profiles) {
+            if (warmUp(service.getBuilder(profile), null, Collections.<String> emptyList(), signatures)) {
+                signatures = BATCH_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Warm up the builder, return false if it has no bucket to warm up
+     */
+    protected boolean warmUp(S3TempSignedURLBuilder builder, CloudFrontSignedURLBuilder cloudFront,
+            Collection<String> extraBuckets, int signatures) throws InterruptedException {
+
+        S3SignerConfig config = builder.getConfig();
+        // Loads them if they are read from a file or an endpoint
+        AWSCredentials credentials = config.getCredentialsProvider().getCredentials();
+        if (credentials == null || credentials.getAWSAccessKeyId() == null) {
+            throw new IllegalStateException("No AWS credentials for the " + config.getProfile() + " profile");
+        }
+
+        Set<String> buckets = new LinkedHashSet<>(config.getConfiguredBuckets());
+        if (cloudFront != null) {
+            buckets.add(cloudFront.getBucket());
+        }
+        buckets.addAll(extraBuckets);
+        if (buckets.isEmpty()) {
+            log.warn("No bucket configured for the " + config.getProfile() + " profile ("
+                    + S3TempSignedURLBuilder.CONF_KEY_NAME_BUCKET + "), its signing is not warmed up");
+            return false;
+        }
+        for (String bucket : buckets) {
+            checkInterrupted();
+            builder.getClient(bucket);
+        }
+
+        int signed = 0;
+        while (signed < signatures) {
+            for (String bucket : buckets) {
+                checkInterrupted();
+                List<SignedURLRequest> requests = new ArrayList<>(BATCH_SIZE);
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    requests.add(builder.newRequest(bucket, DUMMY_KEY_PREFIX + signed++, 0, null, null));
+                }
+                long now = System.currentTimeMillis();
+                try {
+                    for (SignedURLRequest request : requests) {
+                        if (cloudFront != null && bucket.equals(cloudFront.getBucket())) {
+                            cloudFront.signUnrecorded(request, now);
+                        } else {
+                            builder.signUnrecorded(request, now);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+            }
+        }
+        return true;
+    }
+
+    protected static void checkInterrupted() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    public boolean isReady() {
+        return state == State.READY;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Return the error message if the warm-up failed, else null
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Return the number of failed attempts, the warm-up being retried after each one
+     *
+     * @since 7.10
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Return how long the warm-up took, 0 until it is done
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+}
@@ -0,0 +1,337 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSSessionCredentials;
+
+/**
+ * Builds AWS Signature Version 4 presigned URLs for S3 with the JDK only.
+ * <p>
+ * Presigning is an HMAC-SHA256 over a canonical string, so there is no need to go through the request pipeline of the
+ * AWS client (request object, handlers, endpoint resolution, URL/URI conversions). This class:
+ * <ul>
+ * <li>Caches the derived signing key per access key, date, region and service (it changes once a day)</li>
+ * <li>Reuses one <code>Mac</code> and one <code>MessageDigest</code> per thread</li>
+ * <li>Encodes each parameter once, for both the canonical query string and the URL</li>
+ * </ul>
+ * The URLs are byte-identical to the ones built by the SDK with the <code>AWSS3V4SignerType</code> signer for the same
+ * signing time and expiration, including the order of the query parameters.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @since 7.10
+ */
+public class SigV4Presigner {
+
+    public static final String ALGORITHM = "AWS4-HMAC-SHA256";
+
+    public static final String SERVICE = "s3";
+
+    public static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+
+    /**
+     * SigV4 presigned URLs cannot be valid for more than 7 days
+     */
+    public static final long MAX_EXPIRES_IN_SECONDS = 7 * 24 * 3600;
+
+    protected static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    protected static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+
+    protected static final ThreadLocal<ThreadContext> THREAD_CONTEXT = new ThreadLocal<ThreadContext>() {
+        @Override
+        protected ThreadContext initialValue() {
+            return new ThreadContext();
+        }
+    };
+
+    protected final String region;
+
+    protected final ConcurrentMap<String, SigningKey> signingKeys = new ConcurrentHashMap<>();
+
+    protected volatile AmzDate lastDate = new AmzDate(0);
+
+    public SigV4Presigner(String region) {
+        this.region = region;
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    /**
+     * Return the presigned URL.
+     *
+     * @param method the HTTP method (GET, PUT, ...)
+     * @param scheme http or https
+     * @param host the host, used in the URL and signed in the <code>host</code> header
+     * @param encodedPath the path, already URI-encoded (see {@link #uriEncode(String, boolean)})
+     * @param parameters the request parameters (not encoded), in the order they must appear in the URL
+     * @param credentials the credentials. If they are session credentials, the token is added to the URL
+     * @param signedAt the signing time, in ms since epoch
+     * @param expiresInSeconds number of seconds the URL is valid, starting at <code>signedAt</code> (truncated to the
+     *            second)
+     * @since 7.10
+     */
+    public String presign(String method, String scheme, String host, String encodedPath,
+            Map<String, String> parameters, AWSCredentials credentials, long signedAt, long expiresInSeconds) {
+
+        if (expiresInSeconds > MAX_EXPIRES_IN_SECONDS) {
+            throw new NuxeoException("A SigV4 presigned URL cannot be valid for more than 7 days");
+        }
+
+        AmzDate date = getAmzDate(signedAt);
+        String accessKeyId = credentials.getAWSAccessKeyId();
+        String scope = date.dateStamp + "/" + region + "/" + SERVICE + "/aws4_request";
+
+        // Parameters in the URL order (the SDK order: request parameters, then the SigV4 ones), sorted by encoded name
+        // for the canonical query string.
+        Map<String, String> urlParameters = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+            urlParameters.put(uriEncode(entry.getKey(), false), uriEncode(entry.getValue(), false));
+        }
+        if (credentials instanceof AWSSessionCredentials) {
+            urlParameters.put("X-Amz-Security-Token",
+                    uriEncode(((AWSSessionCredentials) credentials).getSessionToken(), false));
+        }
+        urlParameters.put("X-Amz-Algorithm", ALGORITHM);
+        urlParameters.put("X-Amz-Date", date.amzDate);
+        urlParameters.put("X-Amz-SignedHeaders", "host");
+        urlParameters.put("X-Amz-Expires", Long.toString(expiresInSeconds));
+        urlParameters.put("X-Amz-Credential", uriEncode(accessKeyId + "/" + scope, false));
+
+        StringBuilder query = new StringBuilder(512);
+        for (Map.Entry<String, String> entry : urlParameters.entrySet()) {
+            query.append(entry.getKey()).append('=').append(entry.getValue()).append('&');
+        }
+
+        StringBuilder canonical = new StringBuilder(512);
+        canonical.append(method).append('\n').append(encodedPath).append('\n');
+        boolean first = true;
+        for (Map.Entry<String, String> entry : new TreeMap<>(urlParameters).entrySet()) {
+            if (!first) {
+                canonical.append('&');
+            }
+            canonical.append(entry.getKey()).append('=').append(entry.getValue());
+            first = false;
+        }
+        canonical.append("\nhost:").append(host).append("\n\nhost\n").append(UNSIGNED_PAYLOAD);
+
+        ThreadContext context = THREAD_CONTEXT.get();
+        String stringToSign = ALGORITHM + "\n" + date.amzDate + "\n" + scope + "\n"
+                + toHex(context.sha256.digest(canonical.toString().getBytes(StandardCharsets.UTF_8)));
+        byte[] signingKey = getSigningKey(credentials, date.dateStamp);
+        String signature = toHex(context.hmac(signingKey, stringToSign.getBytes(StandardCharsets.UTF_8)));
+
+        query.append("X-Amz-Signature=").append(signature);
+        // As the SDK does, escape double slashes in the URL only (they are signed as is)
+        return scheme + "://" + host + encodedPath.replace("//", "/%2F") + "?" + query;
+    }
+
+    /**
+     * Clear the cached signing keys. Not required when credentials change (the cached keys are tied to the secret key
+     * they were derived from), but it frees them.
+     *
+     * @since 7.10
+     */
+    public void clearSigningKeys() {
+        signingKeys.clear();
+    }
+
+    protected byte[] getSigningKey(AWSCredentials credentials, String dateStamp) {
+
+        String secret = credentials.getAWSSecretKey();
+        String cacheKey = credentials.getAWSAccessKeyId() + "/" + dateStamp;
+        SigningKey key = signingKeys.get(cacheKey);
+        if (key == null || !key.secret.equals(secret)) {
+            ThreadContext context = THREAD_CONTEXT.get();
+            byte[] k = context.hmac(("AWS4" + secret).getBytes(StandardCharsets.UTF_8),
+                    dateStamp.getBytes(StandardCharsets.UTF_8));
+            k = context.hmac(k, region.getBytes(StandardCharsets.UTF_8));
+            k = context.hmac(k, SERVICE.getBytes(StandardCharsets.UTF_8));
+            k = context.hmac(k, "aws4_request".getBytes(StandardCharsets.UTF_8));
+            key = new SigningKey(secret, dateStamp, k);
+            // Keys of the previous days are useless now
+            for (SigningKey old : signingKeys.values()) {
+                if (!old.dateStamp.equals(dateStamp)) {
+                    signingKeys.values().remove(old);
+                }
+            }
+            signingKeys.put(cacheKey, key);
+        }
+        return key.key;
+    }
+
+    protected AmzDate getAmzDate(long timeMillis) {
+        long epochSecond = Math.floorDiv(timeMillis, 1000);
+        AmzDate date = lastDate;
+        if (date.epochSecond != epochSecond) {
+            date = new AmzDate(epochSecond);
+            lastDate = date;
+        }
+        return date;
+    }
+
+    /**
+     * URI-encode the value as required by SigV4 (and as done by the SDK): every character but the unreserved ones
+     * (A-Z, a-z, 0-9, '-', '_', '.', '~') is percent-encoded, and so is '/' unless <code>path</code> is true.
+     *
+     * @since 7.10
+     */
+    public static String uriEncode(String value, boolean path) {
+
+        StringBuilder sb = null;
+        int len = value.length();
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if (isUnreserved(c) || (path && c == '/')) {
+                if (sb != null) {
+                    sb.append(c);
+                }
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(len + 16);
+                sb.append(value, 0, i);
+            }
+            if (c >= 0x80) {
+                // Non-ASCII: restart from the UTF-8 bytes
+                return uriEncodeBytes(value.getBytes(StandardCharsets.UTF_8), path);
+            }
+            appendEscaped(sb, c);
+        }
+        return sb == null ? value : sb.toString();
+    }
+
+    protected static String uriEncodeBytes(byte[] bytes, boolean path) {
+        StringBuilder sb = new StringBuilder(bytes.length * 3);
+        for (byte b : bytes) {
+            int c = b & 0xff;
+            if (c < 0x80 && (isUnreserved((char) c) || (path && c == '/'))) {
+                sb.append((char) c);
+            } else {
+                appendEscaped(sb, c);
+            }
+        }
+        return sb.toString();
+    }
+
+    protected static boolean isUnreserved(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_'
+                || c == '.' || c == '~';
+    }
+
+    protected static void appendEscaped(StringBuilder sb, int c) {
+        sb.append('%').append(HEX_UPPER[(c >> 4) & 0xf]).append(HEX_UPPER[c & 0xf]);
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Per-thread crypto objects. The Mac keeps its key between calls, so signing with the same signing key (the usual
+     * case) does not need to re-initialize it.
+     */
+    protected static class ThreadContext {
+
+        protected final Mac mac;
+
+        protected final MessageDigest sha256;
+
+        protected byte[] macKey;
+
+        protected ThreadContext() {
+            try {
+                mac = Mac.getInstance("HmacSHA256");
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (GeneralSecurityException e) {
+                throw new NuxeoException(e);
+            }
+        }
+
+        protected byte[] hmac(byte[] key, byte[] data) {
+            try {
+                if (key != macKey) {
+                    mac.init(new SecretKeySpec(key, "HmacSHA256"));
+                    macKey = key;
+                }
+                return mac.doFinal(data);
+            } catch (GeneralSecurityException e) {
+                throw new NuxeoException(e);
+            }
+        }
+    }
+
+    protected static class SigningKey {
+
+        protected final String secret;
+
+        protected final String dateStamp;
+
+        protected final byte[] key;
+
+        protected SigningKey(String secret, String dateStamp, byte[] key) {
+            this.secret = secret;
+            this.dateStamp = dateStamp;
+            this.key = key;
+        }
+    }
+
+    /**
+     * The SigV4 representations of a time, computed once per second.
+     */
+    protected static class AmzDate {
+
+        protected final long epochSecond;
+
+        protected final String amzDate;
+
+        protected final String dateStamp;
+
+        protected AmzDate(long epochSecond) {
+            this.epochSecond = epochSecond;
+            LocalDateTime time = LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+            amzDate = String.format("%04d%02d%02dT%02d%02d%02dZ", time.getYear(), time.getMonthValue(),
+                    time.getDayOfMonth(), time.getHour(), time.getMinute(), time.getSecond());
+            dateStamp = amzDate.substring(0, 8);
+        }
+    }
+
+}
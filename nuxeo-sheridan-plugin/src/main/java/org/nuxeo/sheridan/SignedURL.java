@@ -0,0 +1,69 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+/**
+ * A signed URL, with the time it was signed at and the time it expires at.
+ *
+ * @since 7.10
+ */
+public class SignedURL {
+
+    protected final String url;
+
+    protected final long signedAt;
+
+    protected final long expiresAt;
+
+    public SignedURL(String url, long signedAt, long expiresAt) {
+        this.url = url;
+        this.signedAt = signedAt;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Return the time (in ms since epoch) the URL was signed at
+     */
+    public long getSignedAt() {
+        return signedAt;
+    }
+
+    /**
+     * Return the time (in ms since epoch) the URL expires at
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public long getLifetimeMillis() {
+        return expiresAt - signedAt;
+    }
+
+    public long getRemainingMillis(long now) {
+        return expiresAt - now;
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+/**
+ * The record of one signed URL given to a user: who got it, for which document and object, and until when. It does
+ * not hold the URL itself, which is a credential until it expires.
+ *
+ * @since 7.10
+ */
+public class SignedURLAuditEvent {
+
+    /**
+     * The method of a CloudFront policy for a prefix, returned to the client (see
+     * {@link CloudFrontSignedURLBuilder#signPrefix(String, int)})
+     */
+    public static final String METHOD_POLICY = "POLICY";
+
+    /**
+     * The method of CloudFront cookies for a prefix, set on the browser
+     */
+    public static final String METHOD_COOKIES = "COOKIES";
+
+    protected final long timestamp;
+
+    protected final String user;
+
+    protected final String docId;
+
+    protected final String method;
+
+    protected final String bucket;
+
+    protected final String objectKey;
+
+    protected final long expiresAt;
+
+    public SignedURLAuditEvent(long timestamp, String user, String docId, String method, String bucket,
+            String objectKey, long expiresAt) {
+        this.timestamp = timestamp;
+        this.user = user;
+        this.docId = docId;
+        this.method = method;
+        this.bucket = bucket;
+        this.objectKey = objectKey;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * When the URL was given, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * The name of the user, or null if the URL was signed outside of a login context
+     */
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * The id of the document holding the object key or blob, or null if it is not known
+     */
+    public String getDocId() {
+        return docId;
+    }
+
+    /**
+     * The HTTP method of the URL, or {@link #METHOD_POLICY} or {@link #METHOD_COOKIES}
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    /**
+     * The key of the object, or the prefix of a CloudFront policy
+     */
+    public String getObjectKey() {
+        return objectKey;
+    }
+
+    /**
+     * When the URL expires, in milliseconds since the epoch
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + user + ", " + docId + ", " + method + " " + bucket + "/" + objectKey
+                + ", " + expiresAt + ")";
+    }
+
+}
@@ -0,0 +1,363 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.local.ClientLoginModule;
+import org.nuxeo.ecm.platform.audit.api.AuditLogger;
+import org.nuxeo.ecm.platform.audit.api.ExtendedInfo;
+import org.nuxeo.ecm.platform.audit.api.LogEntry;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Audit trail of the signed URLs given to users, written in the background so it does not slow down the signing.
+ * <p>
+ * Recording a URL only adds a {@link SignedURLAuditEvent} to a {@link BoundedRingBuffer} (no lock, no I/O). A writer
+ * thread drains the buffer in batches of up to <code>sheridan.audit.batchSize</code> events (1000 by default), at
+ * least every <code>sheridan.audit.flushInterval</code> milliseconds (1000 by default), to:
+ * <ul>
+ * <li><code>sheridan.audit.target=log</code> (default): the <code>org.nuxeo.sheridan.audit</code> log category, one
+ * JSON object per line, so log4j can write it to its own rolling file</li>
+ * <li><code>sheridan.audit.target=audit</code>: the Nuxeo audit log, as <code>sheridanSignedURL</code> entries of the
+ * <code>sheridan</code> category</li>
+ * </ul>
+ * When the buffer is full (<code>sheridan.audit.capacity</code> events, 65536 by default), new events are dropped and
+ * counted in {@link SheridanMetrics#AUDIT_DROPPED} (<code>sheridan.audit.overflow=drop</code>, the default), or the
+ * signing waits for the writer to make room (<code>sheridan.audit.overflow=block</code>) when losing an event is not
+ * an option.
+ * <p>
+ * Disabled by default, enable it with <code>sheridan.audit.enabled=true</code>.
+ *
+ * @since 7.10
+ */
+public class SignedURLAuditor {
+
+    private static final Log log = LogFactory.getLog(SignedURLAuditor.class);
+
+    public static final String AUDIT_LOG_NAME = "org.nuxeo.sheridan.audit";
+
+    public static final String EVENT_ID = "sheridanSignedURL";
+
+    public static final String EVENT_CATEGORY = "sheridan";
+
+    public static final String CONF_KEY_NAME_ENABLED = "sheridan.audit.enabled";
+
+    public static final String CONF_KEY_NAME_TARGET = "sheridan.audit.target";
+
+    public static final String CONF_KEY_NAME_CAPACITY = "sheridan.audit.capacity";
+
+    public static final String CONF_KEY_NAME_OVERFLOW = "sheridan.audit.overflow";
+
+    public static final String CONF_KEY_NAME_BATCH_SIZE = "sheridan.audit.batchSize";
+
+    public static final String CONF_KEY_NAME_FLUSH_INTERVAL = "sheridan.audit.flushInterval";
+
+    public static final String TARGET_LOG = "log";
+
+    public static final String TARGET_AUDIT = "audit";
+
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    /**
+     * How long a blocked producer waits before checking the buffer again
+     */
+    protected static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    protected static final long STOP_TIMEOUT = 10000;
+
+    protected static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public enum Overflow {
+        DROP, BLOCK
+    }
+
+    /**
+     * Where the events are written, always from the writer thread
+     */
+    public interface Sink {
+
+        void write(List<SignedURLAuditEvent> events) throws IOException;
+
+    }
+
+    protected final BoundedRingBuffer<SignedURLAuditEvent> buffer;
+
+    protected final Overflow overflow;
+
+    protected final int batchSize;
+
+    protected final long flushIntervalNanos;
+
+    protected final Sink sink;
+
+    protected volatile boolean running;
+
+    protected volatile Thread writer;
+
+    public SignedURLAuditor(Sink sink, int capacity, Overflow overflow, int batchSize, long flushIntervalMillis) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        this.sink = sink;
+        buffer = new BoundedRingBuffer<>(capacity);
+        this.overflow = overflow;
+        this.batchSize = batchSize;
+        flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMillis));
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(S3SignerConfig.getProperty(CONF_KEY_NAME_ENABLED));
+    }
+
+    /**
+     * Return the auditor configured in the Nuxeo properties, or null if the audit trail is disabled
+     */
+    public static SignedURLAuditor fromFramework() {
+        if (!isEnabled()) {
+            return null;
+        }
+        String target = S3SignerConfig.getProperty(CONF_KEY_NAME_TARGET);
+        Sink sink;
+        if (target == null || TARGET_LOG.equals(target)) {
+            sink = new LogSink();
+        } else if (TARGET_AUDIT.equals(target)) {
+            sink = new AuditLoggerSink();
+        } else {
+            throw new NuxeoException("Invalid " + CONF_KEY_NAME_TARGET + ": " + target + ", expected "
+                    + TARGET_LOG + " or " + TARGET_AUDIT);
+        }
+        String overflow = S3SignerConfig.getProperty(CONF_KEY_NAME_OVERFLOW);
+        return new SignedURLAuditor(sink,
+                NumberUtils.toInt(S3SignerConfig.getProperty(CONF_KEY_NAME_CAPACITY), DEFAULT_CAPACITY),
+                "block".equals(overflow) ? Overflow.BLOCK : Overflow.DROP,
+                NumberUtils.toInt(S3SignerConfig.getProperty(CONF_KEY_NAME_BATCH_SIZE), DEFAULT_BATCH_SIZE),
+                NumberUtils.toLong(S3SignerConfig.getProperty(CONF_KEY_NAME_FLUSH_INTERVAL), DEFAULT_FLUSH_INTERVAL));
+    }
+
+    /**
+     * Return the name of the user logged in on this thread, or null
+     */
+    public static String currentUser() {
+        Principal principal = ClientLoginModule.getCurrentPrincipal();
+        return principal == null ? null : principal.getName();
+    }
+
+    /**
+     * Start the writer thread
+     */
+    public synchronized void start() {
+        if (writer != null) {
+            return;
+        }
+        running = true;
+        Thread thread = new Thread(this::run, "sheridan-audit");
+        thread.setDaemon(true);
+        writer = thread;
+        thread.start();
+    }
+
+    /**
+     * Stop the writer thread, once it has written the events still in the buffer
+     */
+    public synchronized void stop() {
+        Thread thread = writer;
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(STOP_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        if (!buffer.isEmpty()) {
+            log.warn("Audit trail stopped with about " + buffer.size() + " events not written");
+        }
+    }
+
+    /**
+     * Record a URL given to <code>user</code>
+     *
+     * @param docId the document holding the object key, or null if it is not known
+     */
+    public void record(String user, String docId, SignedURLRequest request, SignedURL url) {
+        record(new SignedURLAuditEvent(System.currentTimeMillis(), user, docId, request.getMethod(),
+                request.getBucket(), request.getObjectKey(), url.getExpiresAt()));
+    }
+
+    public void record(SignedURLAuditEvent event) {
+        if (buffer.offer(event)) {
+            return;
+        }
+        if (overflow == Overflow.BLOCK) {
+            while (running) {
+                // Full: wake up the writer instead of waiting for the end of its flush interval (again on each try,
+                // it may have gone back to sleep with a partial batch)
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                if (buffer.offer(event)) {
+                    return;
+                }
+            }
+        }
+        SheridanMetrics.AUDIT_DROPPED.inc();
+    }
+
+    protected void run() {
+        List<SignedURLAuditEvent> batch = new ArrayList<>(batchSize);
+        while (running) {
+            int count = buffer.drainTo(batch, batchSize);
+            if (count > 0) {
+                write(batch);
+            }
+            if (count < batchSize) {
+                // Let the next batch fill up
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+        }
+        while (buffer.drainTo(batch, batchSize) > 0) {
+            write(batch);
+        }
+    }
+
+    protected void write(List<SignedURLAuditEvent> batch) {
+        try {
+            sink.write(batch);
+            SheridanMetrics.AUDIT_WRITTEN.inc(batch.size());
+        } catch (IOException | RuntimeException e) {
+            SheridanMetrics.AUDIT_DROPPED.inc(batch.size());
+            log.error("Cannot write " + batch.size() + " events to the audit trail: " + e.getMessage(), e);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    /**
+     * Return the number of events waiting to be written (an estimate)
+     */
+    public int getPending() {
+        return buffer.size();
+    }
+
+    public static String toJson(SignedURLAuditEvent event) throws IOException {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(writer)) {
+            json.writeStartObject();
+            json.writeNumberField("timestamp", event.getTimestamp());
+            json.writeStringField("user", event.getUser());
+            json.writeStringField("docId", event.getDocId());
+            json.writeStringField("method", event.getMethod());
+            json.writeStringField("bucket", event.getBucket());
+            json.writeStringField("key", event.getObjectKey());
+            json.writeNumberField("expiresAt", event.getExpiresAt());
+            json.writeEndObject();
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Writes the events to the <code>org.nuxeo.sheridan.audit</code> log category, one JSON object per line
+     */
+    public static class LogSink implements Sink {
+
+        protected static final Log auditLog = LogFactory.getLog(AUDIT_LOG_NAME);
+
+        @Override
+        public void write(List<SignedURLAuditEvent> events) throws IOException {
+            if (!auditLog.isInfoEnabled()) {
+                return;
+            }
+            for (SignedURLAuditEvent event : events) {
+                auditLog.info(toJson(event));
+            }
+        }
+
+    }
+
+    /**
+     * Writes the events to the Nuxeo audit log, one transaction per batch
+     */
+    public static class AuditLoggerSink implements Sink {
+
+        @Override
+        public void write(List<SignedURLAuditEvent> events) {
+            AuditLogger logger = Framework.getService(AuditLogger.class);
+            if (logger == null) {
+                throw new NuxeoException("The audit service is not available");
+            }
+            List<LogEntry> entries = new ArrayList<>(events.size());
+            for (SignedURLAuditEvent event : events) {
+                LogEntry entry = logger.newLogEntry();
+                entry.setEventId(EVENT_ID);
+                entry.setCategory(EVENT_CATEGORY);
+                entry.setEventDate(new Date(event.getTimestamp()));
+                entry.setPrincipalName(event.getUser());
+                entry.setDocUUID(event.getDocId());
+                entry.setComment(event.getMethod() + " " + event.getBucket() + "/" + event.getObjectKey());
+                Map<String, ExtendedInfo> infos = new HashMap<>();
+                infos.put("bucket", logger.newExtendedInfo(event.getBucket()));
+                infos.put("objectKey", logger.newExtendedInfo(event.getObjectKey()));
+                infos.put("expiresAt", logger.newExtendedInfo(new Date(event.getExpiresAt())));
+                entry.setExtendedInfos(infos);
+                entries.add(entry);
+            }
+            boolean txStarted = !TransactionHelper.isTransactionActive() && TransactionHelper.startTransaction();
+            try {
+                logger.addLogEntries(entries);
+            } catch (RuntimeException e) {
+                if (txStarted) {
+                    TransactionHelper.setTransactionRollbackOnly();
+                }
+                throw e;
+            } finally {
+                if (txStarted) {
+                    TransactionHelper.commitOrRollbackTransaction();
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * A bounded cache of signed URLs.
+ * <p>
+ * A cached URL is returned only while enough of its validity remains: at least <code>minRemainingRatio</code> of its
+ * lifetime (half of it by default). So a URL signed for 20 minutes is served from the cache for 10 minutes, and
+ * whoever gets it can still use it for at least 10 minutes.
+ * <p>
+ * With a quantized expiration (<code>sheridan.s3.expirationWindow</code>), a cached URL is returned only during the
+ * window it was signed in, so the nodes of a cluster, with or without it in their cache, give the same URL.
+ * <p>
+ * The cache is bounded, evicts the least recently used entries and does not lock on reads. Hits, misses and evictions
+ * are counted in {@link SheridanMetrics}.
+ *
+ * @since 7.10
+ */
+public class SignedURLCache {
+
+    public static final String CONF_KEY_NAME_MAX_SIZE = "sheridan.s3.cache.maxSize";
+
+    public static final String CONF_KEY_NAME_MIN_REMAINING_RATIO = "sheridan.s3.cache.minRemainingRatio";
+
+    public static final long DEFAULT_MAX_SIZE = 10000;
+
+    public static final double DEFAULT_MIN_REMAINING_RATIO = 0.5;
+
+    protected final Cache<SignedURLRequest, SignedURL> cache;
+
+    protected final double minRemainingRatio;
+
+    protected final long expirationWindowMillis;
+
+    public SignedURLCache(long maxSize, double minRemainingRatio) {
+        this(maxSize, minRemainingRatio, 0);
+    }
+
+    /**
+     * @param expirationWindow the expiration window of the signed URLs, in seconds, 0 if they are not quantized (see
+     *            {@link S3SignerConfig#withExpirationWindow(int)})
+     * @since 7.10
+     */
+    public SignedURLCache(long maxSize, double minRemainingRatio, int expirationWindow) {
+        if (minRemainingRatio <= 0 || minRemainingRatio > 1) {
+            throw new IllegalArgumentException("minRemainingRatio must be in ]0, 1]: " + minRemainingRatio);
+        }
+        this.minRemainingRatio = minRemainingRatio;
+        expirationWindowMillis = expirationWindow * 1000L;
+        cache = CacheBuilder.newBuilder().maximumSize(maxSize).removalListener(
+                new RemovalListener<SignedURLRequest, SignedURL>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<SignedURLRequest, SignedURL> notification) {
+                        if (notification.getCause() == RemovalCause.SIZE) {
+                            SheridanMetrics.CACHE_EVICTIONS.inc();
+                        }
+                    }
+                }).build();
+    }
+
+    /**
+     * Return the cached URL, or null if there is none, if it does not remain valid long enough or if it was signed in
+     * a previous expiration window.
+     *
+     * @since 7.10
+     */
+    public SignedURL get(SignedURLRequest request, long now) {
+        SignedURL url = cache.getIfPresent(request);
+        if (url == null || url.getRemainingMillis(now) < url.getLifetimeMillis() * minRemainingRatio
+                || expirationWindowMillis > 0 && url.getSignedAt() != now - Math.floorMod(now, expirationWindowMillis)) {
+            SheridanMetrics.CACHE_MISSES.inc();
+            return null;
+        }
+        SheridanMetrics.CACHE_HITS.inc();
+        return url;
+    }
+
+    public void put(SignedURLRequest request, SignedURL url) {
+        cache.put(request, url);
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+}
@@ -0,0 +1,332 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.IterableQueryResult;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Writes the signed URLs of the objects whose key is stored in the <code>xpath</code> field of the documents returned
+ * by an NXQL query (a manifest for a bulk download), as CSV (<code>id,key,url</code>) or JSON lines
+ * (<code>{"id": ..., "key": ..., "url": ...}</code>).
+ * <p>
+ * Memory does not depend on the number of documents: the query is read with a cursor
+ * ({@link CoreSession#queryAndFetch(String, String, Object...)}, which does not load the documents), the URLs are
+ * signed by batches of <code>batchSize</code>, and each batch is written as soon as it is signed. A batch is signed in
+ * the background while the next one is read from the cursor, so at most two batches are in memory.
+ * <p>
+ * A document whose key is empty gets an empty URL. The URLs are signed with the builder of the profile, if any (see
+ * {@link S3ProfileDescriptor}), for its bucket only: the query and the parameters come from a client, who cannot
+ * choose the bucket, nor extend the expiration (see {@link S3SignerConfig#clampExpire(int)}). The batch size is at
+ * most {@link #MAX_BATCH_SIZE}.
+ *
+ * @since 7.10
+ */
+public class SignedURLExporter {
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    public static final String ID_COLUMN = "ecm:uuid";
+
+    protected static final Pattern SELECT = Pattern.compile("^\\s*SELECT\\s+.+?\\s+FROM\\s+",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    protected static final JsonFactory JSON_FACTORY = new JsonFactory().disable(
+            JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    public enum Format {
+        CSV("text/csv", "csv"), JSONL("application/x-ndjson", "jsonl");
+
+        protected final String mimeType;
+
+        protected final String extension;
+
+        private Format(String mimeType, String extension) {
+            this.mimeType = mimeType;
+            this.extension = extension;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        /**
+         * Return the format named <code>value</code> (case insensitive), CSV if it is blank
+         */
+        public static Format fromString(String value) {
+            if (StringUtils.isBlank(value)) {
+                return CSV;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new NuxeoException("Unknown export format: " + value + ", expected csv or jsonl");
+            }
+        }
+    }
+
+    protected final S3TempSignedURLService service;
+
+    protected final String profile;
+
+    protected final String xpath;
+
+    protected final int expireInSeconds;
+
+    protected final Format format;
+
+    protected final int batchSize;
+
+    /**
+     * The user the URLs are given to, for the audit trail: the batches are signed in another thread
+     */
+    protected final String user;
+
+    /**
+     * The URLs are signed for the configured bucket. <code>expireInSeconds</code> is clamped to the default expiration
+     * (see {@link S3SignerConfig#clampExpire(int)}), <code>batchSize</code> to {@link #MAX_BATCH_SIZE}.
+     */
+    public SignedURLExporter(S3TempSignedURLService service, String xpath, int expireInSeconds, Format format,
+            int batchSize) {
+        this(service, null, xpath, expireInSeconds, format, batchSize);
+    }
+
+    /**
+     * Same as {@link #SignedURLExporter(S3TempSignedURLService, String, int, Format, int)}, signing with the builder of
+     * the profile, whose bucket and default expiration apply. Throws a {@link NuxeoException} if the profile is
+     * unknown.
+     *
+     * @since 7.10
+     */
+    public SignedURLExporter(S3TempSignedURLService service, String profile, String xpath, int expireInSeconds,
+            Format format, int batchSize) {
+        // Fails now, before the manifest is started, if the profile is unknown
+        S3SignerConfig config = service.getBuilder(profile).getConfig();
+        this.service = service;
+        this.profile = profile;
+        this.xpath = xpath;
+        this.expireInSeconds = config.clampExpire(expireInSeconds);
+        this.format = format;
+        this.batchSize = batchSize < 1 ? DEFAULT_BATCH_SIZE : Math.min(batchSize, MAX_BATCH_SIZE);
+        user = SignedURLAuditor.currentUser();
+    }
+
+    /**
+     * Run the query and write the manifest. The writer is flushed after each batch, not closed.
+     *
+     * @param query an NXQL query, <code>SELECT * FROM Document WHERE ...</code> for example. Its select clause is
+     *            replaced with the id and the key of the documents.
+     * @return the number of documents
+     */
+    public long export(CoreSession session, String query, Writer writer) throws IOException {
+        try (IterableQueryResult result = session.queryAndFetch(toFetchQuery(query, xpath), "NXQL")) {
+            return export(result.iterator(), writer);
+        }
+    }
+
+    /**
+     * Write the manifest of the rows, which have the document id in {@link #ID_COLUMN} and the key in the
+     * <code>xpath</code> column.
+     *
+     * @return the number of rows
+     */
+    public long export(Iterator<Map<String, Serializable>> rows, Writer writer) throws IOException {
+
+        JsonGenerator json = null;
+        if (format == Format.JSONL) {
+            json = JSON_FACTORY.createGenerator(writer);
+            json.setRootValueSeparator(new SerializedString("\n"));
+        } else {
+            writer.write("id,key,url\r\n");
+        }
+
+        long count = 0;
+        CompletableFuture<Batch> signing = null;
+        for (;;) {
+            // Read the next batch while the previous one is signed
+            Batch batch = readBatch(rows);
+            if (signing != null) {
+                write(join(signing), writer, json);
+            }
+            if (batch.size() == 0) {
+                break;
+            }
+            count += batch.size();
+            signing = CompletableFuture.supplyAsync(() -> sign(batch));
+        }
+
+        if (json != null) {
+            json.flush();
+            if (count > 0) {
+                writer.write('\n');
+            }
+        }
+        writer.flush();
+        return count;
+    }
+
+    /**
+     * Return the query with a select clause returning the id and the key of the documents
+     */
+    public static String toFetchQuery(String query, String xpath) {
+        Matcher matcher = SELECT.matcher(StringUtils.defaultString(query));
+        if (!matcher.find()) {
+            throw new NuxeoException("Not a SELECT ... FROM ... NXQL query: " + query);
+        }
+        return "SELECT " + ID_COLUMN + ", " + xpath + " FROM " + query.substring(matcher.end());
+    }
+
+    protected Batch readBatch(Iterator<Map<String, Serializable>> rows) {
+        Batch batch = new Batch(batchSize);
+        while (batch.size() < batchSize && rows.hasNext()) {
+            Map<String, Serializable> row = rows.next();
+            Serializable key = row.get(xpath);
+            batch.add((String) row.get(ID_COLUMN), key instanceof String ? (String) key : null);
+        }
+        return batch;
+    }
+
+    protected Batch sign(Batch batch) {
+        S3TempSignedURLBuilder builder = service.getBuilder(profile);
+        batch.urls = new String[batch.size()];
+        List<Integer> indexes = new ArrayList<>(batch.size());
+        List<String> docIds = new ArrayList<>(batch.size());
+        List<SignedURLRequest> requests = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            String key = batch.keys.get(i);
+            if (StringUtils.isNotBlank(key)) {
+                indexes.add(i);
+                docIds.add(batch.ids.get(i));
+                requests.add(builder.newRequest(null, key, expireInSeconds, null, null));
+            }
+        }
+        try {
+            List<SignedURL> urls = service.signForDocuments(profile, docIds, requests, user);
+            for (int i = 0; i < indexes.size(); i++) {
+                batch.urls[indexes.get(i)] = urls.get(i).getUrl();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return batch;
+    }
+
+    protected Batch join(CompletableFuture<Batch> signing) throws IOException {
+        try {
+            return signing.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    protected void write(Batch batch, Writer writer, JsonGenerator json) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            String id = batch.ids.get(i);
+            String key = StringUtils.defaultString(batch.keys.get(i));
+            String url = StringUtils.defaultString(batch.urls[i]);
+            if (json != null) {
+                json.writeStartObject();
+                json.writeStringField("id", id);
+                json.writeStringField("key", key);
+                json.writeStringField("url", url);
+                json.writeEndObject();
+            } else {
+                writer.write(toCsv(id));
+                writer.write(',');
+                writer.write(toCsv(key));
+                writer.write(',');
+                writer.write(toCsv(url));
+                writer.write("\r\n");
+            }
+        }
+        if (json != null) {
+            json.flush();
+        }
+        writer.flush();
+    }
+
+    /**
+     * Return the value as a CSV field (RFC 4180): quoted if it contains a comma, a quote or a line break
+     */
+    public static String toCsv(String value) {
+        if (StringUtils.containsNone(value, ",\"\r\n")) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * The ids and keys of a batch of rows, and their URLs once signed
+     */
+    protected static class Batch {
+
+        protected final List<String> ids;
+
+        protected final List<String> keys;
+
+        protected String[] urls;
+
+        protected Batch(int capacity) {
+            ids = new ArrayList<>(capacity);
+            keys = new ArrayList<>(capacity);
+        }
+
+        protected void add(String id, String key) {
+            ids.add(id);
+            keys.add(key);
+        }
+
+        protected int size() {
+            return ids.size();
+        }
+    }
+
+}
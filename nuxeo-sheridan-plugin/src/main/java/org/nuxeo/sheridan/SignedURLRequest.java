@@ -0,0 +1,140 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import com.amazonaws.HttpMethod;
+
+/**
+ * The inputs of a signed URL: HTTP method, bucket, object key, expiration, the response headers to override and the
+ * other request parameters (<code>uploadId</code> and <code>partNumber</code> for a multipart upload, for example).
+ * <p>
+ * Instances are immutable and can be used as keys (in a cache, in the result of a batch, ...). Use
+ * {@link S3TempSignedURLBuilder#newRequest(String, String, int, String, String)} to get a request where the default
+ * values (bucket, expiration) are already resolved, so two requests for the same object are always equal.
+ *
+ * @since 7.10
+ */
+public class SignedURLRequest {
+
+    protected final String bucket;
+
+    protected final String objectKey;
+
+    protected final int expireInSeconds;
+
+    protected final String contentType;
+
+    protected final String contentDisposition;
+
+    protected final String method;
+
+    protected final Map<String, String> parameters;
+
+    protected final int hash;
+
+    /**
+     * A GET request
+     */
+    public SignedURLRequest(String bucket, String objectKey, int expireInSeconds, String contentType,
+            String contentDisposition) {
+        this(HttpMethod.GET, bucket, objectKey, expireInSeconds, contentType, contentDisposition,
+                Collections.<String, String> emptyMap());
+    }
+
+    /**
+     * @param parameters request parameters, other than the <code>response-*</code> ones. They are signed and added to
+     *            the URL in this order.
+     * @since 7.10
+     */
+    public SignedURLRequest(HttpMethod method, String bucket, String objectKey, int expireInSeconds,
+            String contentType, String contentDisposition, Map<String, String> parameters) {
+        this.method = method.name();
+        this.bucket = bucket;
+        this.objectKey = objectKey;
+        this.expireInSeconds = expireInSeconds;
+        this.contentType = contentType;
+        this.contentDisposition = contentDisposition;
+        this.parameters = parameters == null || parameters.isEmpty() ? Collections.<String, String> emptyMap()
+                : Collections.unmodifiableMap(new LinkedHashMap<>(parameters));
+        hash = Objects.hash(this.method, bucket, objectKey, expireInSeconds, contentType, contentDisposition,
+                this.parameters);
+    }
+
+    /**
+     * Return the HTTP method (GET, PUT, ...)
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getObjectKey() {
+        return objectKey;
+    }
+
+    public int getExpireInSeconds() {
+        return expireInSeconds;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getContentDisposition() {
+        return contentDisposition;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof SignedURLRequest)) {
+            return false;
+        }
+        SignedURLRequest other = (SignedURLRequest) obj;
+        return hash == other.hash && expireInSeconds == other.expireInSeconds && method.equals(other.method)
+                && Objects.equals(bucket, other.bucket) && Objects.equals(objectKey, other.objectKey)
+                && Objects.equals(contentType, other.contentType)
+                && Objects.equals(contentDisposition, other.contentDisposition)
+                && parameters.equals(other.parameters);
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + bucket + "/" + objectKey + (parameters.isEmpty() ? "" : " " + parameters) + " ("
+                + expireInSeconds + "s)";
+    }
+
+}
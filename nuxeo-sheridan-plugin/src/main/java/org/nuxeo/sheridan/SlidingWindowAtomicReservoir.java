@@ -0,0 +1,84 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformSnapshot;
+
+/**
+ * A reservoir keeping the last values recorded, in a fixed-size ring of longs.
+ * <p>
+ * {@link #update(long)} does not allocate and does not lock: one increment of the position and one write in the
+ * array. The default reservoir of the metrics library (exponentially decaying) allocates a sample and a node of its
+ * skip list on each update and takes a lock to rescale, the <code>SlidingWindowReservoir</code> of the library is
+ * synchronized. As the values of the window are the most recent ones, the percentiles still follow the latency of
+ * the last signings, not the whole life of the server. Only {@link #getSnapshot()}, called by the reporters, copies
+ * the window.
+ *
+ * @since 7.10
+ */
+public class SlidingWindowAtomicReservoir implements Reservoir {
+
+    public static final int DEFAULT_SIZE = 1024;
+
+    protected final int mask;
+
+    protected final AtomicLongArray values;
+
+    protected final AtomicLong count = new AtomicLong();
+
+    public SlidingWindowAtomicReservoir() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size the number of values kept, rounded up to a power of 2
+     */
+    public SlidingWindowAtomicReservoir(int size) {
+        if (size < 2 || size > 1 << 30) {
+            throw new IllegalArgumentException("Size must be in [2, 2^30]: " + size);
+        }
+        int capacity = Integer.highestOneBit(size - 1) << 1;
+        mask = capacity - 1;
+        values = new AtomicLongArray(capacity);
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(count.get(), values.length());
+    }
+
+    @Override
+    public void update(long value) {
+        values.lazySet((int) count.getAndIncrement() & mask, value);
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        // A value being written may be the previous one of its slot: no matter for percentiles
+        long[] copy = new long[size()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = values.get(i);
+        }
+        return new UniformSnapshot(copy);
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.listeners;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.model.PropertyException;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.sheridan.ObjectExistenceIndex;
+import org.nuxeo.sheridan.S3SignerConfig;
+import org.nuxeo.sheridan.S3TempSignedURLService;
+
+/**
+ * Keeps the {@link ObjectExistenceIndex} of the default bucket current between two sweeps: when a document is created
+ * or modified, the keys stored in its <code>sheridan.s3.existenceIndex.xpaths</code> fields (comma separated,
+ * <code>myschema:S3key</code> for example) are checked again on next lookup, as the object was probably just uploaded.
+ *
+ * @since 7.10
+ */
+public class ObjectExistenceListener implements EventListener {
+
+    public static final String CONF_KEY_NAME_XPATHS = "sheridan.s3.existenceIndex.xpaths";
+
+    protected volatile List<String> xpaths;
+
+    @Override
+    public void handleEvent(Event event) {
+
+        EventContext context = event.getContext();
+        if (!(context instanceof DocumentEventContext) || getXPaths().isEmpty()) {
+            return;
+        }
+        ObjectExistenceIndex index = Framework.getService(S3TempSignedURLService.class).getExistenceIndex(null);
+        if (index == null) {
+            return;
+        }
+        DocumentModel doc = ((DocumentEventContext) context).getSourceDocument();
+        for (String xpath : getXPaths()) {
+            Serializable value;
+            try {
+                value = doc.getPropertyValue(xpath);
+            } catch (PropertyException e) {
+                // Not a document with this schema
+                continue;
+            }
+            if (value instanceof String && StringUtils.isNotBlank((String) value)) {
+                index.keyChanged((String) value);
+            }
+        }
+    }
+
+    protected List<String> getXPaths() {
+        List<String> result = xpaths;
+        if (result == null) {
+            result = new ArrayList<>();
+            for (String xpath : StringUtils.split(
+                    StringUtils.defaultString(S3SignerConfig.getProperty(CONF_KEY_NAME_XPATHS)), ',')) {
+                if (StringUtils.isNotBlank(xpath)) {
+                    result.add(xpath.trim());
+                }
+            }
+            xpaths = result;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.operations;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.StringList;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.sheridan.S3TempSignedURLBuilder;
+import org.nuxeo.sheridan.S3TempSignedURLService;
+
+/**
+ * Completes (or aborts, if <code>abort</code> is true) a multipart upload started by {@link StartS3UploadOp} for the
+ * input document. As when starting it, the current user must be allowed to write the document, and the key must be
+ * one generated for this document.
+ *
+ * @since 7.10
+ */
+@Operation(id = CompleteS3UploadOp.ID, category = Constants.CAT_BLOB, label = "Sheridan: Complete S3 Upload", description = "Complete the multipart upload uploadId of the input document, using the ETag returned by S3 for each part (in the order of the parts). If abort is true, the upload is aborted instead, and S3 frees the parts already uploaded. The current user must be able to write the document, the key and the profile must be the ones returned when starting the upload. A profile can only be used by the members of its allowed groups and by administrators.")
+public class CompleteS3UploadOp {
+
+    public static final String ID = "Sheridan.CompleteS3Upload";
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected S3TempSignedURLService s3Service;
+
+    @Param(name = "key")
+    protected String key;
+
+    @Param(name = "profile", required = false)
+    protected String profile;
+
+    @Param(name = "uploadId")
+    protected String uploadId;
+
+    @Param(name = "etags", required = false)
+    protected StringList etags;
+
+    @Param(name = "abort", required = false)
+    protected boolean abort = false;
+
+    @OperationMethod
+    public DocumentModel run(DocumentModel doc) {
+
+        StartS3UploadOp.checkCanUpload(session, doc);
+        String prefix = StartS3UploadOp.getUploadPrefix(doc);
+        if (key == null || !key.startsWith(prefix) || key.indexOf('/', prefix.length()) >= 0) {
+            throw new DocumentSecurityException("The key " + key + " was not generated for an upload of "
+                    + doc.getId());
+        }
+        s3Service.checkCanUseProfile(profile, session.getPrincipal());
+        S3TempSignedURLBuilder builder = s3Service.getBuilder(profile);
+        String bucket = builder.getConfig().getBucket();
+        if (abort) {
+            builder.abortMultipartUpload(bucket, key, uploadId);
+            return doc;
+        }
+        if (etags == null || etags.isEmpty()) {
+            throw new NuxeoException("No ETag provided to complete the upload " + uploadId);
+        }
+        for (String etag : etags) {
+            if (StringUtils.isBlank(etag)) {
+                throw new NuxeoException("Missing ETag for a part of the upload " + uploadId);
+            }
+        }
+        builder.completeMultipartUpload(bucket, key, uploadId, etags);
+        return doc;
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.operations;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.sheridan.S3TempSignedURLService;
+import org.nuxeo.sheridan.SignedURLExporter;
+import org.nuxeo.sheridan.SignedURLExporter.Format;
+
+/**
+ * Exports the signed URLs of the objects whose key is stored in the <code>xpath</code> field of the documents returned
+ * by an NXQL query, as CSV or JSON lines (see {@link SignedURLExporter}).
+ * <p>
+ * The manifest is written to a temporary file as the query is read, so memory does not depend on the number of
+ * documents. To stream it directly to the client, use <code>/nuxeo/sheridan/export</code> (see
+ * {@link org.nuxeo.sheridan.web.SignedURLExportServlet}).
+ *
+ * @since 7.10
+ */
+@Operation(id = ExportSignedUrlsOp.ID, category = Constants.CAT_FETCH, label = "Sheridan: Export Signed URLs", description = "Run the NXQL query and return a manifest (CSV with id,key,url columns, or JSON lines) with the S3 temporary signed URL of the object whose key is stored in the xpath field of each document. URLs are signed for the bucket of the configuration, or of the profile if set, and expireInSeconds cannot exceed its default expiration. Documents are read with a cursor and URLs signed by batches of batchSize (at most 1000), so any number of documents can be exported. A profile can only be used by the members of its allowed groups and by administrators.")
+public class ExportSignedUrlsOp {
+
+    public static final String ID = "Sheridan.ExportSignedUrls";
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected S3TempSignedURLService s3Service;
+
+    @Param(name = "query")
+    protected String query;
+
+    @Param(name = "xpath")
+    protected String xpath;
+
+    @Param(name = "profile", required = false)
+    protected String profile;
+
+    @Param(name = "format", required = false)
+    protected String format = "csv";
+
+    @Param(name = "expireInSeconds", required = false)
+    protected Integer expireInSeconds = 0;
+
+    @Param(name = "batchSize", required = false)
+    protected Integer batchSize = SignedURLExporter.DEFAULT_BATCH_SIZE;
+
+    @OperationMethod
+    public Blob run() throws IOException {
+
+        s3Service.checkCanUseProfile(profile, session.getPrincipal());
+        SignedURLExporter exporter = new SignedURLExporter(s3Service, profile, xpath,
+                expireInSeconds == null ? 0 : expireInSeconds.intValue(), Format.fromString(format),
+                batchSize == null ? 0 : batchSize.intValue());
+
+        String extension = exporter.getFormat().getExtension();
+        Blob blob = Blobs.createBlobWithExtension("." + extension);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(blob.getFile()),
+                StandardCharsets.UTF_8))) {
+            exporter.export(session, query, writer);
+        }
+        blob.setMimeType(exporter.getFormat().getMimeType());
+        blob.setEncoding("UTF-8");
+        blob.setFilename("signed-urls." + extension);
+        return blob;
+    }
+
+}
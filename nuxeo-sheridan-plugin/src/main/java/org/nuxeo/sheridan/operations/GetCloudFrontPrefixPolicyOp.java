@@ -0,0 +1,94 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.operations;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.sheridan.CloudFrontPrefixPolicy;
+import org.nuxeo.sheridan.CloudFrontSignedURLBuilder;
+import org.nuxeo.sheridan.S3TempSignedURLService;
+import org.nuxeo.sheridan.SignedURLAuditEvent;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Signs one CloudFront policy for all the objects under the key prefix stored in the <code>xpath</code> field of the
+ * input document, and returns it as JSON:
+ *
+ * <pre>
+ * {"baseUrl": ..., "query": "Policy=...&amp;Signature=...&amp;Key-Pair-Id=...", "expiresAt": ..., "cookies": {...}}
+ * </pre>
+ *
+ * A client adds <code>query</code> to the URL of each object (<code>baseUrl</code> + path), or sets the cookies. The
+ * policy is recorded in the audit trail, with its prefix (see {@link S3TempSignedURLService#audit}).
+ *
+ * @since 7.10
+ */
+@Operation(id = GetCloudFrontPrefixPolicyOp.ID, category = Constants.CAT_DOCUMENT, label = "Sheridan: Get CloudFront Prefix Policy", description = "Sign one CloudFront policy giving access to all the objects under the key prefix stored in the xpath field of the input document (the segments of a video for example). Returns JSON with the baseUrl of the prefix, the query to add to each object URL, the expiration (expiresAt, ms since epoch) and the equivalent CloudFront cookies. expireInSeconds cannot exceed the default expiration of the configuration.")
+public class GetCloudFrontPrefixPolicyOp {
+
+    public static final String ID = "Sheridan.GetCloudFrontPrefixPolicy";
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Context
+    protected S3TempSignedURLService s3Service;
+
+    @Param(name = "xpath")
+    protected String xpath;
+
+    @Param(name = "expireInSeconds", required = false)
+    protected Integer expireInSeconds = 0;
+
+    @OperationMethod
+    public Blob run(DocumentModel input) throws IOException {
+
+        CloudFrontSignedURLBuilder cloudFront = s3Service.getCloudFrontBuilder();
+        if (cloudFront == null) {
+            throw new NuxeoException("CloudFront is not configured");
+        }
+        String prefix = (String) input.getPropertyValue(xpath);
+        if (StringUtils.isBlank(prefix)) {
+            throw new NuxeoException("No prefix in " + xpath + " of " + input.getId());
+        }
+
+        // As the redirect servlet: the client cannot get a policy living longer than the configured expiration
+        int expire = s3Service.getConfig().clampExpire(expireInSeconds == null ? 0 : expireInSeconds.intValue());
+        CloudFrontPrefixPolicy policy = cloudFront.signPrefix(prefix, expire);
+        s3Service.audit(input.getId(), SignedURLAuditEvent.METHOD_POLICY, cloudFront.getBucket(), prefix,
+                policy.getExpiresAt());
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("baseUrl", policy.getBaseUrl());
+        result.put("query", policy.getQuery());
+        result.put("expiresAt", policy.getExpiresAt());
+        result.put("cookies", policy.getCookies());
+        return Blobs.createBlob(MAPPER.writeValueAsString(result), "application/json");
+    }
+
+}
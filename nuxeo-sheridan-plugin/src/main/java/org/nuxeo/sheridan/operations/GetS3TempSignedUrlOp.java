@@ -0,0 +1,159 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.operations;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.sheridan.S3SignerConfig;
+import org.nuxeo.sheridan.S3TempSignedURLService;
+
+/**
+ * Builds the S3 Temp Signed Url of the object whose key is stored in the <code>xpath</code> field of the input
+ * document(s). The URL is stored in the <code>targetXpath</code> field and/or in the <code>varName</code> context
+ * variable.
+ * <p>
+ * When the input is a list of documents, all the URLs are signed in one batch, and the context variable is a map of
+ * URLs by document id.
+ * <p>
+ * As for {@link org.nuxeo.sheridan.SheridanHelperBean}, a document with an empty key gets an empty URL.
+ * <p>
+ * The parameters come from the client: only administrators can sign URLs for another bucket than the one of the
+ * configuration (or of the profile), and the URLs cannot expire later than its default expiration (see
+ * {@link S3SignerConfig#clampExpire(int)}).
+ *
+ * @since 7.10
+ */
+@Operation(id = GetS3TempSignedUrlOp.ID, category = Constants.CAT_DOCUMENT, label = "Sheridan: Get S3 Temp Signed URL", description = "Build the S3 temporary signed URL of the object whose key is stored in the xpath field of the input document(s). Bucket and default expiration (in seconds) are the ones of the configuration, or of the profile if set: only administrators can read another bucket, and expireInSeconds cannot exceed the default expiration. The URL is stored in targetXpath (the document is saved if save is true) and/or in the varName context variable. For a list of documents, all the URLs are signed in one batch and varName is a map of URLs by document id. A profile can only be used by the members of its allowed groups and by administrators.")
+public class GetS3TempSignedUrlOp {
+
+    public static final String ID = "Sheridan.GetS3TempSignedUrl";
+
+    @Context
+    protected OperationContext ctx;
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected S3TempSignedURLService s3Service;
+
+    @Param(name = "xpath")
+    protected String xpath;
+
+    @Param(name = "profile", required = false)
+    protected String profile;
+
+    @Param(name = "bucket", required = false)
+    protected String bucket;
+
+    @Param(name = "expireInSeconds", required = false)
+    protected Integer expireInSeconds = 0;
+
+    @Param(name = "contentType", required = false)
+    protected String contentType;
+
+    @Param(name = "contentDisposition", required = false)
+    protected String contentDisposition;
+
+    @Param(name = "targetXpath", required = false)
+    protected String targetXpath;
+
+    @Param(name = "varName", required = false)
+    protected String varName;
+
+    @Param(name = "save", required = false)
+    protected boolean save = false;
+
+    @OperationMethod
+    public DocumentModel run(DocumentModel input) throws IOException {
+
+        String url = sign(Collections.singletonList(input)).get(input.getId());
+        if (StringUtils.isNotBlank(varName)) {
+            ctx.put(varName, url);
+        }
+        return update(input, url);
+    }
+
+    @OperationMethod
+    public DocumentModelList run(DocumentModelList input) throws IOException {
+
+        Map<String, String> urls = sign(input);
+        if (StringUtils.isNotBlank(varName)) {
+            ctx.put(varName, urls);
+        }
+        for (int i = 0; i < input.size(); i++) {
+            DocumentModel doc = input.get(i);
+            input.set(i, update(doc, urls.get(doc.getId())));
+        }
+        return input;
+    }
+
+    protected Map<String, String> sign(List<DocumentModel> docs) throws IOException {
+        s3Service.checkCanUseProfile(profile, session.getPrincipal());
+        // The parameters come from the client: as the redirect servlet, no other bucket, no longer expiration
+        S3SignerConfig config = s3Service.getBuilder(profile).getConfig();
+        String objectBucket = checkCanUseBucket(session, config, bucket);
+        int expire = config.clampExpire(expireInSeconds == null ? 0 : expireInSeconds.intValue());
+        return s3Service.buildForDocuments(profile, docs, xpath, objectBucket, expire, contentType,
+                contentDisposition);
+    }
+
+    /**
+     * Return the bucket requested by the client: the bucket of the configuration (or of the profile) when blank. Only
+     * administrators can use another bucket, the credentials of the server may give access to buckets the users must
+     * not read.
+     *
+     * @throws DocumentSecurityException if the user is not an administrator and asks for another bucket
+     * @since 7.10
+     */
+    public static String checkCanUseBucket(CoreSession session, S3SignerConfig config, String bucket) {
+        if (StringUtils.isBlank(bucket) || bucket.trim().equals(config.getBucket())) {
+            return config.getBucket();
+        }
+        Principal principal = session.getPrincipal();
+        if (!(principal instanceof NuxeoPrincipal) || !((NuxeoPrincipal) principal).isAdministrator()) {
+            throw new DocumentSecurityException("Only administrators can use the bucket " + bucket.trim() + ", not '"
+                    + (principal == null ? null : principal.getName()) + "'");
+        }
+        return bucket.trim();
+    }
+
+    protected DocumentModel update(DocumentModel doc, String url) {
+        if (StringUtils.isBlank(targetXpath)) {
+            return doc;
+        }
+        doc.setPropertyValue(targetXpath, url);
+        return save ? session.saveDocument(doc) : doc;
+    }
+
+}
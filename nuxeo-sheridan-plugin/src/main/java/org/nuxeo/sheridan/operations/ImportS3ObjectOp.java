@@ -0,0 +1,146 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.operations;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.sheridan.S3RangedDownloader;
+import org.nuxeo.sheridan.S3SignerConfig;
+import org.nuxeo.sheridan.S3TempSignedURLBuilder;
+import org.nuxeo.sheridan.S3TempSignedURLService;
+
+/**
+ * Imports the object whose key is stored in the <code>xpath</code> field of the input document into a blob of the
+ * document (<code>file:content</code> by default), so Nuxeo can extract its text, build its thumbnails, archive it...
+ * <p>
+ * Large objects are downloaded as parallel byte ranges and checked against their ETag, see
+ * {@link S3RangedDownloader}. The part size and the concurrency are lowered to the maximums of the configuration
+ * ({@value #CONF_KEY_NAME_MAX_PART_SIZE}, {@value #CONF_KEY_NAME_MAX_CONCURRENCY}).
+ * <p>
+ * The current user must be able to write the document, even when it is not saved. The object is read from the bucket
+ * of the configuration (or of the profile): only administrators can import from another bucket (see
+ * {@link GetS3TempSignedUrlOp#checkCanUseBucket}).
+ *
+ * @since 7.10
+ */
+@Operation(id = ImportS3ObjectOp.ID, category = Constants.CAT_DOCUMENT, label = "Sheridan: Import S3 Object", description = "Download the object whose key is stored in the xpath field of the input document into the targetXpath blob field (file:content by default); the document is saved if save is true. The object is downloaded as parallel byte ranges of partSizeMB megabytes (8 by default), concurrency at a time (4 by default), each range being retried up to retries times (3 by default). partSizeMB and concurrency cannot exceed the sheridan.import.maxPartSizeMB (64 by default) and sheridan.import.maxConcurrency (8 by default) configuration properties, retries cannot exceed 10. The download is checked against the ETag of the object. The current user must be able to write the document. Bucket is the one of the configuration, or of the profile if set: only administrators can import from another bucket. A profile can only be used by the members of its allowed groups and by administrators.")
+public class ImportS3ObjectOp {
+
+    public static final String ID = "Sheridan.ImportS3Object";
+
+    /**
+     * Maximum size of a range, in MB: a larger <code>partSizeMB</code> is lowered to it
+     *
+     * @since 7.10
+     */
+    public static final String CONF_KEY_NAME_MAX_PART_SIZE = "sheridan.import.maxPartSizeMB";
+
+    public static final int DEFAULT_MAX_PART_SIZE = 64;
+
+    /**
+     * Maximum number of ranges downloaded in parallel by one import: a larger <code>concurrency</code> is lowered to
+     * it
+     *
+     * @since 7.10
+     */
+    public static final String CONF_KEY_NAME_MAX_CONCURRENCY = "sheridan.import.maxConcurrency";
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 8;
+
+    public static final int MAX_RETRIES = 10;
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected S3TempSignedURLService s3Service;
+
+    @Param(name = "xpath")
+    protected String xpath;
+
+    @Param(name = "profile", required = false)
+    protected String profile;
+
+    @Param(name = "bucket", required = false)
+    protected String bucket;
+
+    @Param(name = "targetXpath", required = false)
+    protected String targetXpath = "file:content";
+
+    @Param(name = "partSizeMB", required = false)
+    protected Integer partSizeMB = 0;
+
+    @Param(name = "concurrency", required = false)
+    protected Integer concurrency = 0;
+
+    @Param(name = "retries", required = false)
+    protected Integer retries = -1;
+
+    @Param(name = "save", required = false)
+    protected boolean save = false;
+
+    @OperationMethod
+    public DocumentModel run(DocumentModel input) throws IOException {
+
+        // The blob is stored in the document, even when it is not saved: as for an upload, the user must be able to
+        // write it, and can only read the bucket of the configuration (or of the profile) unless administrator
+        StartS3UploadOp.checkCanUpload(session, input);
+        s3Service.checkCanUseProfile(profile, session.getPrincipal());
+        S3TempSignedURLBuilder builder = s3Service.getBuilder(profile);
+        String objectBucket = GetS3TempSignedUrlOp.checkCanUseBucket(session, builder.getConfig(), bucket);
+        String objectKey = (String) input.getPropertyValue(xpath);
+        if (StringUtils.isBlank(objectKey)) {
+            throw new NuxeoException("No object key in " + xpath + " of " + input.getId());
+        }
+
+        // The parameters come from the client: each import holds threads, connections and memory of the server
+        long partSize = Math.min(partSizeMB == null ? 0 : partSizeMB.intValue(),
+                getMaximum(CONF_KEY_NAME_MAX_PART_SIZE, DEFAULT_MAX_PART_SIZE)) * 1024L * 1024L;
+        int threads = Math.min(concurrency == null ? 0 : concurrency.intValue(),
+                getMaximum(CONF_KEY_NAME_MAX_CONCURRENCY, DEFAULT_MAX_CONCURRENCY));
+        S3RangedDownloader downloader = new S3RangedDownloader(builder, partSize, threads,
+                Math.min(retries == null ? -1 : retries.intValue(), MAX_RETRIES));
+        String filename = StringUtils.substringAfterLast("/" + objectKey, "/");
+        String extension = StringUtils.substringAfterLast(filename, ".");
+        Blob blob = Blobs.createBlobWithExtension(extension.isEmpty() ? null : "." + extension);
+        S3RangedDownloader.Result result = downloader.download(objectBucket, objectKey, blob.getFile().toPath());
+        blob.setMimeType(StringUtils.defaultIfBlank(result.getContentType(), "application/octet-stream"));
+        blob.setFilename(filename);
+
+        input.setPropertyValue(targetXpath, (Serializable) blob);
+        return save ? session.saveDocument(input) : input;
+    }
+
+    protected static int getMaximum(String key, int defaultValue) {
+        int value = NumberUtils.toInt(S3SignerConfig.getProperty(key), defaultValue);
+        return value < 1 ? defaultValue : value;
+    }
+
+}
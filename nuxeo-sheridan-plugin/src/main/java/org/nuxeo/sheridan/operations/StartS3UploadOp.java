@@ -0,0 +1,150 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.operations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.sheridan.S3SignerConfig;
+import org.nuxeo.sheridan.S3TempSignedURLBuilder;
+import org.nuxeo.sheridan.S3TempSignedURLService;
+import org.nuxeo.sheridan.SignedURL;
+
+import com.amazonaws.HttpMethod;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Returns the temporary signed URL(s) allowing a client to upload an object directly to S3, so the content does not
+ * go through the server.
+ * <p>
+ * The upload is for the input document, which the current user must be allowed to write. The object is in the bucket
+ * of the configuration (or of the profile), and its key is generated by the server:
+ * <code>{prefix}{docId}/{uuid}</code>, where the prefix is <code>sheridan.s3.upload.prefix</code> ("uploads/" by
+ * default). The expiration cannot exceed the default one (see {@link S3SignerConfig#clampExpire(int)}).
+ * <p>
+ * With one part (the default), the result is <code>{"bucket": ..., "key": ..., "url": ...}</code>, the URL of a
+ * simple PUT. With more parts (at most {@link S3TempSignedURLBuilder#MAX_UPLOAD_PARTS}), a multipart upload is started
+ * and the result is <code>{"bucket": ..., "key": ..., "uploadId": ..., "urls": [...]}</code>, the URL of each part.
+ * The client then calls {@link CompleteS3UploadOp} on the same document with the ETag returned by S3 for each part.
+ * <p>
+ * The upload is recorded in the audit trail as a <code>PUT</code> of the key (one event for all the parts).
+ *
+ * @since 7.10
+ */
+@Operation(id = StartS3UploadOp.ID, category = Constants.CAT_BLOB, label = "Sheridan: Start S3 Upload", description = "Return the S3 temporary signed URL(s) to upload an object for the input document directly to S3, as JSON. The current user must be able to write the document, and the key of the object is generated by the server. With partCount > 1 (at most 10000), a multipart upload is started, and the result contains its uploadId and the URL of each part. The bucket and the default (and maximum) expiration in seconds are the ones of the configuration, or of the profile if set. A profile can only be used by the members of its allowed groups and by administrators.")
+public class StartS3UploadOp {
+
+    public static final String ID = "Sheridan.StartS3Upload";
+
+    public static final String CONF_KEY_NAME_UPLOAD_PREFIX = "sheridan.s3.upload.prefix";
+
+    public static final String DEFAULT_UPLOAD_PREFIX = "uploads/";
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected S3TempSignedURLService s3Service;
+
+    @Param(name = "profile", required = false)
+    protected String profile;
+
+    @Param(name = "contentType", required = false)
+    protected String contentType;
+
+    @Param(name = "partCount", required = false)
+    protected Integer partCount = 1;
+
+    @Param(name = "expireInSeconds", required = false)
+    protected Integer expireInSeconds = 0;
+
+    @OperationMethod
+    public Blob run(DocumentModel doc) throws IOException {
+
+        checkCanUpload(session, doc);
+        int parts = partCount == null ? 1 : partCount.intValue();
+        if (parts > S3TempSignedURLBuilder.MAX_UPLOAD_PARTS) {
+            throw new NuxeoException("The number of parts must be between 1 and "
+                    + S3TempSignedURLBuilder.MAX_UPLOAD_PARTS + ": " + parts);
+        }
+        s3Service.checkCanUseProfile(profile, session.getPrincipal());
+        S3TempSignedURLBuilder builder = s3Service.getBuilder(profile);
+        String bucket = builder.getConfig().getBucket();
+        String key = getUploadPrefix(doc) + UUID.randomUUID();
+        int expire = builder.getConfig().clampExpire(expireInSeconds == null ? 0 : expireInSeconds.intValue());
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("bucket", bucket);
+        result.put("key", key);
+        if (parts <= 1) {
+            SignedURL url = builder.signPut(bucket, key, expire);
+            s3Service.audit(doc.getId(), HttpMethod.PUT.name(), bucket, key, url.getExpiresAt());
+            result.put("url", url.getUrl());
+        } else {
+            String uploadId = builder.initiateMultipartUpload(bucket, key, contentType);
+            List<SignedURL> urls = builder.signUploadParts(bucket, key, uploadId, parts, expire);
+            // One event for all the parts: they give access to the same object, until the same time
+            s3Service.audit(doc.getId(), HttpMethod.PUT.name(), bucket, key, urls.get(0).getExpiresAt());
+            List<String> partUrls = new ArrayList<>(parts);
+            for (SignedURL url : urls) {
+                partUrls.add(url.getUrl());
+            }
+            result.put("uploadId", uploadId);
+            result.put("urls", partUrls);
+        }
+        return Blobs.createBlob(MAPPER.writeValueAsString(result), "application/json");
+    }
+
+    /**
+     * Throw a {@link DocumentSecurityException} if the current user cannot write the document
+     */
+    public static void checkCanUpload(CoreSession session, DocumentModel doc) {
+        if (!session.hasPermission(doc.getRef(), SecurityConstants.WRITE)) {
+            throw new DocumentSecurityException("Privilege '" + SecurityConstants.WRITE + "' is not granted to '"
+                    + session.getPrincipal().getName() + "' on " + doc.getId());
+        }
+    }
+
+    /**
+     * Return the prefix of the keys of the objects uploaded for this document
+     */
+    public static String getUploadPrefix(DocumentModel doc) {
+        String prefix = StringUtils.defaultIfBlank(S3SignerConfig.getProperty(CONF_KEY_NAME_UPLOAD_PREFIX),
+                DEFAULT_UPLOAD_PREFIX).trim();
+        return prefix + doc.getId() + "/";
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.web;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URLEncoder;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentNotFoundException;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.model.PropertyException;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+import org.nuxeo.sheridan.CloudFrontPrefixPolicy;
+import org.nuxeo.sheridan.CloudFrontSignedURLBuilder;
+import org.nuxeo.sheridan.S3BlobResolver;
+import org.nuxeo.sheridan.S3SignerConfig;
+import org.nuxeo.sheridan.S3TempSignedURLBuilder;
+import org.nuxeo.sheridan.S3TempSignedURLService;
+import org.nuxeo.sheridan.SigV4Presigner;
+import org.nuxeo.sheridan.SignedURL;
+import org.nuxeo.sheridan.SignedURLAuditEvent;
+import org.nuxeo.sheridan.SignedURLRequest;
+
+/**
+ * Redirects to the S3 Temp Signed Url of an object, signing it only when the link is followed.
+ * <p>
+ * URL: <code>/nuxeo/sheridan/s3/{docId}/{xpath}</code>, where the key of the object is stored in the
+ * <code>xpath</code> field of the document (<code>/nuxeo/sheridan/s3/1234-5678/myschema:S3key</code> for example).
+ * Optional query parameters: <code>profile</code> (see {@link org.nuxeo.sheridan.S3ProfileDescriptor}) and
+ * <code>expireInSeconds</code>. An unknown profile is a 400, a profile the user is not allowed to use (see
+ * {@link org.nuxeo.sheridan.S3ProfileDescriptor#isAllowed(java.security.Principal)}) a 403. The object is always in
+ * the bucket of the configuration (or of the profile), and the URL cannot expire later than its default expiration
+ * (see {@link S3SignerConfig#clampExpire(int)}): anyone can follow the link, so nothing else comes from the query
+ * string.
+ * <p>
+ * The current user must be able to read the document. The answer is a 302 redirect whose <code>Cache-Control</code>
+ * max-age is the remaining lifetime of the signed URL. If the bucket has an existence index and the object is known to
+ * be missing, the answer is a 404 (see {@link org.nuxeo.sheridan.ObjectExistenceIndex}).
+ * <p>
+ * See {@link org.nuxeo.sheridan.SheridanHelperBean#getS3RedirectUrl(DocumentModel, String)} to build these links.
+ * <p>
+ * When CloudFront is configured, <code>/nuxeo/sheridan/cloudfront/{docId}/{xpath}?file={path}</code>, where the
+ * <code>xpath</code> field stores a key prefix (the folder of the segments of a video for example), sets the CloudFront
+ * cookies giving access to all the objects of the prefix (see {@link CloudFrontPrefixPolicy}) and redirects to the
+ * object <code>{prefix}{path}</code> (the playlist). Optional query parameter: <code>expireInSeconds</code>. The
+ * cookies are set for <code>sheridan.cloudfront.cookieDomain</code>, a parent domain of both the server and the
+ * distribution (which must then have an alternate domain name).
+ * <p>
+ * <code>/nuxeo/sheridan/blob/{docId}/{xpath}</code>, where <code>xpath</code> is a blob field
+ * (<code>file:content</code> for example), redirects to the blob in S3 when it is stored by the S3 binary manager (see
+ * {@link S3BlobResolver}), so the download does not go through the server, and to the usual Nuxeo download URL
+ * otherwise. Optional query parameters: <code>expireInSeconds</code> and <code>inline</code> (true to display the
+ * blob in the browser).
+ *
+ * @since 7.10
+ */
+public class S3RedirectServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log log = LogFactory.getLog(S3RedirectServlet.class);
+
+    public static final String SERVLET_PATH = "sheridan";
+
+    public static final String S3_PATH = "s3";
+
+    public static final String CLOUDFRONT_PATH = "cloudfront";
+
+    public static final String BLOB_PATH = "blob";
+
+    public static final String CONF_KEY_NAME_COOKIE_DOMAIN = "sheridan.cloudfront.cookieDomain";
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+
+        // pathInfo is /s3/{docId}/{xpath}, the xpath may contain slashes (files:files/0/file)
+        String[] parts = StringUtils.split(StringUtils.defaultString(req.getPathInfo()), "/", 3);
+        if (parts.length != 3
+                || !(S3_PATH.equals(parts[0]) || CLOUDFRONT_PATH.equals(parts[0]) || BLOB_PATH.equals(parts[0]))) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String docId = parts[1];
+        String xpath = parts[2];
+
+        Serializable value;
+        try {
+            value = getPropertyValue(docId, xpath);
+        } catch (DocumentSecurityException e) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        } catch (DocumentNotFoundException | PropertyException e) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        S3TempSignedURLService service = getService();
+        if (BLOB_PATH.equals(parts[0])) {
+            if (value instanceof Blob) {
+                redirectToBlob(service, (Blob) value, docId, xpath, req, resp);
+            } else {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            }
+            return;
+        }
+        String objectKey = value instanceof String ? (String) value : null;
+        if (StringUtils.isBlank(objectKey)) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (CLOUDFRONT_PATH.equals(parts[0])) {
+            redirectWithCookies(service, docId, objectKey, getExpireInSeconds(service.getConfig(), req), req, resp);
+            return;
+        }
+        String profile = req.getParameter("profile");
+        S3TempSignedURLBuilder builder;
+        try {
+            // The profile comes from the query string: the user must be allowed to use it
+            service.checkCanUseProfile(profile, req.getUserPrincipal());
+            builder = service.getBuilder(profile);
+        } catch (DocumentSecurityException e) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        } catch (NuxeoException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        S3SignerConfig config = builder.getConfig();
+        String bucket = config.getBucket();
+        if (!service.objectExists(bucket, objectKey)) {
+            // Known to be missing (see ObjectExistenceIndex): a 404 from here is better than an S3 error page
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        SignedURLRequest request = builder.newRequest(bucket, objectKey, getExpireInSeconds(config, req), null, null);
+        SignedURL url = service.sign(profile, request, docId);
+
+        redirect(url, resp);
+    }
+
+    protected void redirect(SignedURL url, HttpServletResponse resp) throws IOException {
+        long maxAge = Math.max(0, url.getRemainingMillis(System.currentTimeMillis()) / 1000);
+        resp.setHeader("Cache-Control", "private, max-age=" + maxAge);
+        resp.sendRedirect(url.getUrl());
+    }
+
+    /**
+     * Redirect to the blob in S3 or, if it is not stored by the S3 binary manager, to the usual Nuxeo download URL.
+     */
+    protected void redirectToBlob(S3TempSignedURLService service, Blob blob, String docId, String xpath,
+            HttpServletRequest req, HttpServletResponse resp) throws IOException {
+
+        SignedURL url = service.signBlob(blob, getExpireInSeconds(service.getConfig(), req),
+                Boolean.parseBoolean(req.getParameter("inline")));
+        if (url != null) {
+            redirect(url, resp);
+            return;
+        }
+        String filename = StringUtils.defaultIfBlank(blob.getFilename(), "file");
+        resp.sendRedirect(req.getContextPath() + "/nxfile/default/" + docId + "/" + xpath + "/"
+                + URLEncoder.encode(filename, "UTF-8").replace("+", "%20"));
+    }
+
+    protected void redirectWithCookies(S3TempSignedURLService service, String docId, String prefix,
+            int expireInSeconds, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+
+        CloudFrontSignedURLBuilder cloudFront = service.getCloudFrontBuilder();
+        if (cloudFront == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String file = StringUtils.defaultString(req.getParameter("file"));
+        if (file.startsWith("/") || file.contains("..")) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        CloudFrontPrefixPolicy policy = cloudFront.signPrefix(prefix, expireInSeconds);
+        service.audit(docId, SignedURLAuditEvent.METHOD_COOKIES, cloudFront.getBucket(), prefix,
+                policy.getExpiresAt());
+        long maxAge = Math.max(0, policy.getRemainingMillis(System.currentTimeMillis()) / 1000);
+        String domain = S3SignerConfig.getProperty(CONF_KEY_NAME_COOKIE_DOMAIN);
+        for (Map.Entry<String, String> entry : policy.getCookies().entrySet()) {
+            Cookie cookie = new Cookie(entry.getKey(), entry.getValue());
+            if (StringUtils.isNotBlank(domain)) {
+                cookie.setDomain(domain.trim());
+            }
+            cookie.setPath(policy.getCookiePath());
+            cookie.setMaxAge((int) maxAge);
+            cookie.setSecure(true);
+            cookie.setHttpOnly(true);
+            resp.addCookie(cookie);
+        }
+        resp.setHeader("Cache-Control", "private, no-store");
+        resp.sendRedirect(policy.getBaseUrl() + SigV4Presigner.uriEncode(file, true));
+    }
+
+    /**
+     * Return the <code>expireInSeconds</code> query parameter, clamped to the default expiration of the configuration
+     */
+    protected int getExpireInSeconds(S3SignerConfig config, HttpServletRequest req) {
+        return config.clampExpire(NumberUtils.toInt(req.getParameter("expireInSeconds"), 0));
+    }
+
+    protected S3TempSignedURLService getService() {
+        return Framework.getService(S3TempSignedURLService.class);
+    }
+
+    /**
+     * Read the field (an object key, a prefix or a blob) with the session of the current user, so reading is checked
+     * against the document's permissions.
+     */
+    protected Serializable getPropertyValue(String docId, String xpath) {
+
+        boolean txStarted = !TransactionHelper.isTransactionActive() && TransactionHelper.startTransaction();
+        try (CoreSession session = CoreInstance.openCoreSession(null)) {
+            DocumentModel doc = session.getDocument(new IdRef(docId));
+            return doc.getPropertyValue(xpath);
+        } catch (RuntimeException e) {
+            if (txStarted) {
+                TransactionHelper.setTransactionRollbackOnly();
+            }
+            log.debug("Cannot read " + xpath + " of " + docId, e);
+            throw e;
+        } finally {
+            if (txStarted) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.web;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.sheridan.S3TempSignedURLService;
+
+/**
+ * Readiness of the signing, for the health checks of load balancers during rolling deploys.
+ * <p>
+ * URL: <code>/nuxeo/sheridan/status</code>, open without authentication. The answer is <code>{"ready": true}</code>
+ * (200) once the signing is warmed up, <code>{"ready": false}</code> (503) before, or while the warm-up fails (see
+ * {@link org.nuxeo.sheridan.SheridanWarmUp}, the cause is in the server log).
+ *
+ * @since 7.10
+ */
+public class SheridanStatusServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+
+        S3TempSignedURLService service = Framework.getService(S3TempSignedURLService.class);
+        boolean ready = service != null && service.isReady();
+        resp.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        resp.setContentType("application/json");
+        resp.setHeader("Cache-Control", "no-store");
+        resp.getWriter().write("{\"ready\": " + ready + "}");
+    }
+
+}
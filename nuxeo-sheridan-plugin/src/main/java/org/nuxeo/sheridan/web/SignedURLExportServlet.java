@@ -0,0 +1,122 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.web;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+import org.nuxeo.sheridan.S3TempSignedURLService;
+import org.nuxeo.sheridan.SignedURLExporter;
+import org.nuxeo.sheridan.SignedURLExporter.Format;
+
+/**
+ * Streams the signed URLs of the objects whose key is stored in the <code>xpath</code> field of the documents returned
+ * by an NXQL query, as CSV or JSON lines (see {@link SignedURLExporter}): the manifest is written to the response as
+ * the query is read, whatever the number of documents.
+ * <p>
+ * URL: <code>/nuxeo/sheridan/export?query={NXQL}&amp;xpath=myschema:S3key</code>. Optional query parameters:
+ * <code>format</code> (<code>csv</code>, the default, or <code>jsonl</code>), <code>profile</code> (see
+ * {@link org.nuxeo.sheridan.S3ProfileDescriptor}, a 403 if the user is not allowed to use it),
+ * <code>expireInSeconds</code>, which cannot exceed the default expiration, and <code>batchSize</code>, at most
+ * {@link SignedURLExporter#MAX_BATCH_SIZE}. The URLs are always signed for the configured bucket.
+ * <p>
+ * The query runs with the session of the current user, so only the documents they can read are exported. Once the
+ * first batch is sent, an error can only be logged and the manifest is truncated: clients should check its number of
+ * lines when they know the number of documents.
+ *
+ * @since 7.10
+ */
+public class SignedURLExportServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log log = LogFactory.getLog(SignedURLExportServlet.class);
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+
+        String query = req.getParameter("query");
+        String xpath = req.getParameter("xpath");
+        if (StringUtils.isBlank(query) || StringUtils.isBlank(xpath)) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "query and xpath are required");
+            return;
+        }
+        S3TempSignedURLService service = getService();
+        String profile = req.getParameter("profile");
+        SignedURLExporter exporter;
+        try {
+            service.checkCanUseProfile(profile, req.getUserPrincipal());
+            exporter = new SignedURLExporter(service, profile, xpath,
+                    NumberUtils.toInt(req.getParameter("expireInSeconds"), 0),
+                    Format.fromString(req.getParameter("format")),
+                    NumberUtils.toInt(req.getParameter("batchSize"), SignedURLExporter.DEFAULT_BATCH_SIZE));
+            SignedURLExporter.toFetchQuery(query, xpath);
+        } catch (DocumentSecurityException e) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        } catch (NuxeoException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        resp.setContentType(exporter.getFormat().getMimeType());
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Content-Disposition", "attachment; filename=\"signed-urls."
+                + exporter.getFormat().getExtension() + "\"");
+        resp.setHeader("Cache-Control", "private, no-store");
+
+        boolean txStarted = !TransactionHelper.isTransactionActive() && TransactionHelper.startTransaction();
+        try (CoreSession session = CoreInstance.openCoreSession(null)) {
+            long count = exporter.export(session, query, resp.getWriter());
+            if (log.isDebugEnabled()) {
+                log.debug("Exported " + count + " signed URLs for " + query);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (txStarted) {
+                TransactionHelper.setTransactionRollbackOnly();
+            }
+            log.error("Cannot export the signed URLs of " + query, e);
+            if (!resp.isCommitted()) {
+                resp.reset();
+                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        } finally {
+            if (txStarted) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+    }
+
+    protected S3TempSignedURLService getService() {
+        return Framework.getService(S3TempSignedURLService.class);
+    }
+
+}
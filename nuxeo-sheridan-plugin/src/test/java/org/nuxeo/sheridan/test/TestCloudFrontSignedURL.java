@@ -0,0 +1,244 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.sheridan.CloudFrontPrefixPolicy;
+import org.nuxeo.sheridan.CloudFrontSignedURLBuilder;
+import org.nuxeo.sheridan.SheridanMetrics;
+import org.nuxeo.sheridan.SignedURL;
+import org.nuxeo.sheridan.SignedURLRequest;
+
+import com.amazonaws.HttpMethod;
+
+/**
+ * No AWS access needed: URLs are signed with a generated key pair, and the signatures checked with its public key.
+ *
+ * @since 7.10
+ */
+public class TestCloudFrontSignedURL {
+
+    protected static final String DOMAIN = "d111111abcdef8.cloudfront.net";
+
+    protected static KeyPair keyPair;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void generateKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+    }
+
+    @Test
+    public void testReadPrivateKey() throws Exception {
+
+        byte[] pkcs8 = keyPair.getPrivate().getEncoded();
+        // For a 2048-bit key, the PKCS#1 key follows a 26 bytes header (sequence, version, algorithm, octet string)
+        byte[] pkcs1 = Arrays.copyOfRange(pkcs8, 26, pkcs8.length);
+
+        Path pkcs8Pem = writePem("PRIVATE KEY", pkcs8);
+        Path pkcs1Pem = writePem("RSA PRIVATE KEY", pkcs1);
+        Path der = folder.newFile("key.der").toPath();
+        Files.write(der, pkcs8);
+
+        for (Path path : new Path[] { pkcs8Pem, pkcs1Pem, der }) {
+            PrivateKey key = CloudFrontSignedURLBuilder.readPrivateKey(path);
+            assertArrayEquals(path.toString(), pkcs8, key.getEncoded());
+        }
+    }
+
+    @Test
+    public void testCannedPolicy() throws Exception {
+
+        CloudFrontSignedURLBuilder builder = newBuilder();
+        SignedURLRequest request = new SignedURLRequest("my-bucket", "dir/my file.pdf", 60, "application/pdf", null);
+        assertTrue(builder.accepts(request));
+        SignedURL signed = builder.sign(request);
+        String url = signed.getUrl();
+
+        String resource = "https://" + DOMAIN + "/dir/my%20file.pdf?response-content-type=application%2Fpdf";
+        assertTrue(url, url.startsWith(resource + "&Expires="));
+        assertTrue(url, url.endsWith("&Key-Pair-Id=APKAEXAMPLE"));
+        long expires = Long.parseLong(getParameter(url, "Expires"));
+        assertEquals(signed.getExpiresAt() / 1000, expires);
+
+        String policy = "{\"Statement\":[{\"Resource\":\"" + resource
+                + "\",\"Condition\":{\"DateLessThan\":{\"AWS:EpochTime\":" + expires + "}}}]}";
+        assertTrue(verify(policy, getParameter(url, "Signature")));
+        assertFalse(verify(policy.replace("my%20file", "other"), getParameter(url, "Signature")));
+    }
+
+    @Test
+    public void testCustomPolicy() throws Exception {
+
+        CloudFrontSignedURLBuilder builder = newBuilder();
+        String resource = builder.getResourceURL("key.pdf");
+        String url = builder.signCustom(resource, 1500000000000L, 1400000000000L, "192.0.2.0/24");
+
+        String policy = new String(fromUrlSafeBase64(getParameter(url, "Policy")), StandardCharsets.UTF_8);
+        assertEquals("{\"Statement\":[{\"Resource\":\"https://" + DOMAIN + "/key.pdf\",\"Condition\":{"
+                + "\"DateLessThan\":{\"AWS:EpochTime\":1500000000},"
+                + "\"DateGreaterThan\":{\"AWS:EpochTime\":1400000000},"
+                + "\"IpAddress\":{\"AWS:SourceIp\":\"192.0.2.0/24\"}}}]}", policy);
+        assertTrue(verify(policy, getParameter(url, "Signature")));
+    }
+
+    @Test
+    public void testPrefixPolicy() throws Exception {
+
+        CloudFrontSignedURLBuilder builder = newBuilder();
+        CloudFrontPrefixPolicy policy = builder.signPrefix("videos/my video/", 600);
+
+        assertEquals("https://" + DOMAIN + "/videos/my%20video/", policy.getBaseUrl());
+        assertEquals("/videos/my%20video/", policy.getCookiePath());
+        String url = policy.getUrl("hls/segment-001.ts");
+        assertTrue(url, url.startsWith("https://" + DOMAIN + "/videos/my%20video/hls/segment-001.ts?Policy="));
+
+        String json = new String(fromUrlSafeBase64(getParameter(url, "Policy")), StandardCharsets.UTF_8);
+        assertEquals("{\"Statement\":[{\"Resource\":\"https://" + DOMAIN
+                + "/videos/my%20video/*\",\"Condition\":{\"DateLessThan\":{\"AWS:EpochTime\":"
+                + policy.getExpiresAt() / 1000 + "}}}]}", json);
+        assertTrue(verify(json, getParameter(url, "Signature")));
+
+        // Same values as cookies
+        Map<String, String> cookies = policy.getCookies();
+        assertEquals(getParameter(url, "Policy"), cookies.get(CloudFrontPrefixPolicy.COOKIE_POLICY));
+        assertEquals(getParameter(url, "Signature"), cookies.get(CloudFrontPrefixPolicy.COOKIE_SIGNATURE));
+        assertEquals("APKAEXAMPLE", cookies.get(CloudFrontPrefixPolicy.COOKIE_KEY_PAIR_ID));
+    }
+
+    @Test
+    public void testPrefixIsAFolder() throws Exception {
+
+        CloudFrontSignedURLBuilder builder = newBuilder();
+        // Without the slash, videos/12* would also match videos/123/...
+        CloudFrontPrefixPolicy policy = builder.signPrefix("videos/12", 600);
+        assertEquals("https://" + DOMAIN + "/videos/12/", policy.getBaseUrl());
+        assertEquals("/videos/12/", policy.getCookiePath());
+        String json = new String(fromUrlSafeBase64(policy.getCookies().get(CloudFrontPrefixPolicy.COOKIE_POLICY)),
+                StandardCharsets.UTF_8);
+        assertTrue(json, json.contains("\"Resource\":\"https://" + DOMAIN + "/videos/12/*\""));
+
+        for (String prefix : new String[] { "", "/" }) {
+            try {
+                builder.signPrefix(prefix, 600);
+                fail("The whole distribution");
+            } catch (NuxeoException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testPrefixPolicyExpirationIsCapped() {
+
+        CloudFrontSignedURLBuilder builder = new CloudFrontSignedURLBuilder(DOMAIN, "APKAEXAMPLE",
+                keyPair.getPrivate(), "my-bucket", 0, 600);
+        assertEquals(600, builder.getDefaultExpire());
+        long now = System.currentTimeMillis();
+        // Years are not possible
+        long expiresAt = builder.signPrefix("videos/1234/", 100000000).getExpiresAt();
+        assertTrue(expiresAt <= now + 601000);
+        // The default expiration of the configuration, not the one of the code
+        expiresAt = builder.signPrefix("videos/1234/", 0).getExpiresAt();
+        assertTrue(expiresAt >= now + 599000 && expiresAt <= now + 601000);
+        // Shorter is fine
+        expiresAt = builder.signPrefix("videos/1234/", 60).getExpiresAt();
+        assertTrue(expiresAt <= now + 61000);
+    }
+
+    @Test
+    public void testMetrics() {
+
+        CloudFrontSignedURLBuilder builder = newBuilder();
+        long signatures = SheridanMetrics.CLOUDFRONT_SIGNING.getCount();
+        long policies = SheridanMetrics.CLOUDFRONT_PREFIX_POLICIES.getCount();
+        long bucketSignatures = SheridanMetrics.SIGNING.getCount();
+        builder.sign(new SignedURLRequest("my-bucket", "key.pdf", 60, null, null));
+        builder.signPrefix("videos/1234/", 600);
+
+        assertEquals(signatures + 2, SheridanMetrics.CLOUDFRONT_SIGNING.getCount());
+        assertEquals(policies + 1, SheridanMetrics.CLOUDFRONT_PREFIX_POLICIES.getCount());
+        // Not counted as the signing of S3 URLs, nor as a bucket
+        assertEquals(bucketSignatures, SheridanMetrics.SIGNING.getCount());
+        assertEquals(0, SheridanMetrics.getBucketCounter(DOMAIN).getCount());
+    }
+
+    @Test
+    public void testAccepts() {
+
+        CloudFrontSignedURLBuilder builder = newBuilder();
+        assertFalse(builder.accepts(new SignedURLRequest("other-bucket", "key.pdf", 60, null, null)));
+        assertFalse(builder.accepts(new SignedURLRequest(HttpMethod.PUT, "my-bucket", "key.pdf", 60, null, null,
+                null)));
+    }
+
+    protected CloudFrontSignedURLBuilder newBuilder() {
+        return new CloudFrontSignedURLBuilder(DOMAIN, "APKAEXAMPLE", keyPair.getPrivate(), "my-bucket", 0);
+    }
+
+    protected Path writePem(String type, byte[] der) throws Exception {
+        Path path = folder.newFile().toPath();
+        String pem = "-----BEGIN " + type + "-----\n" + Base64.getMimeEncoder().encodeToString(der) + "\n-----END "
+                + type + "-----\n";
+        Files.write(path, pem.getBytes(StandardCharsets.US_ASCII));
+        return path;
+    }
+
+    protected static boolean verify(String policy, String signature) throws Exception {
+        PublicKey publicKey = keyPair.getPublic();
+        Signature verifier = Signature.getInstance(CloudFrontSignedURLBuilder.SIGNATURE_ALGORITHM);
+        verifier.initVerify(publicKey);
+        verifier.update(policy.getBytes(StandardCharsets.UTF_8));
+        return verifier.verify(fromUrlSafeBase64(signature));
+    }
+
+    protected static byte[] fromUrlSafeBase64(String value) {
+        return Base64.getDecoder().decode(value.replace('-', '+').replace('_', '=').replace('~', '/'));
+    }
+
+    protected static String getParameter(String url, String name) {
+        for (String parameter : url.substring(url.indexOf('?') + 1).split("&")) {
+            if (parameter.startsWith(name + "=")) {
+                return parameter.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+}
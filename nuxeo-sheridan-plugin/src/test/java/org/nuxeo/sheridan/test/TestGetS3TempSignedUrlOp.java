@@ -0,0 +1,212 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.test;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.test.AutomationFeature;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.sheridan.S3SignerConfig;
+import org.nuxeo.sheridan.S3TempSignedURLBuilder;
+import org.nuxeo.sheridan.operations.GetS3TempSignedUrlOp;
+
+/**
+ * The {@link GetS3TempSignedUrlOp} operation run by the automation service, with a Document and a Documents input.
+ * Signing is local, no AWS access needed.
+ *
+ * @since 7.10
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ AutomationFeature.class })
+@Deploy({ "nuxeo-sheridan" })
+public class TestGetS3TempSignedUrlOp {
+
+    protected static final String BUCKET = "my-bucket";
+
+    protected static final String KEY_XPATH = "dc:source";
+
+    protected static final String TARGET_XPATH = "dc:rights";
+
+    protected static final String[] PROPERTIES = { S3TempSignedURLBuilder.CONF_KEY_NAME_ACCESS_KEY,
+            S3TempSignedURLBuilder.CONF_KEY_NAME_SECRET_KEY, S3TempSignedURLBuilder.CONF_KEY_NAME_BUCKET,
+            S3SignerConfig.CONF_KEY_NAME_REGION_LOOKUP };
+
+    @Inject
+    protected CoreSession session;
+
+    @Inject
+    protected AutomationService automationService;
+
+    @BeforeClass
+    public static void setProperties() {
+        System.setProperty(S3TempSignedURLBuilder.CONF_KEY_NAME_ACCESS_KEY, LocalS3Server.ACCESS_KEY);
+        System.setProperty(S3TempSignedURLBuilder.CONF_KEY_NAME_SECRET_KEY, LocalS3Server.SECRET_KEY);
+        System.setProperty(S3TempSignedURLBuilder.CONF_KEY_NAME_BUCKET, BUCKET);
+        System.setProperty(S3SignerConfig.CONF_KEY_NAME_REGION_LOOKUP, "false");
+    }
+
+    @AfterClass
+    public static void clearProperties() {
+        for (String name : PROPERTIES) {
+            System.clearProperty(name);
+        }
+    }
+
+    protected DocumentModel createFile(String name, String objectKey) {
+        DocumentModel doc = session.createDocumentModel("/", name, "File");
+        doc.setPropertyValue(KEY_XPATH, objectKey);
+        doc = session.createDocument(doc);
+        session.save();
+        return doc;
+    }
+
+    protected Object run(OperationContext ctx, Object input, Map<String, Object> params) throws Exception {
+        ctx.setInput(input);
+        return automationService.run(ctx, GetS3TempSignedUrlOp.ID, params);
+    }
+
+    protected static Map<String, Object> params(Object... namesAndValues) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("xpath", KEY_XPATH);
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            params.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return params;
+    }
+
+    protected static void assertSignedUrl(String objectKey, String url) {
+        assertNotNull(url);
+        assertTrue(url, url.startsWith("https://" + BUCKET + ".s3.amazonaws.com/" + objectKey + "?"));
+        assertTrue(url, url.contains("X-Amz-Signature="));
+    }
+
+    @Test
+    public void testDocumentToVariable() throws Exception {
+        DocumentModel doc = createFile("file1", "docs/file1.pdf");
+
+        OperationContext ctx = new OperationContext(session);
+        DocumentModel result = (DocumentModel) run(ctx, doc,
+                params("varName", "s3Url", "expireInSeconds", Integer.valueOf(60)));
+        String url = (String) ctx.get("s3Url");
+        assertSignedUrl("docs/file1.pdf", url);
+        assertTrue(url, url.contains("X-Amz-Expires=60&"));
+        // No targetXpath: the document is not modified
+        assertNull(result.getPropertyValue(TARGET_XPATH));
+    }
+
+    @Test
+    public void testDocumentToTargetXpath() throws Exception {
+        DocumentModel doc = createFile("file2", "docs/file2.pdf");
+
+        DocumentModel result = (DocumentModel) run(new OperationContext(session), doc,
+                params("targetXpath", TARGET_XPATH));
+        assertSignedUrl("docs/file2.pdf", (String) result.getPropertyValue(TARGET_XPATH));
+        // Not saved
+        assertNull(session.getDocument(doc.getRef()).getPropertyValue(TARGET_XPATH));
+
+        result = (DocumentModel) run(new OperationContext(session), doc,
+                params("targetXpath", TARGET_XPATH, "save", Boolean.TRUE));
+        String url = (String) session.getDocument(doc.getRef()).getPropertyValue(TARGET_XPATH);
+        assertSignedUrl("docs/file2.pdf", url);
+        assertEquals(url, result.getPropertyValue(TARGET_XPATH));
+    }
+
+    @Test
+    public void testDocuments() throws Exception {
+        DocumentModel doc1 = createFile("file3", "docs/file3.pdf");
+        DocumentModel noKey = createFile("file4", null);
+        DocumentModel doc2 = createFile("file5", "docs/file5.pdf");
+        DocumentModelList docs = new DocumentModelListImpl(Arrays.asList(doc1, noKey, doc2));
+
+        OperationContext ctx = new OperationContext(session);
+        DocumentModelList result = (DocumentModelList) run(ctx, docs,
+                params("varName", "s3Urls", "targetXpath", TARGET_XPATH, "save", Boolean.TRUE));
+
+        @SuppressWarnings("unchecked")
+        Map<String, String> urls = (Map<String, String>) ctx.get("s3Urls");
+        assertEquals(Arrays.asList(doc1.getId(), noKey.getId(), doc2.getId()),
+                Arrays.asList(urls.keySet().toArray()));
+        assertSignedUrl("docs/file3.pdf", urls.get(doc1.getId()));
+        assertEquals("", urls.get(noKey.getId()));
+        assertSignedUrl("docs/file5.pdf", urls.get(doc2.getId()));
+
+        assertEquals(3, result.size());
+        for (DocumentModel doc : result) {
+            // An empty string may be stored as null
+            String saved = (String) session.getDocument(doc.getRef()).getPropertyValue(TARGET_XPATH);
+            assertEquals(urls.get(doc.getId()), StringUtils.defaultString(saved));
+        }
+    }
+
+    @Test
+    public void testClientCannotExtendTheURL() throws Exception {
+        DocumentModel doc = createFile("file6", "docs/file6.pdf");
+
+        OperationContext ctx = new OperationContext(session);
+        run(ctx, doc, params("varName", "s3Url", "expireInSeconds", Integer.valueOf(604800)));
+        String url = (String) ctx.get("s3Url");
+        assertTrue(url, url.contains("X-Amz-Expires=" + S3TempSignedURLBuilder.DEFAULT_EXPIRE + "&"));
+    }
+
+    @Test
+    public void testOnlyAdministratorsChangeTheBucket() throws Exception {
+        DocumentModel doc = createFile("file7", "docs/file7.pdf");
+
+        // The session of the test is an administrator one
+        OperationContext ctx = new OperationContext(session);
+        run(ctx, doc, params("varName", "s3Url", "bucket", "other-bucket"));
+        String url = (String) ctx.get("s3Url");
+        assertTrue(url, url.startsWith("https://other-bucket.s3.amazonaws.com/docs/file7.pdf?"));
+
+        S3SignerConfig config = new S3SignerConfig(LocalS3Server.ACCESS_KEY, LocalS3Server.SECRET_KEY, BUCKET);
+        NuxeoPrincipal jdoe = TestS3Profiles.user("jdoe", false, "members");
+        CoreSession userSession = (CoreSession) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { CoreSession.class }, (proxy, method, args) -> "getPrincipal".equals(
+                        method.getName()) ? jdoe : null);
+        assertEquals(BUCKET, GetS3TempSignedUrlOp.checkCanUseBucket(userSession, config, null));
+        assertEquals(BUCKET, GetS3TempSignedUrlOp.checkCanUseBucket(userSession, config, " " + BUCKET));
+        try {
+            GetS3TempSignedUrlOp.checkCanUseBucket(userSession, config, "other-bucket");
+            fail("jdoe is not an administrator");
+        } catch (DocumentSecurityException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("other-bucket"));
+        }
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.sheridan.ObjectExistenceIndex;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * No AWS access needed: the bucket is a sorted set of keys, listed and checked by a fake client.
+ *
+ * @since 7.10
+ */
+public class TestObjectExistenceIndex {
+
+    protected static final String BUCKET = "my-bucket";
+
+    protected FakeS3 s3;
+
+    protected ObjectExistenceIndex index;
+
+    @Before
+    public void setUp() {
+        s3 = new FakeS3();
+        for (int i = 0; i < 2500; i++) {
+            s3.keys.add(String.format("videos/%05d.mp4", i));
+        }
+        index = new ObjectExistenceIndex(BUCKET, () -> s3, 10000, 0.001, 100, 300, 3600);
+    }
+
+    @Test
+    public void testHeadUntilSwept() {
+        assertFalse(index.isComplete());
+        assertTrue(index.exists("videos/00001.mp4"));
+        assertFalse(index.exists("videos/missing.mp4"));
+        assertEquals(2, s3.heads.get());
+        // Cached
+        assertTrue(index.exists("videos/00001.mp4"));
+        assertFalse(index.exists("videos/missing.mp4"));
+        assertEquals(2, s3.heads.get());
+    }
+
+    @Test
+    public void testLocalLookupsOnceSwept() {
+        index.sweep();
+        assertTrue(index.isComplete());
+        assertEquals(3, s3.lists.get());
+
+        for (String key : s3.keys) {
+            assertTrue(key, index.exists(key));
+        }
+        int missing = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (!index.exists("images/" + i + ".png")) {
+                missing++;
+            }
+        }
+        // Some false positives are allowed by the filter
+        assertTrue(Integer.toString(missing), missing > 980);
+        assertEquals(0, s3.heads.get());
+    }
+
+    @Test
+    public void testChangedKey() {
+        index.sweep();
+        assertFalse(index.exists("videos/new.mp4"));
+
+        s3.keys.add("videos/new.mp4");
+        index.keyChanged("videos/new.mp4");
+        assertTrue(index.exists("videos/new.mp4"));
+        assertEquals(1, s3.heads.get());
+        assertTrue(index.exists("videos/new.mp4"));
+        assertEquals(1, s3.heads.get());
+    }
+
+    @Test
+    public void testNextSweepForgetsDeletedObjects() {
+        index.sweep();
+        s3.keys.remove("videos/00001.mp4");
+        assertTrue(index.exists("videos/00001.mp4"));
+        index.sweep();
+        assertFalse(index.exists("videos/00001.mp4"));
+    }
+
+    @Test
+    public void testAbsentKeyCheckedOnceTheFilterIsStale() {
+        AtomicLong now = new AtomicLong(1000000);
+        index = new ObjectExistenceIndex(BUCKET, () -> s3, 10000, 0.001, 100, 300, 3600, 60) {
+
+            @Override
+            protected long currentTimeMillis() {
+                return now.get();
+            }
+        };
+        index.sweep();
+        // Written outside Nuxeo after the sweep: the fresh filter is trusted
+        s3.keys.add("videos/uploaded.mp4");
+        assertFalse(index.exists("videos/uploaded.mp4"));
+        assertEquals(0, s3.heads.get());
+
+        now.addAndGet(61000);
+        assertTrue(index.exists("videos/uploaded.mp4"));
+        assertFalse(index.exists("videos/missing.mp4"));
+        assertEquals(2, s3.heads.get());
+        // Cached
+        assertTrue(index.exists("videos/uploaded.mp4"));
+        assertFalse(index.exists("videos/missing.mp4"));
+        assertEquals(2, s3.heads.get());
+        // Keys in the filter are not checked
+        assertTrue(index.exists("videos/00001.mp4"));
+        assertEquals(2, s3.heads.get());
+
+        // A new sweep is fresh again
+        index.sweep();
+        assertFalse(index.exists("videos/other.mp4"));
+        assertEquals(2, s3.heads.get());
+    }
+
+    @Test
+    public void testExistsWhenS3CannotTell() {
+        s3.headError = new AmazonClientException("Connection refused");
+        assertTrue(index.exists("videos/missing.mp4"));
+        s3.headError = null;
+        assertFalse(index.exists("videos/missing.mp4"));
+    }
+
+    @Test
+    public void testTruncatedPageWithoutKeys() {
+        index.sweep();
+        s3.keys.remove("videos/00001.mp4");
+        s3.emptyTruncatedPages.set(1);
+        // Abandoned, not an endless loop: the previous filter is kept
+        index.sweep();
+        assertTrue(index.isComplete());
+        assertTrue(index.exists("videos/00001.mp4"));
+        assertEquals(4, s3.lists.get());
+
+        index.sweep();
+        assertFalse(index.exists("videos/00001.mp4"));
+    }
+
+    protected static class FakeS3 extends AmazonS3Client {
+
+        protected final TreeSet<String> keys = new TreeSet<>();
+
+        protected final AtomicInteger lists = new AtomicInteger();
+
+        protected final AtomicInteger heads = new AtomicInteger();
+
+        /**
+         * Number of next listings to answer with an empty, but truncated, page
+         */
+        protected final AtomicInteger emptyTruncatedPages = new AtomicInteger();
+
+        protected volatile AmazonClientException headError;
+
+        protected FakeS3() {
+            super(new BasicAWSCredentials("key", "secret"));
+        }
+
+        @Override
+        public ObjectListing listObjects(ListObjectsRequest request) {
+            assertEquals(BUCKET, request.getBucketName());
+            lists.incrementAndGet();
+            List<String> page = new ArrayList<>(request.getMarker() == null ? keys
+                    : keys.tailSet(request.getMarker(), false));
+            ObjectListing listing = new ObjectListing();
+            if (emptyTruncatedPages.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                listing.setTruncated(true);
+                return listing;
+            }
+            listing.setTruncated(page.size() > request.getMaxKeys());
+            for (String key : page.subList(0, Math.min(page.size(), request.getMaxKeys()))) {
+                S3ObjectSummary summary = new S3ObjectSummary();
+                summary.setKey(key);
+                listing.getObjectSummaries().add(summary);
+            }
+            return listing;
+        }
+
+        @Override
+        public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+            heads.incrementAndGet();
+            if (headError != null) {
+                throw headError;
+            }
+            if (!keys.contains(key)) {
+                AmazonS3Exception e = new AmazonS3Exception("Not Found");
+                e.setStatusCode(404);
+                e.setErrorType(AmazonServiceException.ErrorType.Client);
+                throw e;
+            }
+            return new ObjectMetadata();
+        }
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nuxeo.sheridan.FileCredentialsSource;
+import org.nuxeo.sheridan.HttpCredentialsSource;
+import org.nuxeo.sheridan.RotatingAWSCredentialsProvider;
+import org.nuxeo.sheridan.S3SignerConfig;
+import org.nuxeo.sheridan.S3TempSignedURLBuilder;
+import org.nuxeo.sheridan.S3TempSignedURLServiceImpl;
+import org.nuxeo.sheridan.SheridanMetrics;
+import org.nuxeo.sheridan.SignedURL;
+import org.nuxeo.sheridan.SignedURLCache;
+import org.nuxeo.sheridan.SignedURLRequest;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * No AWS access needed: the credentials are fake, and URLs are only signed.
+ *
+ * @since 7.10
+ */
+public class TestRotatingCredentials {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFileRotation() throws Exception {
+
+        Path file = folder.newFile("credentials").toPath();
+        writeCredentials(file, "AKIDFIRST", "secret1", null, 1000);
+        RotatingAWSCredentialsProvider provider = new RotatingAWSCredentialsProvider(new FileCredentialsSource(file));
+        AtomicInteger changes = new AtomicInteger();
+        provider.addListener((oldCredentials, newCredentials) -> changes.incrementAndGet());
+
+        S3SignerConfig config = new S3SignerConfig(null, null, "my-bucket").withRegionLookup(false)
+                                                                           .withCredentialsProvider(provider);
+        S3TempSignedURLBuilder builder = new S3TempSignedURLBuilder(config);
+        String url = builder.build("key.pdf", 60, null, null);
+        assertTrue(url, url.contains("X-Amz-Credential=AKIDFIRST%2F"));
+
+        // Not modified
+        provider.refresh();
+        assertEquals(0, changes.get());
+
+        writeCredentials(file, "AKIDSECOND", "secret2", "the-token", 2000);
+        provider.refresh();
+        assertEquals(1, changes.get());
+        url = builder.build("key.pdf", 60, null, null);
+        assertTrue(url, url.contains("X-Amz-Credential=AKIDSECOND%2F"));
+        assertTrue(url, url.contains("X-Amz-Security-Token=the-token"));
+
+        // Invalid file: the current credentials are kept
+        Files.write(file, "aws_access_key_id=AKIDTHIRD\n".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(3000));
+        provider.refresh();
+        assertEquals(1, changes.get());
+        assertEquals("AKIDSECOND", provider.getCredentials().getAWSAccessKeyId());
+    }
+
+    @Test
+    public void testHttpSource() throws Exception {
+
+        AtomicReference<String> json = new AtomicReference<>(
+                "{\"AccessKeyId\": \"ASIAFIRST\", \"SecretAccessKey\": \"secret1\", \"Token\": \"token1\"}");
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/credentials", exchange -> {
+            byte[] body = json.get().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/credentials");
+            RotatingAWSCredentialsProvider provider = new RotatingAWSCredentialsProvider(new HttpCredentialsSource(
+                    url));
+            AtomicInteger changes = new AtomicInteger();
+            provider.addListener((oldCredentials, newCredentials) -> changes.incrementAndGet());
+            assertEquals("ASIAFIRST", provider.getCredentials().getAWSAccessKeyId());
+
+            provider.refresh();
+            assertEquals(0, changes.get());
+
+            json.set("{\"AccessKeyId\": \"ASIASECOND\", \"SecretAccessKey\": \"secret2\", \"Token\": \"token2\"}");
+            provider.refresh();
+            assertEquals(1, changes.get());
+            assertEquals("ASIASECOND", provider.getCredentials().getAWSAccessKeyId());
+
+            // Empty or not an object: the current credentials are kept
+            long failures = SheridanMetrics.CREDENTIALS_REFRESH_FAILURES.getCount();
+            for (String body : new String[] { "", "[]", "\"text\"" }) {
+                json.set(body);
+                provider.refresh();
+            }
+            assertEquals(failures + 3, SheridanMetrics.CREDENTIALS_REFRESH_FAILURES.getCount());
+            assertEquals(1, changes.get());
+            assertEquals("ASIASECOND", provider.getCredentials().getAWSAccessKeyId());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testRefreshesGoOnAfterAnUnexpectedError() throws Exception {
+
+        AtomicInteger loads = new AtomicInteger();
+        RotatingAWSCredentialsProvider provider = new RotatingAWSCredentialsProvider(() -> {
+            if (loads.incrementAndGet() == 2) {
+                throw new IllegalStateException("A bug of the source");
+            }
+            return new BasicAWSCredentials("AKID" + loads.get(), "secret");
+        });
+        long failures = SheridanMetrics.CREDENTIALS_REFRESH_FAILURES.getCount();
+
+        // The first scheduled refresh fails, the next ones are not cancelled
+        provider.start(1);
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (loads.get() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertTrue(loads.get() >= 3);
+        } finally {
+            provider.stop();
+        }
+        assertEquals(failures + 1, SheridanMetrics.CREDENTIALS_REFRESH_FAILURES.getCount());
+        assertNotEquals("AKID1", provider.getCredentials().getAWSAccessKeyId());
+    }
+
+    /**
+     * The service with a cache, and a builder whose credentials change while it signs the first URL
+     */
+    protected static class RotatingService extends S3TempSignedURLServiceImpl {
+
+        protected final AtomicInteger signed = new AtomicInteger();
+
+        public RotatingService() {
+            cache = new SignedURLCache(100, 0.5);
+            builder = new S3TempSignedURLBuilder(new S3SignerConfig("AKIDFIRST", "secret1", "my-bucket")
+                    .withRegionLookup(false)) {
+
+                @Override
+                public SignedURL sign(SignedURLRequest request) throws IOException {
+                    SignedURL url = super.sign(request);
+                    signed();
+                    return url;
+                }
+
+                @Override
+                public Map<SignedURLRequest, SignedURL> signAll(Collection<SignedURLRequest> requests)
+                        throws IOException {
+                    Map<SignedURLRequest, SignedURL> urls = super.signAll(requests);
+                    signed();
+                    return urls;
+                }
+            };
+        }
+
+        protected void signed() {
+            if (signed.incrementAndGet() == 1) {
+                credentialsChanged(null, null);
+            }
+        }
+
+    }
+
+    @Test
+    public void testURLSignedDuringRotationNotCached() throws Exception {
+
+        RotatingService service = new RotatingService();
+        SignedURLRequest request = service.getBuilder().newRequest(null, "key.pdf", 60, null, null);
+        service.sign(request, null);
+        service.sign(request, null);
+        assertEquals(2, service.signed.get());
+        // Signed after the rotation: cached
+        service.sign(request, null);
+        assertEquals(2, service.signed.get());
+
+        // Same for a batch
+        SignedURLRequest other = service.getBuilder().newRequest(null, "other.pdf", 60, null, null);
+        service.signed.set(0);
+        service.buildAll(Arrays.asList(other));
+        service.buildAll(Arrays.asList(other));
+        assertEquals(2, service.signed.get());
+    }
+
+    protected static void writeCredentials(Path file, String keyId, String secret, String token, long lastModified)
+            throws Exception {
+        String content = "[default]\n" + FileCredentialsSource.ACCESS_KEY_ID + "=" + keyId + "\n"
+                + FileCredentialsSource.SECRET_ACCESS_KEY + "=" + secret + "\n";
+        if (token != null) {
+            content += FileCredentialsSource.SESSION_TOKEN + "=" + token + "\n";
+        }
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.test;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
+import org.nuxeo.sheridan.S3BlobResolver;
+import org.nuxeo.sheridan.SignedURLRequest;
+
+/**
+ * @since 7.10
+ */
+public class TestS3BlobResolver {
+
+    protected static final String DIGEST = "5d41402abc4b2a76b9719d911017c592";
+
+    /**
+     * A blob of a blob provider, as read from a document
+     */
+    protected static ManagedBlob newManagedBlob(String providerId, String key) {
+        Blob blob = Blobs.createBlob("hello", "text/plain");
+        blob.setFilename("hello.txt");
+        blob.setDigest(DIGEST);
+        return (ManagedBlob) Proxy.newProxyInstance(TestS3BlobResolver.class.getClassLoader(),
+                new Class<?>[] { ManagedBlob.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getProviderId":
+                        return providerId;
+                    case "getKey":
+                        return key;
+                    default:
+                        return method.invoke(blob, args);
+                    }
+                });
+    }
+
+    @Test
+    public void testRequestForBlob() {
+        S3BlobResolver resolver = new S3BlobResolver("nuxeo-blobs", "binaries/", "default", 1800);
+        Blob blob = newManagedBlob("default", DIGEST);
+
+        SignedURLRequest request = resolver.newRequest(blob, 0, false);
+        assertEquals("nuxeo-blobs", request.getBucket());
+        assertEquals("binaries/" + DIGEST, request.getObjectKey());
+        // The default expiration of the configuration
+        assertEquals(1800, request.getExpireInSeconds());
+        assertEquals("text/plain", request.getContentType());
+        assertEquals("attachment; filename=\"hello.txt\"; filename*=UTF-8''hello.txt", request.getContentDisposition());
+
+        request = resolver.newRequest(blob, 60, true);
+        assertEquals(60, request.getExpireInSeconds());
+        assertTrue(request.getContentDisposition().startsWith("inline;"));
+    }
+
+    @Test
+    public void testProviderKey() {
+        // The key of a blob of a provider which is not the default one of the repository
+        S3BlobResolver resolver = new S3BlobResolver("nuxeo-blobs", null, "s3", 1800);
+        assertEquals(DIGEST, resolver.getKey(newManagedBlob("s3", "s3:" + DIGEST)));
+        assertEquals(DIGEST, resolver.getKey(newManagedBlob("s3", DIGEST)));
+    }
+
+    @Test
+    public void testNotABlobOfTheS3BinaryManager() {
+        S3BlobResolver resolver = new S3BlobResolver("nuxeo-blobs", null, "default", 1800);
+        assertNull(resolver.newRequest(null, 0, false));
+        // Not managed by a blob provider, whatever its digest
+        Blob blob = Blobs.createBlob("hello", "text/plain");
+        blob.setDigest(DIGEST);
+        assertNull(resolver.newRequest(blob, 0, false));
+        // Another provider: the key is not a key of the bucket
+        assertNull(resolver.newRequest(newManagedBlob("other", "other:" + DIGEST), 0, false));
+        assertNull(resolver.newRequest(newManagedBlob("default", null), 0, false));
+    }
+
+    @Test
+    public void testContentDisposition() {
+        assertEquals("inline", S3BlobResolver.getContentDisposition(null, true));
+        assertEquals("attachment; filename=\"r_sum_ _v2_.pdf\"; filename*=UTF-8''r%C3%A9sum%C3%A9%20%22v2%22.pdf",
+                S3BlobResolver.getContentDisposition("résumé \"v2\".pdf", false));
+    }
+
+}
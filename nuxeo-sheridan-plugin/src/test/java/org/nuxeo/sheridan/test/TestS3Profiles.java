@@ -0,0 +1,320 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.sheridan.S3ProfileDescriptor;
+import org.nuxeo.sheridan.S3SignerConfig;
+import org.nuxeo.sheridan.S3TempSignedURLBuilder;
+import org.nuxeo.sheridan.S3TempSignedURLService;
+import org.nuxeo.sheridan.S3TempSignedURLServiceImpl;
+import org.nuxeo.sheridan.SheridanHelperBean;
+
+import com.amazonaws.ClientConfiguration;
+
+/**
+ * Named profiles against a {@link LocalS3Server}, where the profile has its own credentials and bucket.
+ *
+ * @since 7.10
+ */
+public class TestS3Profiles {
+
+    protected static final String PROFILE_ACCESS_KEY = "AKIAI44QH8DHBEXAMPLE";
+
+    protected static final String PROFILE_SECRET_KEY = "je7MtGbClwBF/2Zp9Utk/h3yCo8nvbEXAMPLEKEY";
+
+    protected LocalS3Server server;
+
+    protected S3TempSignedURLBuilder builder;
+
+    protected S3TempSignedURLServiceImpl service;
+
+    protected SheridanHelperBean bean;
+
+    /**
+     * As contributed to the extension point
+     */
+    protected static class Profile extends S3ProfileDescriptor {
+
+        public Profile(String name, String accessKey, String secretKey, String bucket) {
+            this.name = name;
+            this.accessKey = accessKey;
+            this.secretKey = secretKey;
+            this.bucket = bucket;
+            regionLookup = false;
+        }
+
+        public Profile withEndpoint(String endpoint) {
+            this.endpoint = endpoint;
+            pathStyle = true;
+            return this;
+        }
+
+        public Profile withExpire(int expireInSeconds) {
+            this.expireInSeconds = expireInSeconds;
+            return this;
+        }
+
+        public Profile withClient(int maxConnections, int socketTimeout, boolean keepAlive) {
+            this.maxConnections = maxConnections;
+            this.socketTimeout = socketTimeout;
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        public Profile withAllowedGroups(String... groups) {
+            allowedGroups.addAll(Arrays.asList(groups));
+            return this;
+        }
+
+        public Profile disabled() {
+            enabled = false;
+            return this;
+        }
+    }
+
+    /**
+     * The service as deployed, without its configuration
+     */
+    protected static class LocalSignedURLService extends S3TempSignedURLServiceImpl {
+
+        public LocalSignedURLService(S3TempSignedURLBuilder builder) {
+            this.builder = builder;
+        }
+
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalS3Server().start();
+        server.addCredentials(PROFILE_ACCESS_KEY, PROFILE_SECRET_KEY);
+        server.putObject("my-bucket", "default.txt", "default".getBytes(StandardCharsets.UTF_8), "text/plain");
+        server.putObject("archives", "archived.txt", "archived".getBytes(StandardCharsets.UTF_8), "text/plain");
+        builder = new S3TempSignedURLBuilder(new S3SignerConfig(LocalS3Server.ACCESS_KEY, LocalS3Server.SECRET_KEY,
+                "my-bucket").withRegionLookup(false).withEndpoint(server.getEndpoint()).withPathStyle(true));
+        service = new LocalSignedURLService(builder);
+        S3TempSignedURLService s3Service = service;
+        bean = new SheridanHelperBean() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected S3TempSignedURLService getService() {
+                return s3Service;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        // Shuts down the builders of the profiles and the default one
+        service.deactivate(null);
+        server.stop();
+    }
+
+    protected void register(S3ProfileDescriptor profile) {
+        service.registerContribution(profile, S3TempSignedURLServiceImpl.PROFILES_EP, null);
+    }
+
+    /**
+     * A user member of the groups
+     */
+    protected static NuxeoPrincipal user(String name, boolean administrator, String... groups) {
+        return (NuxeoPrincipal) Proxy.newProxyInstance(TestS3Profiles.class.getClassLoader(),
+                new Class<?>[] { NuxeoPrincipal.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getName":
+                        return name;
+                    case "getAllGroups":
+                        return Arrays.asList(groups);
+                    case "isAdministrator":
+                        return administrator;
+                    default:
+                        return null;
+                    }
+                });
+    }
+
+    protected static String fetch(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            assertEquals(200, connection.getResponseCode());
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Test
+    public void testConfig() {
+        S3SignerConfig config = new Profile("archives", PROFILE_ACCESS_KEY, PROFILE_SECRET_KEY, "archives").withExpire(
+                120).withClient(200, 5000, true).toConfig();
+        assertEquals("archives", config.getProfile());
+        assertEquals("archives", config.getBucket());
+        assertEquals(120, config.getDefaultExpire());
+        ClientConfiguration client = config.getClientConfiguration();
+        assertEquals(200, client.getMaxConnections());
+        assertEquals(5000, client.getSocketTimeout());
+        assertTrue(client.useTcpKeepAlive());
+        // Not set: the defaults of the AWS client
+        assertEquals(ClientConfiguration.DEFAULT_CONNECTION_TIMEOUT, client.getConnectionTimeout());
+
+        config = new Profile("other", PROFILE_ACCESS_KEY, PROFILE_SECRET_KEY, null).toConfig();
+        assertEquals(S3TempSignedURLBuilder.DEFAULT_EXPIRE, config.getDefaultExpire());
+        assertEquals(ClientConfiguration.DEFAULT_MAX_CONNECTIONS, config.getClientConfiguration().getMaxConnections());
+    }
+
+    @Test
+    public void testSignWithProfile() throws Exception {
+        register(new Profile("archives", PROFILE_ACCESS_KEY, PROFILE_SECRET_KEY, "archives").withEndpoint(
+                server.getEndpoint()).withExpire(120));
+        assertEquals(Collections.singleton("archives"), service.getProfileNames());
+
+        String url = bean.getProfileS3TempSignedUrl("archives", null, "archived.txt");
+        assertTrue(url, url.contains("/archives/archived.txt?"));
+        assertTrue(url, url.contains("X-Amz-Credential=" + PROFILE_ACCESS_KEY));
+        assertTrue(url, url.contains("X-Amz-Expires=120"));
+        assertEquals("archived", fetch(url));
+
+        // The default configuration is not affected
+        url = bean.getS3TempSignedUrl("default.txt");
+        assertTrue(url, url.contains("X-Amz-Credential=" + LocalS3Server.ACCESS_KEY));
+        assertTrue(url, url.contains("X-Amz-Expires=" + S3TempSignedURLBuilder.DEFAULT_EXPIRE));
+        assertEquals("default", fetch(url));
+        assertSame(builder, service.getBuilder(null));
+        assertSame(builder, service.getBuilder(S3SignerConfig.DEFAULT_PROFILE));
+        assertEquals(0, server.getRejectedCount());
+    }
+
+    @Test
+    public void testBuilderCreatedOnce() {
+        register(new Profile("archives", PROFILE_ACCESS_KEY, PROFILE_SECRET_KEY, "archives").withEndpoint(
+                server.getEndpoint()));
+        S3TempSignedURLBuilder profileBuilder = service.getBuilder("archives");
+        assertNotSame(builder, profileBuilder);
+        assertSame(profileBuilder, service.getBuilder("archives"));
+
+        // Contributed again: a new builder, with the new settings
+        register(new Profile("archives", PROFILE_ACCESS_KEY, PROFILE_SECRET_KEY, "archives").withEndpoint(
+                server.getEndpoint()).withExpire(60));
+        S3TempSignedURLBuilder replaced = service.getBuilder("archives");
+        assertNotSame(profileBuilder, replaced);
+        assertEquals(60, replaced.getConfig().getDefaultExpire());
+
+        register(new Profile("archives", null, null, null).disabled());
+        assertTrue(service.getProfileNames().isEmpty());
+        try {
+            service.getBuilder("archives");
+            fail("The profile is removed");
+        } catch (NuxeoException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("archives"));
+        }
+    }
+
+    @Test
+    public void testUnknownProfile() throws Exception {
+        try {
+            bean.getProfileS3TempSignedUrl("unknown", null, "archived.txt");
+            fail("The profile does not exist");
+        } catch (NuxeoException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("unknown"));
+        }
+        // An empty key does not need the profile
+        assertEquals("", bean.getProfileS3TempSignedUrl("unknown", null, ""));
+    }
+
+    @Test
+    public void testCannotUseTheProfileOfAnotherTenant() {
+        register(new Profile("tenantA", PROFILE_ACCESS_KEY, PROFILE_SECRET_KEY, "archives").withAllowedGroups(
+                "tenantA-members"));
+        register(new Profile("tenantB", PROFILE_ACCESS_KEY, PROFILE_SECRET_KEY, "archives").withAllowedGroups(
+                "tenantB-members"));
+        NuxeoPrincipal alice = user("alice", false, "members", "tenantA-members");
+        NuxeoPrincipal bob = user("bob", false, "members", "tenantB-members");
+
+        service.checkCanUseProfile("tenantA", alice);
+        service.checkCanUseProfile(" tenantB ", bob);
+        for (String profile : new String[] { "tenantA", " tenantA " }) {
+            try {
+                service.checkCanUseProfile(profile, bob);
+                fail("bob is not a member of tenantA");
+            } catch (DocumentSecurityException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("tenantA"));
+                assertTrue(e.getMessage(), e.getMessage().contains("bob"));
+            }
+        }
+        // Administrators can use any profile, everyone can use the default one
+        service.checkCanUseProfile("tenantA", user("Administrator", true));
+        service.checkCanUseProfile(null, bob);
+        service.checkCanUseProfile(S3SignerConfig.DEFAULT_PROFILE, null);
+    }
+
+    @Test
+    public void testProfileWithoutGroupsIsForAdministrators() {
+        register(new Profile("archives", PROFILE_ACCESS_KEY, PROFILE_SECRET_KEY, "archives"));
+        service.checkCanUseProfile("archives", user("Administrator", true));
+        for (Principal principal : new Principal[] { user("alice", false, "members"), null, () -> "anonymous" }) {
+            try {
+                service.checkCanUseProfile("archives", principal);
+                fail("Only administrators can use the profile");
+            } catch (DocumentSecurityException e) {
+                // expected
+            }
+        }
+        // Unknown is not forbidden: the client sees the same error as when signing
+        try {
+            service.checkCanUseProfile("unknown", user("Administrator", true));
+            fail("The profile does not exist");
+        } catch (DocumentSecurityException e) {
+            fail("An unknown profile is not a permission error");
+        } catch (NuxeoException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("unknown"));
+        }
+    }
+
+    @Test(expected = NuxeoException.class)
+    public void testDefaultNameIsReserved() {
+        register(new Profile(S3SignerConfig.DEFAULT_PROFILE, PROFILE_ACCESS_KEY, PROFILE_SECRET_KEY, "archives"));
+    }
+
+}
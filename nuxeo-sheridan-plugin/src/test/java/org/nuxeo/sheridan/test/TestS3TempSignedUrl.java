@@ -18,48 +18,40 @@ package org.nuxeo.sheridan.test;
 
 import static org.junit.Assert.*;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Properties;
+import java.util.Random;
+
+import javax.inject.Inject;
 
 import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.AfterClass;
 import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.sheridan.S3SignerConfig;
 import org.nuxeo.sheridan.S3TempSignedURLBuilder;
+import org.nuxeo.sheridan.S3TempSignedURLService;
+import org.nuxeo.sheridan.SheridanHelperBean;
 
 /**
- * Important: To test the feature, we don't want to hard code the AWS keys (since this code could be published on GitHub
- * for example) and we don't want to hard code he bucket name or the distant object key, since everyone will have a
- * different one. So, the principles used are the following:
- * <ul>
- * <li>We have a file named aws-test.conf at nuxeo-sheridan-plugin/src/test/resources/</li>
- * <li>The file contains the keys</li>
- * <li>The .gitignore config file ignores this file, so it is not sent on GitHub</li>
- * </ul>
- * This configuration file also stores the key of the file to test, and it's info. So, basically to run the test, create
- * this file at nuxeo-sheridan-plugin/src/test/resources/ and set the following properties:
- * 
- * <pre>
- * {@code
- * sheridan.s3.key=HERE_THE_KEY_ID
- * sheridan.s3.secret=HERE_THE_SECRET_KEY
- * sheridan.s3.bucket=HERE_THE_NAME_OF_THE_BUCKET_TO_TEST
- * test.object=Creative-Brief-Lorem-ipsum.pdf
- * test.object.size = 39119
- * }
- * </pre>
- * 
+ * The signed URLs of the deployed service and of the helper bean, downloaded from a {@link LocalS3Server}: no AWS keys,
+ * bucket or network needed. The server checks the SigV4 signature and the expiration of each URL like S3 does.
+ * <p>
+ * The configuration is set as system properties before the first use of the service, which then creates its builder.
+ *
  * @since 7.10
  */
 @RunWith(FeaturesRunner.class)
@@ -67,91 +59,72 @@ import org.nuxeo.sheridan.S3TempSignedURLBuilder;
 @Deploy({ "nuxeo-sheridan" })
 public class TestS3TempSignedUrl {
 
-    protected static final String TEST_CONF = "aws-test.conf";
-
-    public static final String TEST_CONF_KEY_NAME_AWS_KEY_ID = "test.aws.key";
-
-    public static final String TEST_CONF_KEY_NAME_AWS_SECRET = "test.aws.secret";
-
-    public static final String TEST_CONF_KEY_NAME_AWS_S3_BUCKET = "test.aws.s3.bucket";
+    protected static final String BUCKET = "my-bucket";
 
-    public static final String TEST_CONF_KEY_NAME_OBJECT_KEY = "test.object.key";
+    protected static final String TEST_FILE_KEY = "docs/Creative-Brief-Lorem-ipsum.pdf";
 
-    public static final String TEST_CONF_KEY_NAME_OBJECT_SIZE = "test.object.size";
+    protected static final int TEST_FILE_SIZE = 39119;
 
-    protected static String awsKeyId;
+    protected static final String[] PROPERTIES = { S3TempSignedURLBuilder.CONF_KEY_NAME_ACCESS_KEY,
+            S3TempSignedURLBuilder.CONF_KEY_NAME_SECRET_KEY, S3TempSignedURLBuilder.CONF_KEY_NAME_BUCKET,
+            S3SignerConfig.CONF_KEY_NAME_ENDPOINT, S3SignerConfig.CONF_KEY_NAME_PATH_STYLE,
+            S3SignerConfig.CONF_KEY_NAME_REGION_LOOKUP };
 
-    protected static String awsSecret;
+    protected static LocalS3Server server;
 
-    protected static String awsBucket;
+    protected static byte[] content;
 
-    protected static String TEST_FILE_KEY;
+    @Inject
+    protected S3TempSignedURLService s3Service;
 
-    protected static long TEST_FILE_SIZE = -1;
-
-    @Before
-    public void setup() throws Exception {
-
-        // Get our local aws-test.conf file and load the properties
-        File file = FileUtils.getResourceFileFromContext(TEST_CONF);
-        FileInputStream fileInput = new FileInputStream(file);
-        Properties props = new Properties();
-        props.load(fileInput);
-        fileInput.close();
-
-        // Check we do have the keys
-        if (StringUtils.isBlank(awsKeyId)) {
-            awsKeyId = props.getProperty(TEST_CONF_KEY_NAME_AWS_KEY_ID);
-            assertTrue("Missing " + TEST_CONF_KEY_NAME_AWS_KEY_ID, StringUtils.isNotBlank(awsKeyId));
-        }
-
-        if (StringUtils.isBlank(awsSecret)) {
-            awsSecret = props.getProperty(TEST_CONF_KEY_NAME_AWS_SECRET);
-            assertTrue("Missing " + TEST_CONF_KEY_NAME_AWS_SECRET, StringUtils.isNotBlank(awsSecret));
-        }
-
-        if (StringUtils.isBlank(awsBucket)) {
-            awsBucket = props.getProperty(TEST_CONF_KEY_NAME_AWS_S3_BUCKET);
-            assertTrue("Missing " + TEST_CONF_KEY_NAME_AWS_S3_BUCKET, StringUtils.isNotBlank(awsBucket));
-        }
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = new LocalS3Server().start();
+        content = new byte[TEST_FILE_SIZE];
+        new Random(TEST_FILE_SIZE).nextBytes(content);
+        server.putObject(BUCKET, TEST_FILE_KEY, content, "application/pdf");
 
         Properties systemProps = System.getProperties();
-        systemProps.setProperty(S3TempSignedURLBuilder.CONF_KEY_NAME_ACCESS_KEY, awsKeyId);
-        systemProps.setProperty(S3TempSignedURLBuilder.CONF_KEY_NAME_SECRET_KEY, awsSecret);
-        systemProps.setProperty(S3TempSignedURLBuilder.CONF_KEY_NAME_BUCKET, awsBucket);
-
-        // Now the file to test
-        if (StringUtils.isBlank(TEST_FILE_KEY)) {
-            TEST_FILE_KEY = props.getProperty(TEST_CONF_KEY_NAME_OBJECT_KEY);
-            assertTrue("Missing " + TEST_CONF_KEY_NAME_OBJECT_KEY, StringUtils.isNotBlank(TEST_FILE_KEY));
-        }
+        systemProps.setProperty(S3TempSignedURLBuilder.CONF_KEY_NAME_ACCESS_KEY, LocalS3Server.ACCESS_KEY);
+        systemProps.setProperty(S3TempSignedURLBuilder.CONF_KEY_NAME_SECRET_KEY, LocalS3Server.SECRET_KEY);
+        systemProps.setProperty(S3TempSignedURLBuilder.CONF_KEY_NAME_BUCKET, BUCKET);
+        systemProps.setProperty(S3SignerConfig.CONF_KEY_NAME_ENDPOINT, server.getEndpoint());
+        systemProps.setProperty(S3SignerConfig.CONF_KEY_NAME_PATH_STYLE, "true");
+        systemProps.setProperty(S3SignerConfig.CONF_KEY_NAME_REGION_LOOKUP, "false");
+    }
 
-        if (TEST_FILE_SIZE == -1) {
-            String sizeStr = props.getProperty(TEST_CONF_KEY_NAME_OBJECT_SIZE);
-            assertTrue("Missing " + TEST_CONF_KEY_NAME_OBJECT_SIZE, StringUtils.isNotBlank(sizeStr));
-            TEST_FILE_SIZE = Long.parseLong(sizeStr);
+    @AfterClass
+    public static void stopServer() {
+        for (String name : PROPERTIES) {
+            System.clearProperty(name);
         }
+        server.stop();
+    }
 
+    @Before
+    public void setup() {
+        server.setClockOffset(0);
+    }
+
+    @After
+    public void tearDown() {
+        server.setClockOffset(0);
     }
 
     @Test
     public void testGetTempSignedUrl() throws Exception {
 
-        S3TempSignedURLBuilder builder = new S3TempSignedURLBuilder();
-        String urlStr = builder.build(TEST_FILE_KEY, 0, null, "filename=" + TEST_FILE_KEY);
+        S3TempSignedURLBuilder builder = s3Service.getBuilder();
+        String urlStr = builder.build(TEST_FILE_KEY, 0, null, "attachment; filename=Creative-Brief-Lorem-ipsum.pdf");
         assertTrue(StringUtils.isNotBlank(urlStr));
+        assertTrue(urlStr, urlStr.startsWith(server.getEndpoint() + "/" + BUCKET + "/" + TEST_FILE_KEY + "?"));
 
         // We must be able to download the file without authentication
-        File f = downloadFile(urlStr);
-        assertNotNull(f);
-        // Delete it now
-        String name = f.getName();
-        long size = f.length();
-        f.delete();
-
-        assertEquals(TEST_FILE_KEY, name);
-        assertEquals(TEST_FILE_SIZE, size);
-
+        HttpURLConnection http = open(urlStr);
+        assertEquals(200, http.getResponseCode());
+        assertEquals("application/pdf", http.getContentType());
+        assertEquals("attachment; filename=Creative-Brief-Lorem-ipsum.pdf", http.getHeaderField("Content-Disposition"));
+        assertArrayEquals(content, read(http));
     }
 
     @Test
@@ -159,68 +132,103 @@ public class TestS3TempSignedUrl {
 
         int duration = 2; // 2 seconds, not 20 minutes or whatever S3TempSignedURLBuilder.DEFAULT_EXPIRE is
 
-        S3TempSignedURLBuilder builder = new S3TempSignedURLBuilder();
-        String urlStr = builder.build(TEST_FILE_KEY, duration, null, "filename=" + TEST_FILE_KEY);
+        S3TempSignedURLBuilder builder = s3Service.getBuilder();
+        String urlStr = builder.build(TEST_FILE_KEY, duration, null, null);
         assertTrue(StringUtils.isNotBlank(urlStr));
+        assertEquals(200, open(urlStr).getResponseCode());
 
-        // Wait for at least the duration
-        Thread.sleep((duration + 1) * 1000);
+        // Instead of waiting for at least the duration
+        server.setClockOffset((duration + 1) * 1000);
 
-        // Downloading should fail, so the returned File is null
-        File f = downloadFile(urlStr);
-        assertNull(f);
+        HttpURLConnection http = open(urlStr);
+        assertEquals(403, http.getResponseCode());
+        assertTrue(error(http).contains("Request has expired"));
+    }
 
+    @Test
+    public void testTamperedUrlShouldFail() throws Exception {
+
+        String urlStr = s3Service.build(null, TEST_FILE_KEY, 0, null, null);
+
+        // Another object with the same signature
+        HttpURLConnection http = open(urlStr.replace("/Creative-Brief", "/Another-Brief"));
+        assertEquals(403, http.getResponseCode());
+        assertTrue(error(http).contains("SignatureDoesNotMatch"));
+
+        // Another expiration
+        http = open(urlStr.replaceFirst("X-Amz-Expires=\\d+", "X-Amz-Expires=604800"));
+        assertEquals(403, http.getResponseCode());
+        assertTrue(error(http).contains("SignatureDoesNotMatch"));
+
+        // Another secret key
+        S3TempSignedURLBuilder other = new S3TempSignedURLBuilder(new S3SignerConfig(LocalS3Server.ACCESS_KEY,
+                "not-the-secret-key", BUCKET).withRegionLookup(false)
+                                             .withEndpoint(server.getEndpoint())
+                                             .withPathStyle(true));
+        try {
+            http = open(other.build(TEST_FILE_KEY, 0, null, null));
+            assertEquals(403, http.getResponseCode());
+            assertTrue(error(http).contains("SignatureDoesNotMatch"));
+        } finally {
+            other.shutdown();
+        }
     }
 
-    /*
-     * The returned file is a temp file. Still, caller should delete it once done dealing with it
-     */
-    protected File downloadFile(String url) throws IOException {
+    @Test
+    public void testResponseHeadersFromHelperBean() throws Exception {
 
-        File resultFile = null;
+        SheridanHelperBean bean = new SheridanHelperBean();
+        String urlStr = bean.getS3TempSignedUrl(null, TEST_FILE_KEY, 60, "application/octet-stream",
+                "attachment; filename=\"Brief 2016.pdf\"");
 
-        HttpURLConnection http = null;
-        int BUFFER_SIZE = 4096;
+        HttpURLConnection http = open(urlStr);
+        assertEquals(200, http.getResponseCode());
+        assertEquals("application/octet-stream", http.getContentType());
+        assertEquals("attachment; filename=\"Brief 2016.pdf\"", http.getHeaderField("Content-Disposition"));
+        assertArrayEquals(content, read(http));
 
-        URL theURL = new URL(url);
+        assertEquals("", bean.getS3TempSignedUrl(""));
+        assertEquals(404, open(bean.getS3TempSignedUrl("docs/missing.pdf")).getResponseCode());
+    }
 
-        http = (HttpURLConnection) theURL.openConnection();
-        // HTTPUtils.addHeaders(http, headers, headersAsJSON);
+    @Test
+    public void testRange() throws Exception {
 
-        if (http.getResponseCode() == HttpURLConnection.HTTP_OK) {
-            String fileName = "";
-            String disposition = http.getHeaderField("Content-Disposition");
+        String urlStr = s3Service.build(null, TEST_FILE_KEY, 0, null, null);
 
-            if (disposition != null) {
-                // extracts file name from header field
-                int index = disposition.indexOf("filename=");
-                if (index > -1) {
-                    fileName = disposition.substring(index + 9);
-                }
-            } else {
-                // extracts file name from URL
-                fileName = url.substring(url.lastIndexOf("/") + 1, url.length());
-            }
-            if (StringUtils.isEmpty(fileName)) {
-                fileName = "DownloadedFile-" + java.util.UUID.randomUUID().toString();
-            }
+        HttpURLConnection http = open(urlStr);
+        http.setRequestProperty("Range", "bytes=1000-1999");
+        assertEquals(206, http.getResponseCode());
+        assertEquals("bytes 1000-1999/" + TEST_FILE_SIZE, http.getHeaderField("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 2000), read(http));
 
-            String tempDir = System.getProperty("java.io.tmpdir");
-            resultFile = new File(tempDir, fileName);
+        http = open(urlStr);
+        http.setRequestProperty("Range", "bytes=" + TEST_FILE_SIZE + "-");
+        assertEquals(416, http.getResponseCode());
+    }
 
-            FileOutputStream outputStream = new FileOutputStream(resultFile);
-            InputStream inputStream = http.getInputStream();
-            int bytesRead = -1;
-            byte[] buffer = new byte[BUFFER_SIZE];
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-            }
+    protected static HttpURLConnection open(String url) throws IOException {
+        return (HttpURLConnection) new URL(url).openConnection();
+    }
 
-            outputStream.close();
-            inputStream.close();
-        }
+    protected static byte[] read(HttpURLConnection http) throws IOException {
+        return read(http.getInputStream());
+    }
 
-        return resultFile;
+    protected static String error(HttpURLConnection http) throws IOException {
+        return new String(read(http.getErrorStream()), StandardCharsets.UTF_8);
+    }
+
+    protected static byte[] read(InputStream in) throws IOException {
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
     }
 
 }
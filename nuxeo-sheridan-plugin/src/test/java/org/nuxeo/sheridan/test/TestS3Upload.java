@@ -0,0 +1,328 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.automation.core.util.StringList;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.sheridan.S3SignerConfig;
+import org.nuxeo.sheridan.S3TempSignedURLBuilder;
+import org.nuxeo.sheridan.S3TempSignedURLService;
+import org.nuxeo.sheridan.S3TempSignedURLServiceImpl;
+import org.nuxeo.sheridan.SignedURLAuditEvent;
+import org.nuxeo.sheridan.SignedURLAuditor;
+import org.nuxeo.sheridan.SignedURLAuditor.Overflow;
+import org.nuxeo.sheridan.operations.CompleteS3UploadOp;
+import org.nuxeo.sheridan.operations.ImportS3ObjectOp;
+import org.nuxeo.sheridan.operations.StartS3UploadOp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Uploads through {@link StartS3UploadOp} and {@link CompleteS3UploadOp}, to a {@link LocalS3Server}, and the
+ * permissions of {@link ImportS3ObjectOp}, which also writes to the document. The operations are called directly,
+ * with a session where the user can write one document and only read the other.
+ *
+ * @since 7.10
+ */
+public class TestS3Upload {
+
+    protected static final String BUCKET = "my-bucket";
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    protected static class LocalSignedURLService extends S3TempSignedURLServiceImpl {
+
+        public LocalSignedURLService(S3TempSignedURLBuilder builder, SignedURLAuditor auditor) {
+            this.builder = builder;
+            this.auditor = auditor;
+        }
+
+    }
+
+    protected static class LocalStartS3UploadOp extends StartS3UploadOp {
+
+        public LocalStartS3UploadOp(CoreSession session, S3TempSignedURLService s3Service, int partCount) {
+            this.session = session;
+            this.s3Service = s3Service;
+            this.partCount = partCount;
+        }
+
+    }
+
+    protected static class LocalCompleteS3UploadOp extends CompleteS3UploadOp {
+
+        public LocalCompleteS3UploadOp(CoreSession session, S3TempSignedURLService s3Service, String key,
+                String uploadId, List<String> etags) {
+            this.session = session;
+            this.s3Service = s3Service;
+            this.key = key;
+            this.uploadId = uploadId;
+            if (etags != null) {
+                this.etags = new StringList();
+                this.etags.addAll(etags);
+            } else {
+                abort = true;
+            }
+        }
+
+    }
+
+    protected static class LocalImportS3ObjectOp extends ImportS3ObjectOp {
+
+        public LocalImportS3ObjectOp(CoreSession session, S3TempSignedURLService s3Service, String bucket) {
+            this.session = session;
+            this.s3Service = s3Service;
+            this.bucket = bucket;
+            xpath = "myschema:S3key";
+        }
+
+    }
+
+    protected LocalS3Server server;
+
+    protected S3TempSignedURLService service;
+
+    protected CoreSession session;
+
+    protected DocumentModel writable;
+
+    protected DocumentModel readOnly;
+
+    protected List<SignedURLAuditEvent> audited;
+
+    protected SignedURLAuditor auditor;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalS3Server().start();
+        audited = Collections.synchronizedList(new ArrayList<>());
+        // Not started: the events stay in its buffer until it is stopped
+        auditor = new SignedURLAuditor(audited::addAll, 1024, Overflow.DROP, 100, 1000);
+        service = new LocalSignedURLService(new S3TempSignedURLBuilder(new S3SignerConfig(LocalS3Server.ACCESS_KEY,
+                LocalS3Server.SECRET_KEY, BUCKET).withRegionLookup(false).withEndpoint(server.getEndpoint())
+                                                 .withPathStyle(true)), auditor);
+        writable = newDocument("1234-5678");
+        readOnly = newDocument("8765-4321");
+        session = (CoreSession) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { CoreSession.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "hasPermission":
+                        return args[0] == writable.getRef() || SecurityConstants.READ.equals(args[1]);
+                    case "getPrincipal":
+                        return (Principal) () -> "jdoe";
+                    default:
+                        return null;
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    protected static DocumentModel newDocument(String id) {
+        DocumentRef ref = new IdRef(id);
+        return (DocumentModel) Proxy.newProxyInstance(TestS3Upload.class.getClassLoader(),
+                new Class<?>[] { DocumentModel.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getId":
+                        return id;
+                    case "getRef":
+                        return ref;
+                    default:
+                        return null;
+                    }
+                });
+    }
+
+    protected JsonNode start(DocumentModel doc, int partCount) throws IOException {
+        return MAPPER.readTree(new LocalStartS3UploadOp(session, service, partCount).run(doc).getString());
+    }
+
+    /**
+     * PUT the content to the URL, as the client would, and return the ETag
+     */
+    protected static String put(String url, String content) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("PUT");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(200, connection.getResponseCode());
+        return connection.getHeaderField("ETag");
+    }
+
+    @Test
+    public void testPut() throws IOException {
+        JsonNode result = start(writable, 1);
+        assertEquals(BUCKET, result.get("bucket").asText());
+        String key = result.get("key").asText();
+        assertTrue(key, key.startsWith(StartS3UploadOp.DEFAULT_UPLOAD_PREFIX + writable.getId() + "/"));
+
+        put(result.get("url").asText(), "Hello S3");
+        assertEquals("Hello S3", new String(server.getObject(BUCKET, key).getContent(), StandardCharsets.UTF_8));
+        assertEquals(0, server.getRejectedCount());
+
+        // Each upload has its own key
+        assertNotEquals(key, start(writable, 1).get("key").asText());
+    }
+
+    @Test
+    public void testMultipart() throws IOException {
+        JsonNode result = start(writable, 3);
+        String key = result.get("key").asText();
+        String uploadId = result.get("uploadId").asText();
+        assertEquals(3, result.get("urls").size());
+        assertEquals(1, server.getUploadCount());
+
+        List<String> etags = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            etags.add(put(result.get("urls").get(i).asText(), "part " + (i + 1) + ". "));
+        }
+        new LocalCompleteS3UploadOp(session, service, key, uploadId, etags).run(writable);
+
+        assertEquals(0, server.getUploadCount());
+        assertEquals("part 1. part 2. part 3. ",
+                new String(server.getObject(BUCKET, key).getContent(), StandardCharsets.UTF_8));
+        assertEquals(0, server.getRejectedCount());
+    }
+
+    @Test
+    public void testUploadsAreAudited() throws IOException {
+        String putKey = start(writable, 1).get("key").asText();
+        String multipartKey = start(writable, 3).get("key").asText();
+        auditor.start();
+        auditor.stop();
+
+        // One event per upload, whatever its number of parts
+        assertEquals(2, audited.size());
+        assertEquals(putKey, audited.get(0).getObjectKey());
+        assertEquals(multipartKey, audited.get(1).getObjectKey());
+        for (SignedURLAuditEvent event : audited) {
+            assertEquals("PUT", event.getMethod());
+            assertEquals(BUCKET, event.getBucket());
+            assertEquals(writable.getId(), event.getDocId());
+            assertTrue(event.getExpiresAt() > System.currentTimeMillis());
+        }
+    }
+
+    @Test
+    public void testAbort() throws IOException {
+        JsonNode result = start(writable, 2);
+        new LocalCompleteS3UploadOp(session, service, result.get("key").asText(), result.get("uploadId").asText(),
+                null).run(writable);
+        assertEquals(0, server.getUploadCount());
+    }
+
+    @Test
+    public void testCannotUploadForAReadOnlyDocument() throws IOException {
+        try {
+            start(readOnly, 1);
+            fail("Only read access");
+        } catch (DocumentSecurityException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testCannotCompleteTheUploadOfAnotherDocument() throws IOException {
+        JsonNode result = start(writable, 2);
+        String key = result.get("key").asText();
+        String uploadId = result.get("uploadId").asText();
+        DocumentModel other = newDocument("0000-1111");
+        try {
+            // The key of the upload, on a document the user can only read
+            new LocalCompleteS3UploadOp(session, service, key, uploadId, null).run(readOnly);
+            fail("Only read access");
+        } catch (DocumentSecurityException e) {
+            // Expected
+        }
+        try {
+            new LocalCompleteS3UploadOp(session, service, "uploads/" + other.getId() + "/../" + key, uploadId,
+                    null).run(writable);
+            fail("Not a key of this document");
+        } catch (DocumentSecurityException e) {
+            // Expected
+        }
+        try {
+            new LocalCompleteS3UploadOp(session, service, "any/key", uploadId, null).run(writable);
+            fail("Not a key of this document");
+        } catch (DocumentSecurityException e) {
+            // Expected
+        }
+        assertEquals(1, server.getUploadCount());
+    }
+
+    @Test
+    public void testCannotImportIntoAReadOnlyDocumentNorFromAnotherBucket() throws IOException {
+        long requests = server.getRequestCount();
+        try {
+            // Even if the document is not saved, the blob is returned to the client
+            new LocalImportS3ObjectOp(session, service, null).run(readOnly);
+            fail("Only read access");
+        } catch (DocumentSecurityException e) {
+            // Expected
+        }
+        try {
+            new LocalImportS3ObjectOp(session, service, "someone-elses-bucket").run(writable);
+            fail("jdoe is not an administrator");
+        } catch (DocumentSecurityException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("someone-elses-bucket"));
+        }
+        // Checked before downloading
+        assertEquals(requests, server.getRequestCount());
+    }
+
+    @Test
+    public void testTooManyParts() throws IOException {
+        long requests = server.getRequestCount();
+        try {
+            start(writable, S3TempSignedURLBuilder.MAX_UPLOAD_PARTS + 1);
+            fail("Too many parts");
+        } catch (NuxeoException e) {
+            // Expected
+        }
+        // Checked before starting the upload
+        assertEquals(requests, server.getRequestCount());
+    }
+
+}
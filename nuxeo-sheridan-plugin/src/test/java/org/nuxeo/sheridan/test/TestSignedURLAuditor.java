@@ -0,0 +1,211 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.nuxeo.sheridan.BoundedRingBuffer;
+import org.nuxeo.sheridan.SheridanMetrics;
+import org.nuxeo.sheridan.SignedURL;
+import org.nuxeo.sheridan.SignedURLAuditEvent;
+import org.nuxeo.sheridan.SignedURLAuditor;
+import org.nuxeo.sheridan.SignedURLAuditor.Overflow;
+import org.nuxeo.sheridan.SignedURLRequest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * No AWS access needed: the events are written to a list.
+ *
+ * @since 7.10
+ */
+public class TestSignedURLAuditor {
+
+    protected static final int PRODUCERS = 4;
+
+    protected static final int EVENTS_PER_PRODUCER = 20000;
+
+    protected static SignedURLAuditEvent event(int i) {
+        return new SignedURLAuditEvent(i, "user" + i, "doc-" + i, "GET", "bucket", "key" + i, i + 60000);
+    }
+
+    @Test
+    public void testRingBufferIsBoundedAndOrdered() {
+        BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<>(5);
+        assertEquals(8, buffer.capacity());
+        assertNull(buffer.poll());
+
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 8; i++) {
+                assertTrue(buffer.offer(i));
+            }
+            assertFalse(buffer.offer(8));
+            assertEquals(8, buffer.size());
+            for (int i = 0; i < 8; i++) {
+                assertEquals(Integer.valueOf(i), buffer.poll());
+            }
+            assertNull(buffer.poll());
+            assertTrue(buffer.isEmpty());
+        }
+    }
+
+    @Test
+    public void testRingBufferWithConcurrentProducers() throws Exception {
+        BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<>(1024);
+        ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS);
+        CountDownLatch done = new CountDownLatch(PRODUCERS);
+        for (int p = 0; p < PRODUCERS; p++) {
+            int producer = p;
+            executor.execute(() -> {
+                for (int i = 0; i < EVENTS_PER_PRODUCER; i++) {
+                    while (!buffer.offer(producer * EVENTS_PER_PRODUCER + i)) {
+                        Thread.yield();
+                    }
+                }
+                done.countDown();
+            });
+        }
+
+        // Each element once, and in order for each producer
+        int[] last = new int[PRODUCERS];
+        Arrays.fill(last, -1);
+        int received = 0;
+        while (received < PRODUCERS * EVENTS_PER_PRODUCER) {
+            Integer value = buffer.poll();
+            if (value == null) {
+                assertTrue("Producers are stuck", done.getCount() > 0 || !buffer.isEmpty());
+                Thread.yield();
+                continue;
+            }
+            int producer = value / EVENTS_PER_PRODUCER;
+            assertTrue(value % EVENTS_PER_PRODUCER > last[producer]);
+            last[producer] = value % EVENTS_PER_PRODUCER;
+            received++;
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertNull(buffer.poll());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testEventsAreWrittenInBatches() throws Exception {
+        List<Integer> batchSizes = new ArrayList<>();
+        ConcurrentLinkedQueue<SignedURLAuditEvent> written = new ConcurrentLinkedQueue<>();
+        SignedURLAuditor auditor = new SignedURLAuditor(events -> {
+            batchSizes.add(events.size());
+            written.addAll(events);
+        }, 1024, Overflow.DROP, 100, 10000);
+        for (int i = 0; i < 250; i++) {
+            auditor.record(event(i));
+        }
+        auditor.start();
+        // Stopping writes what is left
+        auditor.stop();
+
+        assertEquals(250, written.size());
+        assertEquals(3, batchSizes.size());
+        assertEquals(Integer.valueOf(100), batchSizes.get(0));
+        int i = 0;
+        for (SignedURLAuditEvent event : written) {
+            assertEquals("key" + i++, event.getObjectKey());
+        }
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        SignedURLAuditor auditor = new SignedURLAuditor(events -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 16, Overflow.DROP, 16, 1);
+        auditor.start();
+        long dropped = SheridanMetrics.AUDIT_DROPPED.getCount();
+        // The writer takes at most one batch, then waits on the sink: the buffer is full after 32 events
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            auditor.record(event(i));
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue(SheridanMetrics.AUDIT_DROPPED.getCount() - dropped >= 1000 - 32);
+        // Never waits for the writer
+        assertTrue("Recording took " + elapsed + "ns", elapsed < TimeUnit.SECONDS.toNanos(1));
+        release.countDown();
+        auditor.stop();
+    }
+
+    @Test
+    public void testBlockWhenFull() throws Exception {
+        ConcurrentLinkedQueue<SignedURLAuditEvent> written = new ConcurrentLinkedQueue<>();
+        SignedURLAuditor auditor = new SignedURLAuditor(events -> {
+            written.addAll(events);
+        }, 16, Overflow.BLOCK, 8, 10000);
+        auditor.start();
+        long dropped = SheridanMetrics.AUDIT_DROPPED.getCount();
+        ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS);
+        for (int p = 0; p < PRODUCERS; p++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    auditor.record(event(i));
+                }
+            });
+        }
+        executor.shutdown();
+        // The flush interval is long: producers waiting for room wake up the writer
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        auditor.stop();
+        assertEquals(PRODUCERS * 1000, written.size());
+        assertEquals(dropped, SheridanMetrics.AUDIT_DROPPED.getCount());
+    }
+
+    @Test
+    public void testRecordAndJson() throws Exception {
+        List<SignedURLAuditEvent> written = new ArrayList<>();
+        SignedURLAuditor auditor = new SignedURLAuditor(written::addAll, 16, Overflow.DROP, 16, 10000);
+        auditor.record("jdoe", "doc-1", new SignedURLRequest("bucket", "videos/1.mp4", 60, null, null),
+                new SignedURL("https://bucket.s3.amazonaws.com/videos/1.mp4?X-Amz-Signature=abc", 1000, 61000));
+        auditor.start();
+        auditor.stop();
+        assertEquals(1, written.size());
+
+        String json = SignedURLAuditor.toJson(written.get(0));
+        // The URL itself is not recorded
+        assertFalse(json, json.contains("Signature"));
+        JsonNode node = new ObjectMapper().readTree(json);
+        assertEquals("jdoe", node.get("user").asText());
+        assertEquals("doc-1", node.get("docId").asText());
+        assertEquals("GET", node.get("method").asText());
+        assertEquals("bucket", node.get("bucket").asText());
+        assertEquals("videos/1.mp4", node.get("key").asText());
+        assertEquals(61000, node.get("expiresAt").asLong());
+        assertTrue(node.get("timestamp").asLong() > 0);
+    }
+
+}
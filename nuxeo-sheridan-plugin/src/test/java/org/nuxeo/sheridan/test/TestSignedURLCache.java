@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.nuxeo.sheridan.SignedURL;
+import org.nuxeo.sheridan.SignedURLCache;
+import org.nuxeo.sheridan.SignedURLRequest;
+
+/**
+ * No AWS access needed here, we only check the validity rules of the cache.
+ *
+ * @since 7.10
+ */
+public class TestSignedURLCache {
+
+    @Test
+    public void testCachedWhileHalfLifetimeRemains() {
+
+        SignedURLCache cache = new SignedURLCache(10, 0.5);
+        SignedURLRequest request = new SignedURLRequest("bucket", "key", 1200, null, null);
+        SignedURL url = new SignedURL("http://url", 0, 1200000);
+        cache.put(request, url);
+
+        assertSame(url, cache.get(new SignedURLRequest("bucket", "key", 1200, null, null), 0));
+        assertSame(url, cache.get(request, 600000));
+        assertNull(cache.get(request, 600001));
+
+        // Any other parameter is another entry
+        assertNull(cache.get(new SignedURLRequest("bucket", "key", 1200, "application/pdf", null), 0));
+        assertNull(cache.get(new SignedURLRequest("bucket", "key", 60, null, null), 0));
+    }
+
+    @Test
+    public void testQuantizedURLsCachedDuringTheirWindow() {
+
+        // Signed for 1200s plus the 600s window, at the start of the window
+        SignedURLCache cache = new SignedURLCache(10, 0.5, 600);
+        SignedURLRequest request = new SignedURLRequest("bucket", "key", 1200, null, null);
+        SignedURL url = new SignedURL("http://url", 600000, 600000 + 1800000);
+        cache.put(request, url);
+
+        assertSame(url, cache.get(request, 600000));
+        assertSame(url, cache.get(request, 1199999));
+        // Next window: more than half of the lifetime remains, but another node signs another URL
+        assertNull(cache.get(request, 1200000));
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+
+        SignedURLCache cache = new SignedURLCache(10, 0.5);
+        for (int i = 0; i < 100; i++) {
+            cache.put(new SignedURLRequest("bucket", "key" + i, 1200, null, null), new SignedURL("http://url" + i, 0,
+                    1200000));
+        }
+        assertTrue(cache.size() <= 10);
+    }
+
+}
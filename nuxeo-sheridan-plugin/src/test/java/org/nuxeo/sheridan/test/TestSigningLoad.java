@@ -0,0 +1,250 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.sheridan.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.sheridan.S3SignerConfig;
+import org.nuxeo.sheridan.S3TempSignedURLBuilder;
+import org.nuxeo.sheridan.S3TempSignedURLService;
+import org.nuxeo.sheridan.S3TempSignedURLServiceImpl;
+import org.nuxeo.sheridan.SheridanHelperBean;
+import org.nuxeo.sheridan.SignedURLRequest;
+
+/**
+ * Load test of the signing, against a {@link LocalS3Server}: signed URLs per second through the helper bean and the
+ * batch of the builder, and latency of signing then downloading an object, from several threads. Every URL must be
+ * accepted by the server.
+ * <p>
+ * The default build only checks that the URLs are right (accepted, with the expected content), and logs the
+ * measures: timings depend on the machine. With the <code>performance</code> Maven profile
+ * (<code>mvn test -Pperformance</code>, which sets <code>sheridan.test.performance</code>), the test also fails below
+ * the thresholds, set with <code>-Dsheridan.test.minSignaturesPerSecond=...</code> and
+ * <code>-Dsheridan.test.maxFetchP99Millis=...</code>.
+ *
+ * @since 7.10
+ */
+public class TestSigningLoad {
+
+    private static final Log log = LogFactory.getLog(TestSigningLoad.class);
+
+    protected static final String BUCKET = "my-bucket";
+
+    protected static final int THREADS = 8;
+
+    protected static final int SIGNATURES_PER_THREAD = 20000;
+
+    protected static final int FETCHES_PER_THREAD = 250;
+
+    protected static final int OBJECTS = 100;
+
+    protected static final int OBJECT_SIZE = 32 * 1024;
+
+    /**
+     * True to check the thresholds, see the <code>performance</code> profile
+     */
+    protected static final boolean CHECK_THRESHOLDS = Boolean.getBoolean("sheridan.test.performance");
+
+    protected static final int MIN_SIGNATURES_PER_SECOND = Integer.getInteger("sheridan.test.minSignaturesPerSecond",
+            20000);
+
+    protected static final long MAX_FETCH_P99_MILLIS = Long.getLong("sheridan.test.maxFetchP99Millis", 500);
+
+    protected LocalS3Server server;
+
+    protected S3TempSignedURLBuilder builder;
+
+    protected SheridanHelperBean bean;
+
+    protected byte[][] contents = new byte[OBJECTS][];
+
+    /**
+     * The service as deployed, without its configuration: no cache, so each call signs a URL
+     */
+    protected static class LocalSignedURLService extends S3TempSignedURLServiceImpl {
+
+        public LocalSignedURLService(S3TempSignedURLBuilder builder) {
+            this.builder = builder;
+        }
+
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalS3Server().start();
+        Random random = new Random(1);
+        for (int i = 0; i < OBJECTS; i++) {
+            contents[i] = new byte[OBJECT_SIZE];
+            random.nextBytes(contents[i]);
+            server.putObject(BUCKET, "videos/" + i + ".mp4", contents[i], "video/mp4");
+        }
+        builder = new S3TempSignedURLBuilder(new S3SignerConfig(LocalS3Server.ACCESS_KEY, LocalS3Server.SECRET_KEY,
+                BUCKET).withRegionLookup(false).withEndpoint(server.getEndpoint()).withPathStyle(true));
+        S3TempSignedURLService service = new LocalSignedURLService(builder);
+        bean = new SheridanHelperBean() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected S3TempSignedURLService getService() {
+                return service;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        builder.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void testSignaturesPerSecond() throws Exception {
+        // Warm up the JIT, the way the service does
+        for (int i = 0; i < 10000; i++) {
+            bean.getS3TempSignedUrl(BUCKET, "warm-up/" + i);
+        }
+
+        long start = System.nanoTime();
+        run(thread -> {
+            for (int i = 0; i < SIGNATURES_PER_THREAD; i++) {
+                assertFalse(bean.getS3TempSignedUrl(BUCKET, "videos/" + thread + "/" + i + ".mp4").isEmpty());
+            }
+            return null;
+        });
+        double single = rate(THREADS * SIGNATURES_PER_THREAD, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        run(thread -> {
+            List<SignedURLRequest> requests = new ArrayList<>(500);
+            for (int i = 0; i < SIGNATURES_PER_THREAD; i++) {
+                requests.add(builder.newRequest(BUCKET, "videos/" + thread + "/" + i + ".mp4", 0, null, null));
+                if (requests.size() == 500) {
+                    assertEquals(500, builder.signAll(requests).size());
+                    requests.clear();
+                }
+            }
+            return null;
+        });
+        double batch = rate(THREADS * SIGNATURES_PER_THREAD, System.nanoTime() - start);
+
+        log.info(String.format("Signed URLs per second with %d threads: %.0f one by one, %.0f in batches", THREADS,
+                single, batch));
+        if (CHECK_THRESHOLDS) {
+            assertTrue(String.format("%.0f URLs/s signed one by one, expected %d", single,
+                    MIN_SIGNATURES_PER_SECOND), single >= MIN_SIGNATURES_PER_SECOND);
+            assertTrue(String.format("%.0f URLs/s signed in batches, expected %d", batch, MIN_SIGNATURES_PER_SECOND),
+                    batch >= MIN_SIGNATURES_PER_SECOND);
+        }
+    }
+
+    @Test
+    public void testFetchLatency() throws Exception {
+        long[][] latencies = new long[THREADS][FETCHES_PER_THREAD];
+        run(thread -> {
+            for (int i = 0; i < FETCHES_PER_THREAD; i++) {
+                int object = (thread * FETCHES_PER_THREAD + i) % OBJECTS;
+                long start = System.nanoTime();
+                String url = bean.getS3TempSignedUrl(BUCKET, "videos/" + object + ".mp4", 60,
+                        "application/octet-stream", "attachment; filename=\"" + object + ".mp4\"");
+                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                assertEquals(200, connection.getResponseCode());
+                assertEquals("application/octet-stream", connection.getContentType());
+                byte[] body = read(connection);
+                latencies[thread][i] = System.nanoTime() - start;
+                assertArrayEquals(contents[object], body);
+            }
+            return null;
+        });
+
+        long[] all = new long[THREADS * FETCHES_PER_THREAD];
+        for (int thread = 0; thread < THREADS; thread++) {
+            System.arraycopy(latencies[thread], 0, all, thread * FETCHES_PER_THREAD, FETCHES_PER_THREAD);
+        }
+        Arrays.sort(all);
+        double p50 = all[all.length / 2] / 1e6;
+        double p99 = all[all.length * 99 / 100] / 1e6;
+        log.info(String.format("Sign and fetch latency with %d threads: p50 %.2fms, p99 %.2fms", THREADS, p50, p99));
+        assertEquals(0, server.getRejectedCount());
+        if (CHECK_THRESHOLDS) {
+            assertTrue(String.format("p99 %.2fms, expected at most %dms", p99, MAX_FETCH_P99_MILLIS),
+                    p99 <= MAX_FETCH_P99_MILLIS);
+        }
+    }
+
+    protected interface ThreadTask {
+
+        Void run(int thread) throws Exception;
+
+    }
+
+    /**
+     * Run the task in {@link #THREADS} threads, started together
+     */
+    protected void run(ThreadTask task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                int t = thread;
+                tasks.add(() -> task.run(t));
+            }
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                // Rethrows the failures
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    protected static double rate(int count, long nanos) {
+        return count * 1e9 / nanos;
+    }
+
+    protected static byte[] read(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+}